@@ -0,0 +1,102 @@
+package umm3601;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A sorted dictionary of the distinct values of some attribute (e.g., todo
+ * owners or user companies), for case-insensitive and prefix matching.
+ * <p>
+ * Each value is case-folded once, when the dictionary is built, and the
+ * folded forms are kept in sorted order. Every value matching a pattern is
+ * then in one contiguous run of the dictionary, which can be found with a
+ * binary search, so a lookup only has to fold the pattern itself; nothing is
+ * lower-cased per record or per request. The values that match can then be
+ * looked up in the database's ordinary (exact) indexes.
+ * <p>
+ * A pattern ending in `*` matches every value that starts with the rest of
+ * it (ignoring case), so `blan*` matches "Blanche"; any other pattern
+ * matches the values equal to it, ignoring case.
+ */
+public final class CaseFoldedDictionary {
+  private static final char WILDCARD = '*';
+
+  // The folded values, sorted, and the original value each came from
+  private final String[] folded;
+  private final String[] values;
+
+  /**
+   * Build the dictionary for the given values.
+   *
+   * @param distinctValues every distinct value of the attribute; nulls are
+   *                       ignored, since they can't match anything
+   */
+  public CaseFoldedDictionary(Collection<String> distinctValues) {
+    String[] sorted = distinctValues.stream()
+      .filter(value -> value != null)
+      .sorted((a, b) -> fold(a).compareTo(fold(b)))
+      .toArray(String[]::new);
+    values = sorted;
+    folded = Arrays.stream(sorted).map(CaseFoldedDictionary::fold).toArray(String[]::new);
+  }
+
+  private static String fold(String value) {
+    return value.toLowerCase(Locale.ROOT);
+  }
+
+  private static boolean isPrefix(String pattern) {
+    return !pattern.isEmpty() && pattern.charAt(pattern.length() - 1) == WILDCARD;
+  }
+
+  // The folded pattern, without its `*`
+  private static String key(String pattern) {
+    return fold(isPrefix(pattern) ? pattern.substring(0, pattern.length() - 1) : pattern);
+  }
+
+  /**
+   * Check a single value against a pattern, e.g., one that was added after
+   * the dictionary was built. This folds the value, so it's no good for
+   * checking lots of them.
+   *
+   * @param pattern a value to match ignoring case, or a prefix followed by `*`
+   * @param value   the value to check; may be null
+   * @return whether `matching(pattern)` would find the value, if it were
+   *         in the dictionary
+   */
+  public static boolean matches(String pattern, String value) {
+    if (value == null) {
+      return false;
+    }
+    return isPrefix(pattern) ? fold(value).startsWith(key(pattern)) : fold(value).equals(key(pattern));
+  }
+
+  /**
+   * Find every value matching a pattern.
+   *
+   * @param pattern a value to match ignoring case, or a prefix followed by `*`
+   * @return the matching values, in the order of their folded forms
+   */
+  public Set<String> matching(String pattern) {
+    boolean prefix = isPrefix(pattern);
+    String key = key(pattern);
+    // The first folded value that isn't less than the key
+    int low = 0;
+    int high = folded.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (folded[mid].compareTo(key) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    Set<String> matches = new LinkedHashSet<>();
+    for (int i = low; i < folded.length && (prefix ? folded[i].startsWith(key) : folded[i].equals(key)); i++) {
+      matches.add(values[i]);
+    }
+    return matches;
+  }
+}
@@ -0,0 +1,124 @@
+package umm3601;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Entity tags, for answering conditional GETs.
+ * <p>
+ * Each database computes a version (a digest of all of its data) once, when
+ * it is loaded, so the version only changes when the data does. The ETag for
+ * a response is that version plus a digest of what was asked for (e.g., the
+ * normalized query), so it can be worked out from the request alone. When the
+ * client's `If-None-Match` already has it, the answer is a 304 before any
+ * filtering or serialization has happened.
+ * <p>
+ * The tags are weak (`W/"..."`): the same response can go out gzipped or
+ * plain (see `Gzip`, and Javalin's own compression), and a strong tag would
+ * claim the two are byte for byte the same. A weak one only says they mean
+ * the same, which is all `If-None-Match` needs.
+ */
+public final class ETags {
+  public static final String ETAG_HEADER = "ETag";
+  public static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+  // Keep responses in browser caches, but have them check back every time
+  public static final String CACHE_CONTROL_HEADER = "Cache-Control";
+  public static final String CACHE_CONTROL = "no-cache";
+
+  // Each part of a tag is the first 8 bytes (16 hex digits) of a SHA-256 digest
+  private static final int DIGEST_BYTES = 8;
+  private static final String WEAK_PREFIX = "W/";
+
+  private ETags() {
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(MessageDigest digest) {
+    return HexFormat.of().formatHex(digest.digest(), 0, DIGEST_BYTES);
+  }
+
+  /**
+   * Builds the version of a dataset from all of its values, one at a time.
+   */
+  public static final class Version {
+    private final MessageDigest digest = sha256();
+    private final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+
+    /**
+     * @param value the next value in the dataset; may be null
+     * @return this, for chaining
+     */
+    public Version add(String value) {
+      // Each value's length goes first, so that, e.g., "ab" then "c" is
+      // different from "a" then "bc", and null is different from ""
+      byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+      digest.update(length.clear().putInt(value == null ? -1 : bytes.length).flip());
+      digest.update(bytes);
+      return this;
+    }
+
+    /**
+     * @return the version of all the values added so far
+     */
+    public String finish() {
+      return hex(digest);
+    }
+  }
+
+  /**
+   * @param version the version of the data the response comes from
+   * @param request what was asked for, e.g., the normalized query
+   * @return the (weak, quoted) ETag for the response
+   */
+  public static String of(String version, String request) {
+    MessageDigest digest = sha256();
+    digest.update(request.getBytes(StandardCharsets.UTF_8));
+    return WEAK_PREFIX + "\"" + version + "-" + hex(digest) + "\"";
+  }
+
+  /**
+   * Tag a response, and check whether the client already has it. If it
+   * does, the response becomes an empty 304 (Not Modified).
+   *
+   * @param ctx  a Javalin HTTP context
+   * @param etag the ETag for the response (see `of`)
+   * @return whether the client already has the response, so there's
+   *         nothing more to send
+   */
+  public static boolean notModified(Context ctx, String etag) {
+    ctx.header(ETAG_HEADER, etag);
+    ctx.header(CACHE_CONTROL_HEADER, CACHE_CONTROL);
+    String ifNoneMatch = ctx.header(IF_NONE_MATCH_HEADER);
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    // `If-None-Match` uses the weak comparison, which ignores `W/`
+    String opaque = withoutWeakPrefix(etag);
+    for (String candidate : ifNoneMatch.split(",")) {
+      String tag = withoutWeakPrefix(candidate.trim());
+      if (tag.equals(opaque) || tag.equals("*")) {
+        ctx.status(HttpStatus.NOT_MODIFIED);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String withoutWeakPrefix(String tag) {
+    return tag.startsWith(WEAK_PREFIX) ? tag.substring(WEAK_PREFIX.length()) : tag;
+  }
+}
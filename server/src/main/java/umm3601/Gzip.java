@@ -0,0 +1,128 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import io.javalin.http.Context;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Responses that are compressed once, ahead of time, rather than by Javalin
+ * on every request.
+ * <p>
+ * Javalin gzips any big enough response on the way out, which for a
+ * response that's sent over and over (like a cached list) means compressing
+ * the same bytes every time. Instead the gzipped bytes are worked out once,
+ * when the response is first built, and kept alongside the plain ones. When
+ * the client's `Accept-Encoding` allows gzip, those bytes are written
+ * straight into the underlying servlet response, so that Javalin's own
+ * compression (set up in `Server.configureJavalin`) never sees them and
+ * can't compress them a second time.
+ */
+public final class Gzip {
+  public static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  public static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+  public static final String VARY_HEADER = "Vary";
+  // Smaller bodies than this aren't worth compressing (the gzip header and
+  // trailer alone are 18 bytes), and Javalin doesn't compress them either
+  public static final int MIN_BYTES = 1024;
+
+  private Gzip() {
+  }
+
+  /**
+   * Compress a response body. Since this only happens once per response,
+   * it uses the best (slowest) compression there is.
+   *
+   * @param body the bytes to compress
+   * @return the gzipped bytes, or null if `body` is too small to bother with
+   */
+  public static byte[] compress(byte[] body) {
+    if (body.length < MIN_BYTES) {
+      return null;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    }) {
+      gzip.write(body);
+    } catch (IOException e) {
+      // Writing to memory can't fail
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Whether an `Accept-Encoding` header allows a gzipped response, i.e.,
+   * whether it lists `gzip` (or `*`, if `gzip` isn't listed) without `q=0`.
+   *
+   * @param acceptEncoding the value of the header, or null if there wasn't one
+   * @return true if the response can be gzipped
+   */
+  public static boolean accepted(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    boolean anything = false;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase(Locale.ROOT);
+      boolean allowed = quality(parts) > 0;
+      if (name.equals("gzip") || name.equals("x-gzip")) {
+        return allowed;
+      } else if (name.equals("*")) {
+        anything = allowed;
+      }
+    }
+    return anything;
+  }
+
+  // The `q` parameter of one coding in `Accept-Encoding`, which defaults to 1
+  private static double quality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String param = parts[i].trim().toLowerCase(Locale.ROOT);
+      if (param.startsWith("q=")) {
+        try {
+          return Double.parseDouble(param.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Send a response body, gzipped if there are gzipped bytes for it and the
+   * client accepts them. Either way the response varies by
+   * `Accept-Encoding`, so that caches along the way keep the two apart.
+   *
+   * @param ctx     a Javalin HTTP context
+   * @param body    the plain bytes of the body
+   * @param gzipped the same body, gzipped, or null to always send it plain
+   */
+  public static void send(Context ctx, byte[] body, byte[] gzipped) {
+    ctx.header(VARY_HEADER, ACCEPT_ENCODING_HEADER);
+    if (gzipped == null || !accepted(ctx.header(ACCEPT_ENCODING_HEADER))) {
+      ctx.result(body);
+      return;
+    }
+    ctx.header(CONTENT_ENCODING_HEADER, "gzip");
+    // Going around `ctx.result()` keeps Javalin from compressing it again
+    HttpServletResponse res = ctx.res();
+    res.setContentLength(gzipped.length);
+    try {
+      res.getOutputStream().write(gzipped);
+    } catch (IOException e) {
+      // Most likely the client went away part way through the response
+      throw new UncheckedIOException(e);
+    }
+  }
+}
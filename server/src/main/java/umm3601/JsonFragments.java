@@ -0,0 +1,344 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.Context;
+
+/**
+ * The JSON of every record in a dataset, serialized once when the data is
+ * loaded, so that responses can be put together by copying bytes.
+ * <p>
+ * `ctx.json(array)` runs every element through Jackson on every request,
+ * and the data never changes, so that's the same work over and over. Here
+ * each record is serialized just once, by Jackson itself (so it's exactly
+ * what `ctx.json(record)` sends), to UTF-8, and the results are stored back
+ * to back in a single shared buffer of bytes (the "arena"), along with where
+ * each record's JSON starts. A JSON array of any of the records is then just
+ * `[`, their fragments separated by commas, and `]`. That can be written
+ * straight into a response's output stream, so big responses are never held
+ * in memory, or collected into a byte array for caching.
+ * <p>
+ * The arena and the offsets are NIO buffers, so they can also be views of a
+ * memory-mapped snapshot (see `TodoSnapshot`), which then never has to be
+ * serialized again, or copied onto the Java heap.
+ * <p>
+ * Records that change later can be given new fragments with `with`, which
+ * leaves the arena as it is and just keeps the new fragments alongside it.
+ */
+public final class JsonFragments {
+
+  // `ObjectMapper`s are thread-safe once configured, so everything shares one.
+  // It closes the stream after each value, which does nothing to the arena.
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  // Fragments in an arena that isn't on the heap are copied out through a
+  // buffer of this size on their way to a stream
+  private static final int COPY_BYTES = 1 << 13;
+
+  private final ByteBuffer arena;
+  // Record `i` is `arena[offsets[i]]` up to (but not including) `arena[offsets[i + 1]]`
+  private final IntBuffer offsets;
+  // Fragments that take the place of the arena's for some rows (or are for
+  // rows past the end of it), with the rows in ascending order
+  private final int[] replacedRows;
+  private final byte[][] replacements;
+
+  /**
+   * Wrap fragments that were serialized earlier, e.g., the `arena()` and
+   * `offsets()` of some that were written to a snapshot.
+   *
+   * @param arena   the fragments, back to back
+   * @param offsets where each fragment starts in the arena, and then where the
+   *                last one ends
+   */
+  public JsonFragments(ByteBuffer arena, IntBuffer offsets) {
+    this(arena, offsets, new int[0], new byte[0][]);
+  }
+
+  private JsonFragments(ByteBuffer arena, IntBuffer offsets, int[] replacedRows, byte[][] replacements) {
+    this.arena = arena;
+    this.offsets = offsets;
+    this.replacedRows = replacedRows;
+    this.replacements = replacements;
+  }
+
+  /**
+   * Serialize a single record, just as `Builder.add` would.
+   *
+   * @param record the record
+   * @return its JSON, in UTF-8
+   */
+  public static byte[] serialize(Object record) {
+    try {
+      return MAPPER.writeValueAsBytes(record);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @param id the ID of a record that was asked for but doesn't exist
+   * @return the JSON to send in its place: `{"_id":ID,"missing":true}`
+   */
+  public static byte[] missing(String id) {
+    Map<String, Object> marker = new LinkedHashMap<>();
+    marker.put("_id", id);
+    marker.put("missing", true);
+    return serialize(marker);
+  }
+
+  /**
+   * Builds `JsonFragments` one record at a time, in row order.
+   */
+  public static final class Builder {
+    private static final int INITIAL_ROWS = 16;
+
+    private final ByteArrayOutputStream arena = new ByteArrayOutputStream();
+    private int[] offsets = new int[INITIAL_ROWS + 1];
+    private int rows;
+
+    /**
+     * Serialize the next record.
+     *
+     * @param record the record in the next row
+     * @return this, for chaining
+     */
+    public Builder add(Object record) {
+      try {
+        MAPPER.writeValue(arena, record);
+      } catch (IOException e) {
+        // Writing to memory can't fail, so this is a record Jackson can't serialize
+        throw new UncheckedIOException(e);
+      }
+      return next();
+    }
+
+    /**
+     * Add the next record, which has already been serialized (e.g., it's
+     * the `fragment` of a record in some other fragments).
+     *
+     * @param json the JSON of the record in the next row
+     * @return this, for chaining
+     */
+    public Builder addSerialized(byte[] json) {
+      arena.writeBytes(json);
+      return next();
+    }
+
+    private Builder next() {
+      if (rows + 1 == offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      rows++;
+      offsets[rows] = arena.size();
+      return this;
+    }
+
+    /**
+     * @return the fragments of all the records added so far
+     */
+    public JsonFragments build() {
+      return new JsonFragments(ByteBuffer.wrap(arena.toByteArray()), IntBuffer.wrap(Arrays.copyOf(offsets, rows + 1)));
+    }
+  }
+
+  /**
+   * @return how many records were serialized when these fragments were built
+   */
+  public int size() {
+    return offsets.limit() - 1;
+  }
+
+  /**
+   * @return the fragments serialized when these were built, back to back,
+   *         without any replacements (see `with`), e.g., for a snapshot
+   */
+  public ByteBuffer arena() {
+    return arena.duplicate();
+  }
+
+  /**
+   * @return where each fragment starts in the `arena()`, and then where the
+   *         last one ends
+   */
+  public IntBuffer offsets() {
+    return offsets.duplicate();
+  }
+
+  /**
+   * Use new fragments for some rows, e.g., for records that have changed
+   * since these fragments were built, or that have been added since. The
+   * arena is shared, not copied.
+   *
+   * @param rows      the rows to use the new fragments for, in ascending order
+   * @param fragments the new fragment for each of those rows, e.g., from `serialize`
+   * @return the same fragments as these (not counting any earlier
+   *         replacements), except for the given rows
+   */
+  public JsonFragments with(int[] rows, byte[][] fragments) {
+    return new JsonFragments(arena, offsets, rows, fragments);
+  }
+
+  // The index of the row's replacement fragment, or -1 if it uses the arena's
+  private int replacement(int row) {
+    if (replacedRows.length == 0) {
+      return -1;
+    }
+    int i = Arrays.binarySearch(replacedRows, row);
+    return i < 0 ? -1 : i;
+  }
+
+  /**
+   * @param row a row
+   * @return the JSON of the record in that row
+   */
+  public byte[] fragment(int row) {
+    int replacement = replacement(row);
+    if (replacement >= 0) {
+      return replacements[replacement];
+    }
+    int start = offsets.get(row);
+    byte[] json = new byte[offsets.get(row + 1) - start];
+    arena.get(start, json);
+    return json;
+  }
+
+  /**
+   * Write the records in the given rows as a JSON array.
+   *
+   * @param out  where to write the array; this is flushed but not closed
+   * @param rows the rows of the records, in the order they should be written
+   * @throws IOException if writing to the stream fails
+   */
+  public void write(OutputStream out, int[] rows) throws IOException {
+    write(out, rows, null);
+  }
+
+  /**
+   * Write the records in the given rows as a JSON array, with something
+   * else (e.g., from `missing`) in place of any records that don't exist.
+   *
+   * @param out     where to write the array; this is flushed but not closed
+   * @param rows    the rows of the records, in the order they should be
+   *                written, with -1 for each record that doesn't exist
+   * @param missing the JSON to write in place of the record at each
+   *                position in `rows` that's -1
+   * @throws IOException if writing to the stream fails
+   */
+  public void write(OutputStream out, int[] rows, IntFunction<byte[]> missing) throws IOException {
+    byte[] copy = arena.hasArray() ? null : new byte[COPY_BYTES];
+    out.write('[');
+    for (int i = 0; i < rows.length; i++) {
+      if (i > 0) {
+        out.write(',');
+      }
+      if (rows[i] < 0) {
+        out.write(missing.apply(i));
+        continue;
+      }
+      int replacement = replacement(rows[i]);
+      if (replacement >= 0) {
+        out.write(replacements[replacement]);
+        continue;
+      }
+      int start = offsets.get(rows[i]);
+      int end = offsets.get(rows[i] + 1);
+      if (copy == null) {
+        out.write(arena.array(), arena.arrayOffset() + start, end - start);
+      } else {
+        for (; start < end; start += copy.length) {
+          int length = Math.min(copy.length, end - start);
+          arena.get(start, copy, 0, length);
+          out.write(copy, 0, length);
+        }
+      }
+    }
+    out.write(']');
+    out.flush();
+  }
+
+  /**
+   * Send the records in the given rows as a JSON array in the response
+   * body, writing straight into the response's output stream.
+   *
+   * @param ctx  a Javalin HTTP context
+   * @param rows the rows of the records, in the order they should be sent
+   */
+  public void write(Context ctx, int[] rows) {
+    write(ctx, rows, null);
+  }
+
+  /**
+   * Send the records in the given rows as a JSON array in the response
+   * body, like `write(Context, int[])`, with something else in place of
+   * any records that don't exist (see `write(OutputStream, int[], IntFunction)`).
+   *
+   * @param ctx     a Javalin HTTP context
+   * @param rows    the rows of the records, in the order they should be
+   *                sent, with -1 for each record that doesn't exist
+   * @param missing the JSON to send in place of the record at each
+   *                position in `rows` that's -1
+   */
+  public void write(Context ctx, int[] rows, IntFunction<byte[]> missing) {
+    ctx.contentType("application/json");
+    try {
+      write(ctx.outputStream(), rows, missing);
+    } catch (IOException e) {
+      // Most likely the client went away part way through the response
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @param rows the rows of some records
+   * @return how many bytes of UTF-8 a JSON array of those records takes up
+   */
+  public long length(int[] rows) {
+    // The brackets, plus a comma between each pair of records
+    long length = 2 + Math.max(0, rows.length - 1);
+    for (int row : rows) {
+      int replacement = replacement(row);
+      length += replacement >= 0 ? replacements[replacement].length : offsets.get(row + 1) - offsets.get(row);
+    }
+    return length;
+  }
+
+  /**
+   * @param rows the rows of some records, in order
+   * @return the UTF-8 bytes of a JSON array of those records
+   * @throws ArithmeticException if that's too big for an array (see `length`)
+   */
+  public byte[] toBytes(int[] rows) {
+    // Copy the fragments straight into an array of exactly the right size
+    byte[] bytes = new byte[Math.toIntExact(length(rows))];
+    int end = 0;
+    bytes[end++] = '[';
+    for (int i = 0; i < rows.length; i++) {
+      if (i > 0) {
+        bytes[end++] = ',';
+      }
+      int replacement = replacement(rows[i]);
+      if (replacement >= 0) {
+        System.arraycopy(replacements[replacement], 0, bytes, end, replacements[replacement].length);
+        end += replacements[replacement].length;
+      } else {
+        int start = offsets.get(rows[i]);
+        int size = offsets.get(rows[i] + 1) - start;
+        arena.get(start, bytes, end, size);
+        end += size;
+      }
+    }
+    bytes[end] = ']';
+    return bytes;
+  }
+}
@@ -1,20 +1,33 @@
 package umm3601;
 
 import java.io.IOException;
+import java.nio.file.Path;
 
 import umm3601.user.UserController;
 import umm3601.todo.TodoController;
+import umm3601.todo.TodoDatabase;
 
 public class Main {
   public static final String USER_DATA_FILE = "/users.json";
   public static final String TODO_DATA_FILE = "/todos.json";
+  // `snapshot`, plus where to read the todos from and where to write them
+  private static final int SNAPSHOT_ARGS = 3;
 
   public static void main(String[] args) throws IOException {
+    // `snapshot TODOS SNAPSHOT` converts the todos (in any form the server can
+    // load) to a snapshot file, which can then be passed as `--todos=SNAPSHOT`
+    if (args.length > 0 && args[0].equals("snapshot")) {
+      if (args.length != SNAPSHOT_ARGS) {
+        throw new IllegalArgumentException("Usage: snapshot <todo data> <output file ending in .snapshot>");
+      }
+      new TodoDatabase(args[1]).writeSnapshot(Path.of(args[2]));
+      return;
+    }
 
     // The implementations of `Controller` used for the server. These will presumably
     // be one or more controllers, each of which implements the `Controller` interface.
     // You'll add your own controllers in `getControllers` as you create them.
-    final Controller[] controllers = Main.getControllers();
+    final Controller[] controllers = Main.getControllers(args);
 
     // Construct the server
     Server server = new Server(controllers);
@@ -30,18 +43,40 @@ public class Main {
    * implements the `Controller` interface. You'll add your own controllers
    * in to the array returned by this method as you create them.
    *
+   * `--users=PATH` and `--todos=PATH` (or the `USER_DATA` and `TODO_DATA`
+   * environment variables) can each name a data file or a directory of
+   * shards in the filesystem; otherwise the data bundled in the classpath
+   * is used.
+   *
+   * `--todo-log=PATH` (or the `TODO_LOG` environment variable) names a file
+   * to keep writes to the todos in, so they survive a restart (see
+   * `TodoLog`); without it, they only last until the server stops.
+   *
+   * @param args the command line arguments
    * @return An array of implementations of `Controller` for the server.
-   * @throws IOException
+   * @throws IOException if any of the data can't be loaded
    */
-  static Controller[] getControllers() throws IOException {
+  static Controller[] getControllers(String[] args) throws IOException {
     Controller[] controllers = new Controller[] {
       // You would add additional controllers here, as you create them,
       // although you need to make sure that each of your new controllers implements
       // the `Controller` interface.
-      UserController.buildUserController(USER_DATA_FILE),
-      TodoController.buildTodoController(TODO_DATA_FILE)
+      UserController.buildUserController(dataSource(args, "--users=", "USER_DATA", USER_DATA_FILE)),
+      TodoController.buildTodoController(dataSource(args, "--todos=", "TODO_DATA", TODO_DATA_FILE),
+        dataSource(args, "--todo-log=", "TODO_LOG", null))
     };
     return controllers;
   }
 
+  // Where to read (or write) some data: the command line, the environment, or the default
+  private static String dataSource(String[] args, String option, String variable, String defaultFile) {
+    for (String arg : args) {
+      if (arg.startsWith(option)) {
+        return arg.substring(option.length());
+      }
+    }
+    String fromEnvironment = System.getenv(variable);
+    return fromEnvironment == null || fromEnvironment.isBlank() ? defaultFile : fromEnvironment;
+  }
+
 }
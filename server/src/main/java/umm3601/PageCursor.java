@@ -0,0 +1,150 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Opaque cursors for paging through a list endpoint with `?after=CURSOR&limit=N`.
+ * <p>
+ * A cursor records which ordering the page was taken from (e.g., `owner`, or
+ * the empty string for the "natural" order of the data file) and the position
+ * of the last item on the page within that ordering. The next page is then just
+ * the items after that position, so the database can jump straight to it
+ * instead of re-reading everything before it.
+ * <p>
+ * Where an item's position can change as others are written (e.g., in an
+ * ordering by some attribute, where a new item can go anywhere), the cursor
+ * also records a key: the value the last item on the page was ordered by. The
+ * database then works out where the next page starts from the key, in the
+ * ordering as it is now, rather than trusting the position (see `Keyed`).
+ * <p>
+ * Positions only mean something for the data they were worked out from, and
+ * a database that is reloaded or compacted numbers its items afresh, so a
+ * cursor also records the version of that data. One from any other version
+ * is turned away, and the client has to start again from the first page,
+ * rather than silently skipping or repeating items.
+ * <p>
+ * Clients shouldn't look inside a cursor; it's Base64 so that it is obviously
+ * not meant to be edited, and so it is safe to put in a URL as is.
+ */
+public final class PageCursor {
+
+  private PageCursor() {
+  }
+
+  /**
+   * Where a keyed cursor points: the position of the last item the client
+   * has already seen, and the key it was ordered by then.
+   *
+   * @param position the position of the item
+   * @param key      the key that was encoded with it, or null if there wasn't one
+   */
+  public record Keyed(int position, String key) {
+  }
+
+  /**
+   * Build the cursor for the item at the given position.
+   *
+   * @param data     the version of the data the position is in
+   * @param ordering the name of the ordering the position is in
+   * @param position the position of the last item on the page
+   * @return the opaque cursor
+   */
+  public static String encode(String data, String ordering, int position) {
+    return encode(data, ordering, position, null);
+  }
+
+  /**
+   * Build the cursor for the item at the given position, with a key.
+   *
+   * @param data     the version of the data the position is in
+   * @param ordering the name of the ordering the position is in
+   * @param position the position of the last item on the page
+   * @param key      what the item was ordered by, or null for no key
+   * @return the opaque cursor
+   */
+  public static String encode(String data, String ordering, int position, String key) {
+    String cursor = data + ":" + ordering + ":" + position;
+    if (key != null) {
+      // The key might have colons in it too, so it's encoded separately
+      cursor += ":" + Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Get the position a cursor points at.
+   *
+   * @param cursor   the cursor the client sent
+   * @param data     the version of the data being paged through, which must
+   *                 be the same as the one the cursor came from
+   * @param ordering the ordering of the current request, which must be the
+   *                 same as the one the cursor came from
+   * @return the position of the last item the client has already seen
+   * @throws BadRequestResponse if the cursor isn't one of ours, is for a
+   *                            different ordering, or is out of date
+   */
+  public static int decode(String cursor, String data, String ordering) {
+    Keyed keyed = decodeKeyed(cursor, data, ordering, false);
+    return keyed.position();
+  }
+
+  /**
+   * Get the position and key a keyed cursor points at.
+   *
+   * @param cursor   the cursor the client sent
+   * @param data     the version of the data being paged through, which must
+   *                 be the same as the one the cursor came from
+   * @param ordering the ordering of the current request, which must be the
+   *                 same as the one the cursor came from
+   * @return the position and key of the last item the client has already seen
+   * @throws BadRequestResponse if the cursor isn't one of ours, has no key, is
+   *                            for a different ordering, or is out of date
+   */
+  public static Keyed decodeKeyed(String cursor, String data, String ordering) {
+    return decodeKeyed(cursor, data, ordering, true);
+  }
+
+  private static Keyed decodeKeyed(String cursor, String data, String ordering, boolean keyed) {
+    String decoded;
+    try {
+      decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("Specified cursor '" + cursor + "' is not a valid cursor");
+    }
+    // The version, position and key never have a colon in them, but the
+    // ordering might
+    String key = null;
+    int end = decoded.length();
+    if (keyed) {
+      end = decoded.lastIndexOf(':');
+      if (end < 0) {
+        throw new BadRequestResponse("Specified cursor '" + cursor + "' doesn't belong to this ordering");
+      }
+      try {
+        key = new String(Base64.getUrlDecoder().decode(decoded.substring(end + 1)), StandardCharsets.UTF_8);
+      } catch (IllegalArgumentException e) {
+        throw new BadRequestResponse("Specified cursor '" + cursor + "' is not a valid cursor");
+      }
+    }
+    int first = decoded.indexOf(':');
+    int colon = decoded.lastIndexOf(':', end - 1);
+    if (first < 0 || first >= colon || !decoded.substring(first + 1, colon).equals(ordering)) {
+      throw new BadRequestResponse("Specified cursor '" + cursor + "' doesn't belong to this ordering");
+    }
+    if (!decoded.substring(0, first).equals(data)) {
+      throw new BadRequestResponse("Specified cursor '" + cursor + "' is out of date; start again from the first page");
+    }
+    try {
+      int position = Integer.parseInt(decoded.substring(colon + 1, end));
+      if (position < 0) {
+        throw new NumberFormatException();
+      }
+      return new Keyed(position, key);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified cursor '" + cursor + "' is not a valid cursor");
+    }
+  }
+}
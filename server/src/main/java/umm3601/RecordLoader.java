@@ -0,0 +1,412 @@
+package umm3601;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Reads the records in a data file (e.g., `todos.json`) one at a time,
+ * handing each one off as soon as it has been parsed.
+ * <p>
+ * Reading the whole file with `objectMapper.readValue(reader, Todo[].class)`
+ * means Jackson builds its own list of every record, then copies it into an
+ * array, and only then can we start building indexes. Here each record goes
+ * to a callback as soon as it's parsed, so a database can store it and
+ * index it in the same pass.
+ * <p>
+ * Two formats are supported, told apart by the first non-blank character:
+ *
+ * - a JSON array of records (`[ {...}, {...} ]`), which is read by a
+ *   single streaming parser, and
+ * - newline-delimited JSON (one `{...}` record per line). Since every line
+ *   stands on its own, this is split into chunks at line breaks and the
+ *   chunks are parsed in parallel on the common fork/join pool.
+ *   The records are still handed over in file order, each chunk's as soon
+ *   as it and the chunks before it have been parsed; only a few chunks are
+ *   parsed ahead of the one being handed over, so only their records are
+ *   ever held at once.
+ *
+ * Either way, the number of records and bytes read, and how fast, is logged.
+ * <p>
+ * Data can come from the classpath (like the `todos.json` bundled with the
+ * server) or from the filesystem, so it can be refreshed without rebuilding
+ * the server. A filesystem path can be a single file or a directory of
+ * shards (`*.json`, `*.ndjson`, or `*.jsonl` files). Files are read through
+ * memory-mapped `FileChannel`s. A single file is read just like a resource,
+ * handing each record over as it's parsed; the shards in a directory are
+ * read a few at a time, concurrently, and each is handed over (in file-name
+ * order) as soon as it and the shards before it have been read.
+ */
+public final class RecordLoader {
+
+  // The file extensions of shards in a data directory
+  private static final List<String> SHARD_EXTENSIONS = List.of(".json", ".ndjson", ".jsonl");
+  // Newline-delimited input is split into chunks of about this many bytes
+  static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+  // How many chunks (or shards) per thread in the fork/join pool are parsed
+  // ahead of the one being handed over
+  private static final int TASKS_PER_THREAD = 2;
+
+  // The bytes of a UTF-8 byte order mark, which some editors put at the
+  // start of a file
+  private static final int[] BYTE_ORDER_MARK = {0xEF, 0xBB, 0xBF};
+  private static final double NANOS_PER_MILLI = 1e6;
+  private static final double BYTES_PER_MB = 1e6;
+  private static final double MILLIS_PER_SECOND = 1e3;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RecordLoader.class);
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private RecordLoader() {
+  }
+
+  /**
+   * Read every record from a data source, in order. The source is looked
+   * for first on the classpath, and then in the filesystem.
+   *
+   * @param <T>      the type of the records
+   * @param source   a classpath resource (e.g., `/todos.json`), or the path of
+   *                 a file or directory of shards
+   * @param type     the class of the records
+   * @param onRecord called with each record, in order
+   * @return the number of records read
+   * @throws IOException if the source can't be found or read, or isn't valid JSON
+   */
+  public static <T> int load(String source, Class<T> type, Consumer<? super T> onRecord) throws IOException {
+    InputStream resource = RecordLoader.class.getResourceAsStream(source);
+    if (resource != null) {
+      return load(source, resource, type, onRecord);
+    }
+    Path path;
+    try {
+      path = Path.of(source);
+    } catch (InvalidPathException e) {
+      throw new IOException("Could not find " + source, e);
+    }
+    if (!Files.exists(path)) {
+      throw new IOException("Could not find " + source);
+    }
+    return loadPath(path, type, onRecord);
+  }
+
+  /**
+   * Read every record from a file, or from every shard in a directory.
+   * Shards are read concurrently, but their records are handed over in
+   * order of the shards' file names.
+   *
+   * @param <T>      the type of the records
+   * @param path     a data file, or a directory of shards
+   * @param type     the class of the records
+   * @param onRecord called with each record, in order
+   * @return the number of records read
+   * @throws IOException if a file can't be read or isn't valid JSON
+   */
+  public static <T> int loadPath(Path path, Class<T> type, Consumer<? super T> onRecord) throws IOException {
+    if (!Files.isDirectory(path)) {
+      return readShard(path, type, onRecord).records;
+    }
+    long start = System.nanoTime();
+    List<Path> shards = listShards(path);
+    long[] bytes = new long[shards.size()];
+    int records = inOrder(shards.size(), i -> {
+      List<T> shard = new ArrayList<>();
+      try {
+        bytes[i] = readShard(shards.get(i), type, shard::add).bytes;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return shard;
+    }, onRecord);
+    if (shards.size() != 1) {
+      LoadStats stats = new LoadStats(records, Arrays.stream(bytes).sum());
+      logThroughput(path + " (" + shards.size() + " shards)", stats, System.nanoTime() - start);
+    }
+    return records;
+  }
+
+  // The data files in a directory, sorted by name
+  private static List<Path> listShards(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+        .filter(Files::isRegularFile)
+        .filter(file -> SHARD_EXTENSIONS.stream().anyMatch(file.getFileName().toString()::endsWith))
+        .sorted()
+        .toList();
+    }
+  }
+
+  /**
+   * Read all the records in one file. The file is memory-mapped, so the
+   * records are parsed straight out of the page cache rather than the file
+   * being copied onto the heap first.
+   *
+   * @param <T>      the type of the records
+   * @param file     the file to read
+   * @param type     the class of the records
+   * @param onRecord called with each record, in order, as soon as it can be
+   * @return the number of records in the file, and the file's size
+   * @throws IOException if the file can't be read or isn't valid JSON
+   */
+  private static <T> LoadStats readShard(Path file, Class<T> type, Consumer<? super T> onRecord)
+      throws IOException {
+    long start = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is too large to map; split it into smaller shards");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      LoadStats stats = firstNonBlank(buffer) == '['
+        ? loadArray(new ByteBufferInputStream(buffer.duplicate()), type, onRecord)
+        : loadLines(buffer, type, onRecord, DEFAULT_CHUNK_SIZE);
+      logThroughput(file.toString(), stats, System.nanoTime() - start);
+      return new LoadStats(stats.records, channel.size());
+    }
+  }
+
+  /**
+   * Read every record from the given input, in order.
+   *
+   * @param <T>      the type of the records
+   * @param name     what to call the input when logging
+   * @param in       the input to read; this is closed when we're done
+   * @param type     the class of the records
+   * @param onRecord called with each record, in the order they appear in the input
+   * @return the number of records read
+   * @throws IOException if the input can't be read or isn't valid JSON
+   */
+  public static <T> int load(String name, InputStream in, Class<T> type, Consumer<? super T> onRecord)
+      throws IOException {
+    long start = System.nanoTime();
+    try (BufferedInputStream input = new BufferedInputStream(in)) {
+      int first = peekFirstNonBlank(input);
+      LoadStats stats = first == '['
+        ? loadArray(input, type, onRecord)
+        : loadLines(ByteBuffer.wrap(input.readAllBytes()), type, onRecord, DEFAULT_CHUNK_SIZE);
+      logThroughput(name, stats, System.nanoTime() - start);
+      return stats.records;
+    }
+  }
+
+  /**
+   * Read every record from newline-delimited JSON in the given buffer,
+   * parsing chunks of it in parallel.
+   *
+   * @param <T>       the type of the records
+   * @param name      what to call the input when logging
+   * @param buffer    the input, from its position to its limit
+   * @param type      the class of the records
+   * @param onRecord  called with each record, in the order they appear in the input
+   * @param chunkSize roughly how many bytes each parallel task should parse
+   * @return the number of records read
+   * @throws IOException if the input isn't valid JSON
+   */
+  public static <T> int loadLines(String name, ByteBuffer buffer, Class<T> type, Consumer<? super T> onRecord,
+      int chunkSize) throws IOException {
+    long start = System.nanoTime();
+    LoadStats stats = loadLines(buffer, type, onRecord, chunkSize);
+    logThroughput(name, stats, System.nanoTime() - start);
+    return stats.records;
+  }
+
+  // Skip the whitespace (and any byte order mark) at the start, which neither
+  // format needs, and look at the byte after it without consuming that; only
+  // one byte is ever marked, so however much whitespace there is, nothing
+  // more than the usual buffer is held on to
+  private static int peekFirstNonBlank(BufferedInputStream input) throws IOException {
+    int c;
+    do {
+      input.mark(1);
+      c = input.read();
+    } while (Character.isWhitespace(c) || isByteOrderMark(c));
+    input.reset();
+    return c;
+  }
+
+  // The same, for a buffer
+  private static int firstNonBlank(ByteBuffer buffer) {
+    for (int i = buffer.position(); i < buffer.limit(); i++) {
+      int c = Byte.toUnsignedInt(buffer.get(i));
+      if (!Character.isWhitespace(c) && !isByteOrderMark(c)) {
+        return c;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isByteOrderMark(int c) {
+    for (int b : BYTE_ORDER_MARK) {
+      if (c == b) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static <T> LoadStats loadArray(InputStream input, Class<T> type, Consumer<? super T> onRecord)
+      throws IOException {
+    ObjectReader reader = MAPPER.readerFor(type);
+    int records = 0;
+    try (JsonParser parser = MAPPER.getFactory().createParser(input)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IOException("Expected a JSON array of records");
+      }
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        onRecord.accept(reader.readValue(parser));
+        records++;
+      }
+      if (parser.currentToken() != JsonToken.END_ARRAY) {
+        throw new IOException("Expected a record but found " + parser.currentToken());
+      }
+      return new LoadStats(records, parser.currentLocation().getByteOffset());
+    }
+  }
+
+  private static <T> LoadStats loadLines(ByteBuffer buffer, Class<T> type, Consumer<? super T> onRecord,
+      int chunkSize) throws IOException {
+    List<ByteBuffer> chunks = splitAtLineBreaks(buffer, chunkSize);
+    ObjectReader reader = MAPPER.readerFor(type);
+    int records = inOrder(chunks.size(), i -> RecordLoader.<T>parseChunk(reader, chunks.get(i)), onRecord);
+    return new LoadStats(records, buffer.remaining());
+  }
+
+  /**
+   * Run some tasks on the common fork/join pool, handing over the records
+   * each one produces in the order of the tasks, as soon as it and all the
+   * tasks before it have finished. Only a few tasks are started ahead of
+   * the one being handed over, so only their records are held at once.
+   *
+   * @param <T>      the type of the records
+   * @param count    the number of tasks
+   * @param task     runs the task with the given number, and returns its
+   *                 records; an `UncheckedIOException` it throws is
+   *                 thrown from here as an `IOException`
+   * @param onRecord called with each record, in order
+   * @return the number of records handed over
+   * @throws IOException if a task failed
+   */
+  private static <T> int inOrder(int count, IntFunction<List<T>> task, Consumer<? super T> onRecord)
+      throws IOException {
+    int ahead = Math.max(1, ForkJoinPool.getCommonPoolParallelism()) * TASKS_PER_THREAD;
+    Deque<CompletableFuture<List<T>>> running = new ArrayDeque<>();
+    int next = 0;
+    int records = 0;
+    try {
+      while (next < count || !running.isEmpty()) {
+        while (next < count && running.size() < ahead) {
+          int i = next++;
+          running.add(CompletableFuture.supplyAsync(() -> task.apply(i)));
+        }
+        List<T> finished = running.remove().join();
+        finished.forEach(onRecord);
+        records += finished.size();
+      }
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException failure) {
+        throw failure.getCause();
+      }
+      throw e;
+    } finally {
+      // Don't start on the rest after a failure
+      running.forEach(future -> future.cancel(false));
+    }
+    return records;
+  }
+
+  /**
+   * Split the buffer into pieces of about `chunkSize` bytes, with each piece
+   * (except possibly the last) ending just after a newline.
+   *
+   * @param buffer    the buffer to split, from its position to its limit
+   * @param chunkSize how big to try to make each piece
+   * @return views of the pieces, in order
+   */
+  static List<ByteBuffer> splitAtLineBreaks(ByteBuffer buffer, int chunkSize) {
+    List<ByteBuffer> chunks = new ArrayList<>();
+    int start = buffer.position();
+    int limit = buffer.limit();
+    while (start < limit) {
+      int end = (int) Math.min(limit, (long) start + chunkSize);
+      while (end < limit && buffer.get(end - 1) != '\n') {
+        end++;
+      }
+      chunks.add(buffer.slice(start, end - start));
+      start = end;
+    }
+    return chunks;
+  }
+
+  private static <T> List<T> parseChunk(ObjectReader reader, ByteBuffer chunk) {
+    List<T> records = new ArrayList<>();
+    try (MappingIterator<T> values = reader.readValues(new ByteBufferInputStream(chunk))) {
+      while (values.hasNextValue()) {
+        records.add(values.nextValue());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return records;
+  }
+
+  private static void logThroughput(String name, LoadStats stats, long nanos) {
+    double millis = Math.max(nanos, 1) / NANOS_PER_MILLI;
+    double megabytes = stats.bytes / BYTES_PER_MB;
+    double seconds = millis / MILLIS_PER_SECOND;
+    LOGGER.info(String.format("Loaded %d records (%.1f MB) from %s in %.0f ms: %.0f records/s, %.1f MB/s",
+      stats.records, megabytes, name, millis, stats.records / seconds, megabytes / seconds));
+  }
+
+  private record LoadStats(int records, long bytes) {
+  }
+
+  // Lets Jackson read straight out of a (possibly memory-mapped) buffer
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? Byte.toUnsignedInt(buffer.get()) : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+  }
+}
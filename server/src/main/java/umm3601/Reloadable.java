@@ -0,0 +1,301 @@
+package umm3601;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A dataset (e.g., a `TodoDatabase`) that can be reloaded while the server
+ * is running.
+ * <p>
+ * The current version is held in a single `AtomicReference`. Readers just
+ * `get()` it, with no locks, and keep using what they got for the rest of
+ * their request. A database never changes once it's built, so a request
+ * sees one consistent version even if a reload finishes part way through
+ * it. A reload builds a whole new database on a background thread, off to
+ * the side, and then publishes it with one `set`, so nobody ever sees a
+ * half-built one. If the new data can't be loaded (e.g., because the file
+ * is only half written), the old version stays.
+ * <p>
+ * Reloads can be asked for directly (`reload`, e.g., from an admin
+ * endpoint), or happen whenever the data changes in the filesystem (`watch`).
+ * <p>
+ * The dataset can also be written to (`update`), which works the same way:
+ * a write makes a new version from the current one (cheaply, since it can
+ * share nearly everything with it) and publishes that. Writers take turns,
+ * but readers never wait for them. A dataset that has been written to a
+ * lot can be rebuilt in the background (`rebuild`) while writes carry on.
+ *
+ * @param <T> the type of the dataset
+ */
+public final class Reloadable<T> implements Closeable {
+  // A file is usually written in several goes, so a reload waits until
+  // there haven't been any changes for this long
+  public static final long QUIET_MILLIS = 200;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Reloadable.class);
+
+  /**
+   * Loads a whole new version of a dataset.
+   *
+   * @param <T> the type of the dataset
+   */
+  @FunctionalInterface
+  public interface Loader<T> {
+    T load() throws IOException;
+  }
+
+  private final AtomicReference<T> current;
+  private final Loader<T> loader;
+  private final List<Consumer<? super T>> listeners = new CopyOnWriteArrayList<>();
+  // Reloads run one at a time, on a single background thread
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "reload");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final List<WatchService> watchers = new CopyOnWriteArrayList<>();
+  // Held while publishing a new version, so writers (and reloads) take turns
+  private final Object publishing = new Object();
+  // The reload that's waiting to start, if there is one, which any other
+  // requests for a reload can just wait for too
+  private CompletableFuture<T> queued;
+  // Likewise, the rebuild that hasn't finished yet, if there is one
+  private CompletableFuture<T> rebuilding;
+
+  /**
+   * @param initial the version of the dataset to start with
+   * @param loader  how to load a new version, or null if it can't be reloaded
+   */
+  public Reloadable(T initial, Loader<T> loader) {
+    this.current = new AtomicReference<>(initial);
+    this.loader = loader;
+  }
+
+  /**
+   * @return the current version of the dataset
+   */
+  public T get() {
+    return current.get();
+  }
+
+  /**
+   * Do something every time a new version is published, e.g., throw away
+   * anything that was worked out from the old one. Listeners are called
+   * after the new version is in place, on the thread that published it
+   * (the reload thread, or a writer's), before the next one can be.
+   *
+   * @param listener called with each new version
+   * @return this, for chaining
+   */
+  public Reloadable<T> onPublish(Consumer<? super T> listener) {
+    listeners.add(listener);
+    return this;
+  }
+
+  /**
+   * @return whether the dataset has a loader, so `reload` can work
+   */
+  public boolean canReload() {
+    return loader != null;
+  }
+
+  /**
+   * Load a new version of the dataset in the background, and publish it.
+   * If a reload is already waiting to start, this just waits for that one.
+   *
+   * @return the new version, once it has been published; this fails (and
+   *         the old version stays) if it couldn't be loaded
+   */
+  public synchronized CompletableFuture<T> reload() {
+    if (loader == null || executor.isShutdown()) {
+      return CompletableFuture.failedFuture(new IllegalStateException("This data can't be reloaded"));
+    }
+    if (queued == null) {
+      CompletableFuture<T> reloaded = new CompletableFuture<>();
+      queued = reloaded;
+      executor.execute(() -> run(reloaded));
+    }
+    return queued;
+  }
+
+  private void run(CompletableFuture<T> reloaded) {
+    synchronized (this) {
+      // Any changes from here on need another reload
+      queued = null;
+    }
+    try {
+      T next = loader.load();
+      synchronized (publishing) {
+        publish(next);
+      }
+      reloaded.complete(next);
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Couldn't reload the data, so the old version stays: {}", e.toString());
+      reloaded.completeExceptionally(e);
+    }
+  }
+
+  // Only called while holding `publishing`
+  private void publish(T next) {
+    current.set(next);
+    for (Consumer<? super T> listener : listeners) {
+      listener.accept(next);
+    }
+  }
+
+  /**
+   * Write to the dataset: make a new version from the current one, and
+   * publish it. Writes are made one at a time, so none is ever lost to
+   * another that started from the same version; readers carry on with
+   * whichever version they already have.
+   *
+   * @param change makes the new version from the current one; if it throws
+   *               (e.g., because the write isn't allowed), nothing changes
+   * @return the new version, which is now the current one
+   */
+  public T update(UnaryOperator<T> change) {
+    synchronized (publishing) {
+      T next = change.apply(current.get());
+      publish(next);
+      return next;
+    }
+  }
+
+  /**
+   * Rebuild the current version in the background (e.g., to fold a pile of
+   * writes into fresh indexes), and publish the result. Writes can carry on
+   * in the meantime, so once the rebuild is done, `catchUp` is given it,
+   * along with the version that's current by then, and returns the one to
+   * publish: the rebuilt version, plus whatever was written since it was
+   * started. If a rebuild is already under way, this just waits for that one.
+   * <p>
+   * Rebuilds run on the reload thread, so a reload never lands in the
+   * middle of one.
+   *
+   * @param rebuild makes the rebuilt version from the current one
+   * @param catchUp makes the version to publish from the rebuilt one and
+   *                the current one
+   * @return the version that was published, once it has been; this fails
+   *         (and nothing changes) if the rebuild does
+   */
+  public synchronized CompletableFuture<T> rebuild(UnaryOperator<T> rebuild, BinaryOperator<T> catchUp) {
+    if (executor.isShutdown()) {
+      return CompletableFuture.failedFuture(new IllegalStateException("This data can't be rebuilt any more"));
+    }
+    if (rebuilding == null) {
+      CompletableFuture<T> rebuilt = new CompletableFuture<>();
+      rebuilding = rebuilt;
+      executor.execute(() -> {
+        try {
+          T next = rebuild.apply(current.get());
+          rebuilt.complete(update(latest -> catchUp.apply(next, latest)));
+        } catch (RuntimeException e) {
+          LOGGER.warn("Couldn't rebuild the data, so it stays as it is: {}", e.toString());
+          rebuilt.completeExceptionally(e);
+        } finally {
+          synchronized (this) {
+            rebuilding = null;
+          }
+        }
+      });
+    }
+    return rebuilding;
+  }
+
+  /**
+   * Reload whenever a data source changes in the filesystem. Classpath
+   * resources (like the bundled data) can't change, so they aren't watched.
+   * For a directory of shards, any change to the files in it counts.
+   *
+   * @param source the data source, as given to `RecordLoader.load`
+   * @return this, for chaining
+   * @throws IOException if the source can't be watched
+   */
+  public Reloadable<T> watch(String source) throws IOException {
+    if (RecordLoader.class.getResource(source) != null) {
+      return this;
+    }
+    Path path;
+    try {
+      path = Path.of(source).toAbsolutePath();
+    } catch (InvalidPathException e) {
+      return this;
+    }
+    if (!Files.exists(path)) {
+      return this;
+    }
+    boolean isDirectory = Files.isDirectory(path);
+    Path directory = isDirectory ? path : path.getParent();
+    WatchService watcher = directory.getFileSystem().newWatchService();
+    directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+      StandardWatchEventKinds.ENTRY_DELETE);
+    watchers.add(watcher);
+    Thread thread = new Thread(() -> watch(watcher, isDirectory ? null : path.getFileName()), "watch " + path);
+    thread.setDaemon(true);
+    thread.start();
+    return this;
+  }
+
+  // Reload after each burst of changes to `file` (or to anything, if it's null)
+  private void watch(WatchService watcher, Path file) {
+    try {
+      while (true) {
+        boolean changed = changed(watcher.take(), file);
+        WatchKey more = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        while (more != null) {
+          changed |= changed(more, file);
+          more = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (changed) {
+          reload();
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // Stopped by `close`
+    }
+  }
+
+  private static boolean changed(WatchKey key, Path file) {
+    boolean changed = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      // An overflow means some events were lost, so assume the worst
+      changed |= file == null || event.kind() == StandardWatchEventKinds.OVERFLOW || file.equals(event.context());
+    }
+    key.reset();
+    return changed;
+  }
+
+  /**
+   * Stop watching for changes, and stop reloading.
+   *
+   * @throws IOException if a watcher can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    for (WatchService watcher : watchers) {
+      watcher.close();
+    }
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,246 @@
+package umm3601;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of finished list responses, keyed by their (normalized)
+ * query parameters.
+ * <p>
+ * The data never changes once it has been loaded, so two requests with the
+ * same query always get the same response, and there's no need to filter,
+ * sort, and serialize it all again. Each entry holds the serialized JSON
+ * body (and the next-page cursor, if there is one), so a hit is just a copy
+ * of bytes into the response.
+ * <p>
+ * The cache is bounded by the total size of the bodies in it, evicting the
+ * least recently used entries first. A response can also be `pin`ned, which
+ * keeps it until the cache is cleared, however long it goes unused; that's
+ * for the few responses, like the whole unfiltered list, that are asked for
+ * all the time. Pinned responses count against the bound too, but can only
+ * take up half of it, so there's always room for the rest. If the data is
+ * ever reloaded, the whole cache must be `clear`ed, since every entry was
+ * built from the old data. The hit, miss, and eviction counts are kept for
+ * monitoring.
+ * <p>
+ * Every method synchronizes on the cache, so a caller can do the same to
+ * make several calls (or a check and a call) happen as one.
+ * <p>
+ * Each response also keeps a gzipped copy of its body (see `Gzip`), so that
+ * it's compressed once when it's built instead of on every request.
+ * <p>
+ * Keys only cover the query, not the endpoint, so each endpoint needs its
+ * own cache.
+ */
+public final class ResponseCache {
+  // The default bound on the total size of the cached bodies: 16MB
+  public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+  // The response header saying whether a response came from the cache
+  public static final String CACHE_HEADER = "X-Cache";
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  /**
+   * A cached response: the serialized JSON body, the same body gzipped,
+   * and the cursor for the next page.
+   */
+  public static final class Response {
+    private final byte[] body;
+    private final byte[] gzipped;
+    private final String nextCursor;
+
+    /**
+     * Build a response, gzipping its body.
+     *
+     * @param body       the serialized JSON body
+     * @param nextCursor the cursor for the next page, or null if there isn't one
+     */
+    public Response(byte[] body, String nextCursor) {
+      this.body = body;
+      this.gzipped = Gzip.compress(body);
+      this.nextCursor = nextCursor;
+    }
+
+    public byte[] body() {
+      return body;
+    }
+
+    /**
+     * @return the body, gzipped, or null if it's too small to be worth it
+     */
+    public byte[] gzipped() {
+      return gzipped;
+    }
+
+    public String nextCursor() {
+      return nextCursor;
+    }
+
+    /**
+     * @return how many bytes the response takes up, both bodies together
+     */
+    public long size() {
+      return body.length + (gzipped == null ? 0 : gzipped.length);
+    }
+  }
+
+  private final long maxBytes;
+  // Access-ordered, so iteration starts at the least recently used entry
+  private final LinkedHashMap<String, Response> entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+  // Never evicted, and together never more than `maxPinnedBytes()`
+  private final Map<String, Response> pinned = new HashMap<>();
+  // The size of the responses in `entries`, and in `pinned`
+  private long bytes;
+  private long pinnedBytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxBytes the most bytes of response bodies to keep
+   */
+  public ResponseCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Turn query parameters into a cache key. Parameters are sorted by name,
+   * so the order they came in doesn't matter, but the order of a repeated
+   * parameter's values does. Names and values are URL-encoded so that no
+   * two different queries get the same key.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the key for the query
+   */
+  public static String key(Map<String, List<String>> queryParams) {
+    StringBuilder key = new StringBuilder();
+    for (Map.Entry<String, List<String>> param : new TreeMap<>(queryParams).entrySet()) {
+      for (String value : param.getValue()) {
+        key.append(key.length() == 0 ? "" : "&")
+          .append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8))
+          .append('=')
+          .append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * @param key the key for a query (see `key`)
+   * @return the cached response for it, or null if there isn't one
+   */
+  public synchronized Response get(String key) {
+    Response response = pinned.get(key);
+    if (response == null) {
+      response = entries.get(key);
+    }
+    (response == null ? misses : hits).incrementAndGet();
+    return response;
+  }
+
+  /**
+   * Cache a response, evicting the least recently used ones to make room
+   * for it. A response bigger than the room left by the pinned ones isn't
+   * kept.
+   *
+   * @param key      the key for the query (see `key`)
+   * @param response the response to it
+   */
+  public synchronized void put(String key, Response response) {
+    if (response.size() > maxBytes - pinnedBytes) {
+      return;
+    }
+    Response old = entries.put(key, response);
+    bytes += response.size() - (old == null ? 0 : old.size());
+    evictToFit();
+  }
+
+  // Evict the least recently used responses until everything fits
+  private void evictToFit() {
+    Iterator<Response> oldest = entries.values().iterator();
+    while (bytes + pinnedBytes > maxBytes) {
+      bytes -= oldest.next().size();
+      oldest.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the most bytes the pinned responses can take up between them
+   */
+  public long maxPinnedBytes() {
+    return maxBytes / 2;
+  }
+
+  /**
+   * Cache a response until the cache is cleared, however long it goes
+   * unused, evicting unpinned ones to make room for it. It's only kept if
+   * it fits in what's left of `maxPinnedBytes()`.
+   *
+   * @param key      the key for the query (see `key`)
+   * @param response the response to it
+   * @return whether it was kept
+   */
+  public synchronized boolean pin(String key, Response response) {
+    Response old = pinned.get(key);
+    long size = pinnedBytes - (old == null ? 0 : old.size()) + response.size();
+    if (size > maxPinnedBytes()) {
+      return false;
+    }
+    pinned.put(key, response);
+    pinnedBytes = size;
+    // It's no use keeping it unpinned as well
+    Response unpinned = entries.remove(key);
+    if (unpinned != null) {
+      bytes -= unpinned.size();
+    }
+    evictToFit();
+    return true;
+  }
+
+  /**
+   * Throw away every cached response (pinned or not), e.g., because the
+   * data has changed.
+   */
+  public synchronized void clear() {
+    pinned.clear();
+    entries.clear();
+    bytes = 0;
+    pinnedBytes = 0;
+  }
+
+  /**
+   * @return how many responses are cached, not counting pinned ones
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the total size of the cached bodies (plain and gzipped),
+   *         pinned ones included
+   */
+  public synchronized long bytes() {
+    return bytes + pinnedBytes;
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  public long evictions() {
+    return evictions.get();
+  }
+}
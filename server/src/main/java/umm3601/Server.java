@@ -52,6 +52,8 @@ public class Server {
    *   JVM is shut down.
    * - Setting up a handler for uncaught exceptions to return an HTTP 500
    *   error.
+   * - Leaving compression of responses to Javalin, apart from the ones
+   *   that are precompressed (see `Gzip`).
    *
    * @return The Javalin server instance
    */
@@ -78,6 +80,14 @@ public class Server {
       // routes/endpoints that we add below on a page reachable
       // via the "/api" path.
       config.bundledPlugins.enableRouteOverview("/api");
+      // Javalin's default compression (gzip) is left on for everything
+      // that's built per request, including big lists that are streamed,
+      // which it compresses on the fly as they're written. Responses the
+      // controllers keep around (in a `ResponseCache`) were already gzipped
+      // once when they were built (the whole lists in the background, as
+      // each version of the data is published), and `Gzip.send` writes
+      // those straight to the servlet response, past this compression, so
+      // they're never compressed twice.
     });
 
     // This catches any uncaught exceptions thrown in the server
@@ -0,0 +1,143 @@
+package umm3601.todo;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A dictionary-encoded column of strings: each distinct value is stored
+ * once, and each row just holds the `int` code of its value.
+ * <p>
+ * Owners and categories only have a handful of distinct values, so this is
+ * far smaller than a reference per row, and every row with the same value
+ * hands back the very same `String`. The (small) dictionary is always on the
+ * heap; the codes may be in a memory-mapped snapshot (see `TodoSnapshot`).
+ */
+final class DictionaryColumn {
+  // The distinct values, indexed by code; may include null
+  private final String[] values;
+  // The code of each row's value
+  private final IntBuffer codes;
+
+  DictionaryColumn(String[] values, IntBuffer codes) {
+    this.values = values;
+    this.codes = codes;
+  }
+
+  /**
+   * Builds a `DictionaryColumn` one row at a time, giving each new value
+   * the next code as it is first seen.
+   */
+  static final class Builder {
+    private static final int INITIAL_ROWS = 16;
+
+    private final Map<String, Integer> codesByValue = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+    private int[] codes = new int[INITIAL_ROWS];
+    private int rows;
+
+    /**
+     * @param value the value for the next row; may be null
+     */
+    void add(String value) {
+      Integer code = codesByValue.get(value);
+      if (code == null) {
+        code = values.size();
+        codesByValue.put(value, code);
+        values.add(value);
+      }
+      if (rows == codes.length) {
+        codes = Arrays.copyOf(codes, rows * 2);
+      }
+      codes[rows++] = code;
+    }
+
+    /**
+     * @return a column holding all the rows added so far
+     */
+    DictionaryColumn build() {
+      return new DictionaryColumn(values.toArray(new String[0]), IntBuffer.wrap(Arrays.copyOf(codes, rows)));
+    }
+  }
+
+  // The dictionary and the raw codes, for writing to a snapshot
+  String[] values() {
+    return values.clone();
+  }
+
+  IntBuffer codes() {
+    return codes.duplicate();
+  }
+
+  /**
+   * Build the index from each value to the bitmap of the rows holding it.
+   *
+   * @return a map from each distinct value to the rows having that value
+   */
+  Map<String, RowBitmap> index() {
+    RowBitmap.Builder[] builders = new RowBitmap.Builder[values.length];
+    for (int code = 0; code < builders.length; code++) {
+      builders[code] = new RowBitmap.Builder();
+    }
+    for (int row = 0; row < codes.limit(); row++) {
+      builders[codes.get(row)].add(row);
+    }
+    Map<String, RowBitmap> index = new HashMap<>();
+    for (int code = 0; code < builders.length; code++) {
+      index.put(values[code], builders[code].build());
+    }
+    return index;
+  }
+
+  /**
+   * @param row a row number
+   * @return the value in that row
+   */
+  String get(int row) {
+    return values[codes.get(row)];
+  }
+
+  /**
+   * @param row a row number
+   * @return the code of the value in that row, an index into `values()`
+   */
+  int code(int row) {
+    return codes.get(row);
+  }
+
+  /**
+   * Sort every row by its value (nulls first). Only the dictionary itself
+   * needs a real sort; the rows are then placed with a counting sort on their
+   * codes, which is linear in the number of rows and stable, so rows with
+   * the same value stay in their original order.
+   *
+   * @return every row number, in sorted order
+   */
+  int[] sortOrder() {
+    Integer[] byValue = new Integer[values.length];
+    for (int code = 0; code < byValue.length; code++) {
+      byValue[code] = code;
+    }
+    Arrays.sort(byValue, Comparator.comparing(code -> values[code], Comparator.nullsFirst(Comparator.naturalOrder())));
+    // Where the first row with each code goes in the sorted order
+    int[] counts = new int[values.length];
+    for (int row = 0; row < codes.limit(); row++) {
+      counts[codes.get(row)]++;
+    }
+    int[] next = new int[values.length];
+    int position = 0;
+    for (int code : byValue) {
+      next[code] = position;
+      position += counts[code];
+    }
+    int[] order = new int[codes.limit()];
+    for (int row = 0; row < order.length; row++) {
+      order[next[codes.get(row)]++] = row;
+    }
+    return order;
+  }
+}
@@ -0,0 +1,107 @@
+package umm3601.todo;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An inverted index of the trigrams (runs of three bytes) in a text column,
+ * for answering substring searches like `?contains=` without scanning every
+ * row.
+ * <p>
+ * If a row contains a string then it contains every trigram of that string,
+ * so intersecting the rows of each of the string's trigrams gives a (usually
+ * small) set of candidates that is guaranteed to include every match. The
+ * candidates still have to be checked, since the trigrams could turn up in
+ * the wrong order or far apart, but that's far less work than checking
+ * every row. Working on the UTF-8 bytes means this holds for any text, not
+ * just ASCII (see `TextColumn`).
+ * <p>
+ * Strings shorter than three bytes don't have any trigrams, so they can't
+ * be looked up here; they're also short enough to match most rows anyway.
+ */
+final class NgramIndex {
+  // The number of bytes in each gram
+  static final int GRAM = 3;
+  private static final int BYTE_BITS = 8;
+  private static final int BYTE_MASK = 0xFF;
+
+  // Each trigram, packed into the low 24 bits of an int, to its rows
+  private final Map<Integer, RowBitmap> postings;
+
+  private NgramIndex(Map<Integer, RowBitmap> postings) {
+    this.postings = postings;
+  }
+
+  /**
+   * Index every row of a column.
+   *
+   * @param column the text to index
+   * @return the index of the trigrams of every row
+   */
+  static NgramIndex of(TextColumn column) {
+    Map<Integer, RowBitmap.Builder> builders = new HashMap<>();
+    for (int row = 0; row < column.size(); row++) {
+      // Each row is added once per distinct trigram, since a bitmap's rows
+      // have to be added in strictly ascending order
+      for (int gram : distinctGrams(column.bytesAt(row))) {
+        builders.computeIfAbsent(gram, k -> new RowBitmap.Builder()).add(row);
+      }
+    }
+    Map<Integer, RowBitmap> postings = new HashMap<>();
+    for (Map.Entry<Integer, RowBitmap.Builder> builder : builders.entrySet()) {
+      postings.put(builder.getKey(), builder.getValue().build());
+    }
+    return new NgramIndex(postings);
+  }
+
+  // The distinct trigrams in some bytes, packed into ints, in ascending order
+  private static int[] distinctGrams(byte[] bytes) {
+    if (bytes.length < GRAM) {
+      return new int[0];
+    }
+    int[] grams = new int[bytes.length - GRAM + 1];
+    for (int i = 0; i < grams.length; i++) {
+      int gram = 0;
+      for (int j = 0; j < GRAM; j++) {
+        gram = (gram << BYTE_BITS) | (bytes[i + j] & BYTE_MASK);
+      }
+      grams[i] = gram;
+    }
+    Arrays.sort(grams);
+    int distinct = 0;
+    for (int i = 0; i < grams.length; i++) {
+      if (i == 0 || grams[i] != grams[i - 1]) {
+        grams[distinct++] = grams[i];
+      }
+    }
+    return Arrays.copyOf(grams, distinct);
+  }
+
+  /**
+   * Find the rows that might contain the given string.
+   *
+   * @param needle the UTF-8 encoding of the string to look for
+   * @return the rows that contain every trigram of the needle (a superset
+   *         of the rows that contain the needle), or null if the needle is
+   *         too short to have any trigrams
+   */
+  RowBitmap candidates(byte[] needle) {
+    int[] grams = distinctGrams(needle);
+    if (grams.length == 0) {
+      return null;
+    }
+    RowBitmap[] lists = new RowBitmap[grams.length];
+    for (int i = 0; i < grams.length; i++) {
+      lists[i] = postings.getOrDefault(grams[i], RowBitmap.EMPTY);
+    }
+    // Intersect the shortest lists first, so the candidates shrink fastest
+    Arrays.sort(lists, Comparator.comparingInt(RowBitmap::cardinality));
+    RowBitmap candidates = lists[0];
+    for (int i = 1; i < lists.length && candidates.cardinality() > 0; i++) {
+      candidates = candidates.and(lists[i]);
+    }
+    return candidates;
+  }
+}
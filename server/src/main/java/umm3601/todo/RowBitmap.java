@@ -0,0 +1,353 @@
+package umm3601.todo;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntConsumer;
+
+/**
+ * An immutable, compressed set of row numbers, in the style of a "roaring"
+ * bitmap.
+ * <p>
+ * Rows are split into chunks of 65536 by their high 16 bits. Each chunk that
+ * has any rows in it is stored in one of two kinds of container:
+ *
+ * - a sorted `char[]` of the low 16 bits, when the chunk is sparse
+ *   (at most `ARRAY_LIMIT` rows), or
+ * - a plain 65536-bit bitmap (`long[1024]`) when the chunk is dense.
+ *
+ * That keeps sparse sets small while letting the intersection of dense sets
+ * run a word at a time, with the resulting size coming from `Long.bitCount`.
+ */
+final class RowBitmap {
+  // A sparse chunk never holds more than this many rows; past it, a bitmap
+  // container (8KB) is no bigger than the array of rows would be.
+  static final int ARRAY_LIMIT = 4096;
+  // A row's chunk is its high 16 bits; its place in the chunk is the low 16
+  private static final int CHUNK_BITS = 16;
+  private static final int LOW_MASK = 0xFFFF;
+  // Each `long` of a bitmap container holds 2^6 = 64 bits
+  private static final int WORD_SHIFT = 6;
+  private static final int WORDS = 1024;
+
+  static final RowBitmap EMPTY = new RowBitmap(new char[0], new Object[0], 0);
+
+  // The high 16 bits of each chunk, in ascending order
+  private final char[] keys;
+  // For each key, either a `char[]` or a `long[]` container
+  private final Object[] containers;
+  private final int cardinality;
+
+  private RowBitmap(char[] keys, Object[] containers, int cardinality) {
+    this.keys = keys;
+    this.containers = containers;
+    this.cardinality = cardinality;
+  }
+
+  /**
+   * Build a bitmap holding the given rows.
+   *
+   * @param rows non-negative row numbers, in strictly ascending order
+   * @return a bitmap containing exactly those rows
+   */
+  static RowBitmap of(int[] rows) {
+    if (rows.length == 0) {
+      return EMPTY;
+    }
+    char[] keys = new char[(rows[rows.length - 1] >>> CHUNK_BITS) + 1];
+    Object[] containers = new Object[keys.length];
+    int chunks = 0;
+    int start = 0;
+    while (start < rows.length) {
+      int key = rows[start] >>> CHUNK_BITS;
+      int end = start;
+      while (end < rows.length && rows[end] >>> CHUNK_BITS == key) {
+        end++;
+      }
+      keys[chunks] = (char) key;
+      containers[chunks] = end - start <= ARRAY_LIMIT
+        ? lowBits(rows, start, end)
+        : bitmapOf(rows, start, end);
+      chunks++;
+      start = end;
+    }
+    return new RowBitmap(Arrays.copyOf(keys, chunks), Arrays.copyOf(containers, chunks), rows.length);
+  }
+
+  /**
+   * Build the union of some bitmaps that have no rows in common, such as
+   * the bitmaps of different values in the same index.
+   *
+   * @param bitmaps the bitmaps to combine
+   * @return a bitmap containing every row in any of them
+   */
+  static RowBitmap union(Collection<RowBitmap> bitmaps) {
+    if (bitmaps.size() == 1) {
+      return bitmaps.iterator().next();
+    }
+    int[] rows = new int[bitmaps.stream().mapToInt(RowBitmap::cardinality).sum()];
+    int[] next = {0};
+    for (RowBitmap bitmap : bitmaps) {
+      bitmap.forEach(row -> rows[next[0]++] = row);
+    }
+    Arrays.sort(rows);
+    return of(rows);
+  }
+
+  /**
+   * Builds a `RowBitmap` one row at a time, so an index can be filled in
+   * while the data is still being read. Rows have to be added in strictly
+   * ascending order; each chunk starts out as an array container and
+   * switches to a bitmap once it passes `ARRAY_LIMIT` rows.
+   */
+  static final class Builder {
+    private static final int INITIAL_CHUNKS = 4;
+    private static final int INITIAL_ARRAY_SIZE = 16;
+
+    private char[] keys = new char[INITIAL_CHUNKS];
+    private Object[] containers = new Object[INITIAL_CHUNKS];
+    private int chunks;
+    // how many rows are in the last (still growing) chunk
+    private int lastSize;
+    private int cardinality;
+
+    /**
+     * @param row a row number larger than any added before
+     */
+    void add(int row) {
+      char key = (char) (row >>> CHUNK_BITS);
+      if (chunks == 0 || keys[chunks - 1] != key) {
+        finishChunk();
+        if (chunks == keys.length) {
+          keys = Arrays.copyOf(keys, chunks * 2);
+          containers = Arrays.copyOf(containers, chunks * 2);
+        }
+        keys[chunks] = key;
+        containers[chunks] = new char[INITIAL_ARRAY_SIZE];
+        chunks++;
+        lastSize = 0;
+      }
+      char low = (char) row;
+      Object last = containers[chunks - 1];
+      if (last instanceof long[] words) {
+        words[low >>> WORD_SHIFT] |= 1L << low;
+      } else if (lastSize == ARRAY_LIMIT) {
+        long[] words = new long[WORDS];
+        for (char c : (char[]) last) {
+          words[c >>> WORD_SHIFT] |= 1L << c;
+        }
+        words[low >>> WORD_SHIFT] |= 1L << low;
+        containers[chunks - 1] = words;
+      } else {
+        char[] array = (char[]) last;
+        if (lastSize == array.length) {
+          array = Arrays.copyOf(array, Math.min(array.length * 2, ARRAY_LIMIT));
+          containers[chunks - 1] = array;
+        }
+        array[lastSize] = low;
+      }
+      lastSize++;
+      cardinality++;
+    }
+
+    // Trim the last array container down to its actual size
+    private void finishChunk() {
+      if (chunks > 0 && containers[chunks - 1] instanceof char[] array && array.length != lastSize) {
+        containers[chunks - 1] = Arrays.copyOf(array, lastSize);
+      }
+    }
+
+    /**
+     * @return a bitmap holding all the rows added so far
+     */
+    RowBitmap build() {
+      if (cardinality == 0) {
+        return EMPTY;
+      }
+      finishChunk();
+      return new RowBitmap(Arrays.copyOf(keys, chunks), Arrays.copyOf(containers, chunks), cardinality);
+    }
+  }
+
+  private static char[] lowBits(int[] rows, int start, int end) {
+    char[] low = new char[end - start];
+    for (int i = start; i < end; i++) {
+      low[i - start] = (char) rows[i];
+    }
+    return low;
+  }
+
+  private static long[] bitmapOf(int[] rows, int start, int end) {
+    long[] words = new long[WORDS];
+    for (int i = start; i < end; i++) {
+      int low = rows[i] & LOW_MASK;
+      words[low >>> WORD_SHIFT] |= 1L << low;
+    }
+    return words;
+  }
+
+  /**
+   * @return the number of rows in the set
+   */
+  int cardinality() {
+    return cardinality;
+  }
+
+  /**
+   * @param row a row number
+   * @return whether that row is in the set
+   */
+  boolean contains(int row) {
+    int k = Arrays.binarySearch(keys, (char) (row >>> CHUNK_BITS));
+    if (row < 0 || k < 0) {
+      return false;
+    }
+    char low = (char) row;
+    if (containers[k] instanceof long[] words) {
+      return (words[low >>> WORD_SHIFT] & (1L << low)) != 0;
+    }
+    return Arrays.binarySearch((char[]) containers[k], low) >= 0;
+  }
+
+  /**
+   * Intersect this set with another, a chunk at a time.
+   *
+   * @param other the set to intersect with
+   * @return a new set holding the rows that are in both
+   */
+  RowBitmap and(RowBitmap other) {
+    int capacity = Math.min(keys.length, other.keys.length);
+    char[] outKeys = new char[capacity];
+    Object[] outContainers = new Object[capacity];
+    int chunks = 0;
+    int total = 0;
+    int i = 0;
+    int j = 0;
+    while (i < keys.length && j < other.keys.length) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        Object container = and(containers[i], other.containers[j]);
+        int size = sizeOf(container);
+        if (size > 0) {
+          outKeys[chunks] = keys[i];
+          outContainers[chunks] = container;
+          chunks++;
+          total += size;
+        }
+        i++;
+        j++;
+      }
+    }
+    if (total == 0) {
+      return EMPTY;
+    }
+    return new RowBitmap(Arrays.copyOf(outKeys, chunks), Arrays.copyOf(outContainers, chunks), total);
+  }
+
+  private static Object and(Object a, Object b) {
+    if (a instanceof long[] wordsA && b instanceof long[] wordsB) {
+      return andBitmaps(wordsA, wordsB);
+    } else if (a instanceof long[] words) {
+      return andArrayWithBitmap((char[]) b, words);
+    } else if (b instanceof long[] words) {
+      return andArrayWithBitmap((char[]) a, words);
+    }
+    return andArrays((char[]) a, (char[]) b);
+  }
+
+  private static Object andBitmaps(long[] a, long[] b) {
+    long[] words = new long[WORDS];
+    int count = 0;
+    for (int w = 0; w < WORDS; w++) {
+      words[w] = a[w] & b[w];
+      count += Long.bitCount(words[w]);
+    }
+    if (count > ARRAY_LIMIT) {
+      return words;
+    }
+    // Sparse enough now that an array container is smaller
+    char[] low = new char[count];
+    int next = 0;
+    for (int w = 0; w < WORDS; w++) {
+      for (long word = words[w]; word != 0; word &= word - 1) {
+        low[next++] = (char) ((w << WORD_SHIFT) + Long.numberOfTrailingZeros(word));
+      }
+    }
+    return low;
+  }
+
+  private static char[] andArrayWithBitmap(char[] low, long[] words) {
+    char[] out = new char[low.length];
+    int count = 0;
+    for (char c : low) {
+      if ((words[c >>> WORD_SHIFT] & (1L << c)) != 0) {
+        out[count++] = c;
+      }
+    }
+    return Arrays.copyOf(out, count);
+  }
+
+  private static char[] andArrays(char[] a, char[] b) {
+    char[] out = new char[Math.min(a.length, b.length)];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        out[count++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    return Arrays.copyOf(out, count);
+  }
+
+  private static int sizeOf(Object container) {
+    if (container instanceof long[] words) {
+      int count = 0;
+      for (long word : words) {
+        count += Long.bitCount(word);
+      }
+      return count;
+    }
+    return ((char[]) container).length;
+  }
+
+  /**
+   * Call the given action on every row in the set, in ascending order.
+   *
+   * @param action what to do with each row
+   */
+  void forEach(IntConsumer action) {
+    for (int k = 0; k < keys.length; k++) {
+      int high = keys[k] << CHUNK_BITS;
+      if (containers[k] instanceof long[] words) {
+        for (int w = 0; w < WORDS; w++) {
+          for (long word = words[w]; word != 0; word &= word - 1) {
+            action.accept(high | (w << WORD_SHIFT) + Long.numberOfTrailingZeros(word));
+          }
+        }
+      } else {
+        for (char low : (char[]) containers[k]) {
+          action.accept(high | low);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the rows in the set, in ascending order
+   */
+  int[] toArray() {
+    int[] rows = new int[cardinality];
+    int[] next = {0};
+    forEach(row -> rows[next[0]++] = row);
+    return rows;
+  }
+}
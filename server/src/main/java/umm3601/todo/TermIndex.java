@@ -0,0 +1,285 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A term-frequency index of the words in each todo's body and category, for
+ * ranking todos by how well they match a free-text query using BM25.
+ * <p>
+ * Text is split into terms at anything that isn't a letter or a digit, and
+ * terms are case-folded, so "Lorem," and "lorem" are the same term. For
+ * each term the index keeps the rows it appears in and how many times it
+ * appears in each (its "postings"), and for each row the number of terms in
+ * it, which is all BM25 needs.
+ * <p>
+ * A search adds up the score of every row that has at least one of the query
+ * terms, one term's postings at a time, by merging them (they're all in row
+ * order) into a list of the rows found so far and their scores. Then it keeps
+ * just the best `limit` of those rows with a bounded heap, so only those ever
+ * get turned into `Todo`s. None of this looks at any row that doesn't have
+ * one of the terms, so a search takes time in proportion to the length of
+ * the terms' postings, however many todos there are.
+ * <p>
+ * Todos written since the index was built (see `TodoChanges`) aren't in it,
+ * so the rows it has for them are skipped, and their new text is scored
+ * directly. That uses the statistics (how rare each term is, and the
+ * average length) of the indexed todos, which there are far more of.
+ */
+final class TermIndex {
+  // The standard BM25 parameters: how quickly repeats of a term stop
+  // counting for more (K1), and how much a long todo is penalized (B)
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+  private static final double HALF = 0.5;
+
+  private final Map<String, Postings> postings;
+  private final int[] lengths;
+  private final double averageLength;
+
+  // The rows a term appears in, in ascending order, and how often it does
+  private record Postings(int[] rows, int[] counts) {
+  }
+
+  // The rows found by a search so far, in ascending order (until the
+  // written todos are added), and their scores; the first `size` of each
+  // array are in use
+  private static final class Hits {
+    private int[] rows = new int[0];
+    private double[] scores = new double[0];
+    private int size;
+  }
+
+  private TermIndex(Map<String, Postings> postings, int[] lengths) {
+    this.postings = postings;
+    this.lengths = lengths;
+    this.averageLength = Math.max(1, Arrays.stream(lengths).average().orElse(1));
+  }
+
+  /**
+   * Index the bodies and categories of all the todos.
+   *
+   * @param columns the todos
+   * @return the index of the terms in them
+   */
+  static TermIndex of(TodoColumns columns) {
+    Map<String, List<int[]>> rowCounts = new HashMap<>();
+    int[] lengths = new int[columns.size()];
+    for (int row = 0; row < lengths.length; row++) {
+      Map<String, Integer> counts = new HashMap<>();
+      for (String text : new String[] {columns.body(row), columns.category(row)}) {
+        for (String term : terms(text)) {
+          counts.merge(term, 1, Integer::sum);
+          lengths[row]++;
+        }
+      }
+      for (Map.Entry<String, Integer> count : counts.entrySet()) {
+        rowCounts.computeIfAbsent(count.getKey(), k -> new ArrayList<>()).add(new int[] {row, count.getValue()});
+      }
+    }
+    Map<String, Postings> postings = new HashMap<>();
+    for (Map.Entry<String, List<int[]>> term : rowCounts.entrySet()) {
+      List<int[]> list = term.getValue();
+      int[] rows = new int[list.size()];
+      int[] counts = new int[list.size()];
+      for (int i = 0; i < rows.length; i++) {
+        rows[i] = list.get(i)[0];
+        counts[i] = list.get(i)[1];
+      }
+      postings.put(term.getKey(), new Postings(rows, counts));
+    }
+    return new TermIndex(postings, lengths);
+  }
+
+  /**
+   * Split text into case-folded terms.
+   *
+   * @param text the text to split; may be null
+   * @return the terms, in the order they appear, repeats included
+   */
+  static List<String> terms(String text) {
+    List<String> terms = new ArrayList<>();
+    if (text == null) {
+      return terms;
+    }
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (inTerm && start < 0) {
+        start = i;
+      } else if (!inTerm && start >= 0) {
+        terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        start = -1;
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * Find the rows that best match a query.
+   *
+   * @param query   free text to look for
+   * @param limit   the most rows to return
+   * @param changes the todos written since the index was built
+   * @return the rows of the best matching todos, best first; rows with equal
+   *         scores are in ascending order
+   */
+  int[] search(String query, int limit, TodoChanges changes) {
+    Hits hits = new Hits();
+    // Each distinct term only counts once
+    Set<String> queryTerms = new LinkedHashSet<>(terms(query));
+    for (String term : queryTerms) {
+      Postings list = postings.get(term);
+      if (list != null) {
+        add(hits, list);
+      }
+    }
+    if (!changes.isEmpty()) {
+      // Drop the rows that have been written to, and score what was written
+      int kept = 0;
+      for (int i = 0; i < hits.size; i++) {
+        if (!changes.hides(hits.rows[i])) {
+          hits.rows[kept] = hits.rows[i];
+          hits.scores[kept++] = hits.scores[i];
+        }
+      }
+      int[] rows = changes.rows();
+      Todo[] todos = changes.todos();
+      hits.rows = Arrays.copyOf(hits.rows, kept + rows.length);
+      hits.scores = Arrays.copyOf(hits.scores, kept + rows.length);
+      hits.size = kept;
+      for (int i = 0; i < rows.length; i++) {
+        double score = score(queryTerms, todos[i]);
+        if (score > 0) {
+          hits.rows[hits.size] = rows[i];
+          hits.scores[hits.size++] = score;
+        }
+      }
+    }
+    return best(hits, limit);
+  }
+
+  // Add a term's score to the rows it appears in, merging them into the
+  // rows found so far
+  private void add(Hits hits, Postings list) {
+    double idf = idf(list.rows.length);
+    int[] rows = new int[hits.size + list.rows.length];
+    double[] scores = new double[rows.length];
+    int merged = 0;
+    int i = 0;
+    int j = 0;
+    while (i < hits.size || j < list.rows.length) {
+      if (j == list.rows.length || (i < hits.size && hits.rows[i] < list.rows[j])) {
+        rows[merged] = hits.rows[i];
+        scores[merged++] = hits.scores[i++];
+      } else {
+        int row = list.rows[j];
+        double score = score(idf, list.counts[j++], lengths[row]);
+        if (i < hits.size && hits.rows[i] == row) {
+          score += hits.scores[i++];
+        }
+        rows[merged] = row;
+        scores[merged++] = score;
+      }
+    }
+    hits.rows = rows;
+    hits.scores = scores;
+    hits.size = merged;
+  }
+
+  // How much a term counts for, given how many indexed todos have it
+  private double idf(int rowsWithTerm) {
+    return Math.log(1 + (lengths.length - rowsWithTerm + HALF) / (rowsWithTerm + HALF));
+  }
+
+  private double score(double idf, double count, int length) {
+    double norm = K1 * (1 - B + B * length / averageLength);
+    return idf * count * (K1 + 1) / (count + norm);
+  }
+
+  // The score of a todo that isn't in the index
+  private double score(Set<String> queryTerms, Todo todo) {
+    Map<String, Integer> counts = new HashMap<>();
+    int length = 0;
+    for (String text : new String[] {todo.body, todo.category}) {
+      for (String term : terms(text)) {
+        counts.merge(term, 1, Integer::sum);
+        length++;
+      }
+    }
+    double score = 0;
+    for (String term : queryTerms) {
+      Integer count = counts.get(term);
+      if (count != null) {
+        Postings list = postings.get(term);
+        score += score(idf(list == null ? 0 : list.rows.length), count, length);
+      }
+    }
+    return score;
+  }
+
+  /**
+   * The `limit` rows with the highest (positive) scores, best first.
+   * <p>
+   * This keeps a min-heap of the best rows seen so far, with the worst of
+   * them at the top, so each row costs O(log limit) at most.
+   *
+   * @param hits  the rows found, and their scores
+   * @param limit how many rows to keep
+   * @return the best rows, best first
+   */
+  private static int[] best(Hits hits, int limit) {
+    // The heap holds positions in `hits`
+    int[] heap = new int[Math.min(limit, hits.size)];
+    int size = 0;
+    for (int hit = 0; hit < hits.size; hit++) {
+      if (hits.scores[hit] <= 0) {
+        continue;
+      }
+      if (size < heap.length) {
+        // sift up
+        int child = size++;
+        while (child > 0 && worse(hit, heap[(child - 1) / 2], hits)) {
+          heap[child] = heap[(child - 1) / 2];
+          child = (child - 1) / 2;
+        }
+        heap[child] = hit;
+      } else if (size > 0 && worse(heap[0], hit, hits)) {
+        // replace the worst of the best, then sift down
+        int parent = 0;
+        while (2 * parent + 1 < size) {
+          int child = 2 * parent + 1;
+          if (child + 1 < size && worse(heap[child + 1], heap[child], hits)) {
+            child++;
+          }
+          if (!worse(heap[child], hit, hits)) {
+            break;
+          }
+          heap[parent] = heap[child];
+          parent = child;
+        }
+        heap[parent] = hit;
+      }
+    }
+    Integer[] ranked = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      ranked[i] = heap[i];
+    }
+    Arrays.sort(ranked, (a, b) -> worse(a, b, hits) ? 1 : worse(b, a, hits) ? -1 : 0);
+    return Arrays.stream(ranked).mapToInt(hit -> hits.rows[hit]).toArray();
+  }
+
+  // Whether hit `a` ranks below hit `b`: a lower score, or the same score
+  // and a later row
+  private static boolean worse(int a, int b, Hits hits) {
+    double scoreA = hits.scores[a];
+    double scoreB = hits.scores[b];
+    return scoreA < scoreB || (scoreA == scoreB && hits.rows[a] > hits.rows[b]);
+  }
+}
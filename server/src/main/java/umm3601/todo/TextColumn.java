@@ -0,0 +1,217 @@
+package umm3601.todo;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A column of strings, one per row, stored back to back as UTF-8 in a
+ * single shared buffer of bytes (the "arena"), along with where each row's
+ * string starts.
+ * <p>
+ * That's one run of bytes and one of offsets for the whole column, rather
+ * than a `String` (and its own array) per row, and scanning it, e.g. for
+ * `contains`, walks straight through memory. Strings are only decoded when a
+ * row is actually asked for. The buffers either wrap arrays (when the column
+ * was built from JSON) or are views of a memory-mapped snapshot file (see
+ * `TodoSnapshot`), in which case the column lives outside the Java heap.
+ * <p>
+ * Because UTF-8 is self-synchronizing, one well-formed string contains
+ * another exactly when its encoding contains the other's encoding, so
+ * substring tests can work on the bytes without decoding them.
+ */
+final class TextColumn {
+  // Mixes the high bits of a hash into the low bits used to pick a slot
+  private static final int HASH_SPREAD = 16;
+  private static final int HASH_MULTIPLIER = 31;
+  // Each `long` of the null bitset holds 2^6 = 64 rows
+  private static final int WORD_SHIFT = 6;
+
+  private final ByteBuffer arena;
+  // Row `i` is `arena[offsets[i]]` up to (but not including) `arena[offsets[i + 1]]`
+  private final IntBuffer offsets;
+  // A bitset of the rows whose string is null (which are stored as empty)
+  private final LongBuffer nulls;
+
+  TextColumn(ByteBuffer arena, IntBuffer offsets, LongBuffer nulls) {
+    this.arena = arena;
+    this.offsets = offsets;
+    this.nulls = nulls;
+  }
+
+  /**
+   * Builds a `TextColumn` one row at a time.
+   */
+  static final class Builder {
+    private static final int INITIAL_ROWS = 16;
+    private static final int INITIAL_BYTES = 256;
+    private static final int MAX_ARENA_BYTES = Integer.MAX_VALUE - 8;
+
+    private byte[] arena = new byte[INITIAL_BYTES];
+    private int[] offsets = new int[INITIAL_ROWS + 1];
+    private final BitSet nulls = new BitSet();
+    private int rows;
+
+    /**
+     * @param value the string for the next row; may be null
+     */
+    void add(String value) {
+      if (rows + 1 == offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      int start = offsets[rows];
+      if (value == null) {
+        nulls.set(rows);
+      } else {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (start + (long) bytes.length > arena.length) {
+          arena = Arrays.copyOf(arena, grow(arena.length, start + (long) bytes.length));
+        }
+        System.arraycopy(bytes, 0, arena, start, bytes.length);
+        start += bytes.length;
+      }
+      rows++;
+      offsets[rows] = start;
+    }
+
+    // The next size for the arena: half as big again (so it's grown a few
+    // times at most), or just what's needed, if that's more; arrays can't
+    // be quite as long as Integer.MAX_VALUE
+    private static int grow(int length, long needed) {
+      if (needed > MAX_ARENA_BYTES) {
+        throw new IllegalStateException("A column of text can't hold more than " + MAX_ARENA_BYTES + " bytes");
+      }
+      return (int) Math.min(MAX_ARENA_BYTES, Math.max(needed, length + (length >> 1)));
+    }
+
+    /**
+     * @return a column holding all the rows added so far
+     */
+    TextColumn build() {
+      long[] nullWords = Arrays.copyOf(nulls.toLongArray(), (rows + Long.SIZE - 1) >>> WORD_SHIFT);
+      return new TextColumn(
+        ByteBuffer.wrap(Arrays.copyOf(arena, offsets[rows])),
+        IntBuffer.wrap(Arrays.copyOf(offsets, rows + 1)),
+        LongBuffer.wrap(nullWords));
+    }
+  }
+
+  // The raw buffers, for writing to a snapshot
+  ByteBuffer arena() {
+    return arena.duplicate();
+  }
+
+  IntBuffer offsets() {
+    return offsets.duplicate();
+  }
+
+  LongBuffer nulls() {
+    return nulls.duplicate();
+  }
+
+  /**
+   * @return how many rows are in the column
+   */
+  int size() {
+    return offsets.limit() - 1;
+  }
+
+  private boolean isNull(int row) {
+    return (nulls.get(row >>> WORD_SHIFT) & (1L << row)) != 0;
+  }
+
+  /**
+   * @param row a row number
+   * @return the (freshly decoded) string in that row
+   */
+  String get(int row) {
+    return isNull(row) ? null : new String(bytesAt(row), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param row a row number
+   * @return a copy of the UTF-8 bytes in that row (empty if it is null)
+   */
+  byte[] bytesAt(int row) {
+    byte[] bytes = new byte[offsets.get(row + 1) - offsets.get(row)];
+    arena.get(offsets.get(row), bytes);
+    return bytes;
+  }
+
+  /**
+   * @param row    a row number
+   * @param needle the UTF-8 encoding of the string to look for
+   * @return whether the string in that row contains the needle
+   */
+  boolean contains(int row, byte[] needle) {
+    if (isNull(row)) {
+      return false;
+    }
+    int last = offsets.get(row + 1) - needle.length;
+    for (int i = offsets.get(row); i <= last; i++) {
+      if (matchesAt(i, needle)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Whether the arena holds the given bytes, starting at `start`
+  private boolean matchesAt(int start, byte[] bytes) {
+    for (int j = 0; j < bytes.length; j++) {
+      if (arena.get(start + j) != bytes[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param row   a row number
+   * @param value the UTF-8 encoding of a string
+   * @return whether the string in that row is exactly that string
+   */
+  boolean equalsAt(int row, byte[] value) {
+    int start = offsets.get(row);
+    return !isNull(row) && offsets.get(row + 1) - start == value.length && matchesAt(start, value);
+  }
+
+  /**
+   * @param a a row number
+   * @param b another row number
+   * @return whether the two rows hold the same string
+   */
+  boolean sameAt(int a, int b) {
+    int startA = offsets.get(a);
+    int startB = offsets.get(b);
+    return isNull(a) == isNull(b)
+      && arena.slice(startA, offsets.get(a + 1) - startA).equals(arena.slice(startB, offsets.get(b + 1) - startB));
+  }
+
+  /**
+   * @param row a row number
+   * @return the same hash as `hash(bytes)` gives for the row's UTF-8 bytes
+   */
+  int hashAt(int row) {
+    int h = 1;
+    for (int i = offsets.get(row); i < offsets.get(row + 1); i++) {
+      h = HASH_MULTIPLIER * h + arena.get(i);
+    }
+    return h ^ (h >>> HASH_SPREAD);
+  }
+
+  /**
+   * @param bytes the UTF-8 encoding of a string
+   * @return a hash of those bytes, for looking them up in a hash table
+   */
+  static int hash(byte[] bytes) {
+    int h = 1;
+    for (byte b : bytes) {
+      h = HASH_MULTIPLIER * h + b;
+    }
+    return h ^ (h >>> HASH_SPREAD);
+  }
+}
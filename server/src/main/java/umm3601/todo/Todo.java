@@ -1,5 +1,7 @@
 package umm3601.todo;
 
+import java.util.Objects;
+
 @SuppressWarnings({"VisibilityModifier"})
 public class Todo {
   @SuppressWarnings({"MemberName"})
@@ -13,6 +15,29 @@ public class Todo {
   public String toString() {
     return owner;
   }
+
+  // The database stores todos by column and builds a new `Todo` each time
+  // one is asked for, so two todos are the same if all their fields are.
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof Todo)) {
+      return false;
+    }
+    Todo other = (Todo) o;
+    return Objects.equals(_id, other._id)
+      && Objects.equals(owner, other.owner)
+      && Objects.equals(status, other.status)
+      && Objects.equals(body, other.body)
+      && Objects.equals(category, other.category);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(_id, owner, status, body, category);
+  }
 }
 
   // By default Java field names shouldn't start with underscores.
@@ -0,0 +1,349 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The todos that have been added, changed, or deleted since a
+ * `TodoDatabase`'s columns and indexes were built.
+ * <p>
+ * The columns and indexes are never modified, so a write doesn't touch them
+ * at all. Instead, it's appended to a log of writes, along with the row the
+ * todo is in: a changed todo keeps the row it had, and a new one gets the
+ * next row after the end of the columns (rows are never reused while the
+ * columns are, so a client paging through by row never sees one todo twice;
+ * compacting numbers the rows afresh, which is why a page cursor only works
+ * with the columns it came from, see `PageCursor`). The base rows of changed
+ * and deleted todos are "hidden", so whatever the indexes say about them is
+ * ignored, and the changed todos, which there are only ever a few of, are
+ * checked one by one instead.
+ * <p>
+ * Every version of the database made from the same columns shares the one
+ * log, and sees only the writes that had been made when it was: the first
+ * `length` of them. Nothing in the log ever changes once it's there, so a
+ * write just appends to it, and copies nothing; the newest version can go on
+ * being read from while that happens, since it doesn't look that far. To
+ * find a todo by ID, each entry also points to the one before it for the
+ * same ID, so a version can skip back past any that are too new for it.
+ * Everything else a version needs (e.g., the rows of all the changed todos,
+ * in order) is worked out from its part of the log the first time it's
+ * needed, which takes time in proportion to the number of writes so far;
+ * the database is rebuilt (see `TodoDatabase.compacted`) long before that
+ * gets large.
+ */
+final class TodoChanges {
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * One write to a todo.
+   *
+   * @param sequence the number of the write; each is one more than the last
+   * @param id       the ID of the todo written to
+   * @param row      the row the todo is in (or was in, before it was deleted)
+   * @param todo     the todo as written, or null if it was deleted
+   * @param json     the JSON of `todo`, or null if it was deleted
+   */
+  record Change(long sequence, String id, int row, Todo todo, byte[] json) {
+  }
+
+  /**
+   * A write, where it is in the log, and the entry before it for the same ID.
+   */
+  private record Entry(Change change, int index, Entry previous) {
+  }
+
+  /**
+   * The writes since the columns were built. Only one thread appends at a
+   * time, and the entries it appends are only looked at by versions
+   * published after it has.
+   */
+  private static final class Log {
+    private volatile Entry[] entries = new Entry[INITIAL_CAPACITY];
+    private int size;
+    // The newest entry for each ID
+    private final Map<String, Entry> newest = new ConcurrentHashMap<>();
+
+    /**
+     * Append writes to the log, as long as nothing has been appended since
+     * the version making them was.
+     *
+     * @param at     how many entries the version making the writes has
+     * @param writes the writes
+     * @return whether they were appended
+     */
+    synchronized boolean append(int at, Collection<Change> writes) {
+      if (size != at) {
+        return false;
+      }
+      for (Change write : writes) {
+        if (size == entries.length) {
+          entries = Arrays.copyOf(entries, size * 2);
+        }
+        Entry entry = new Entry(write, size, newest.get(write.id()));
+        entries[size++] = entry;
+        newest.put(write.id(), entry);
+      }
+      return true;
+    }
+
+    /**
+     * @param length how many entries to keep
+     * @return a new log with just the first `length` of these entries, for
+     *         writes to an older version
+     */
+    synchronized Log copy(int length) {
+      Log copy = new Log();
+      List<Change> kept = new ArrayList<>();
+      for (int i = 0; i < length; i++) {
+        kept.add(entries[i].change());
+      }
+      copy.append(0, kept);
+      return copy;
+    }
+  }
+
+  /**
+   * What a version has, worked out from its part of the log.
+   *
+   * @param byId     the last write to each todo
+   * @param rows     the rows of the todos that are here (rather than
+   *                 deleted), in ascending order
+   * @param todos    the todos in those rows
+   * @param json     the JSON of those todos
+   * @param hidden   the base rows that have been written to, in ascending order
+   * @param isHidden the same rows, as a bitmap, for quick lookups
+   */
+  private record View(Map<String, Change> byId, int[] rows, Todo[] todos, byte[][] json, int[] hidden,
+      BitSet isHidden) {
+  }
+
+  private final int baseSize;
+  private final Log log;
+  private final int length;
+  private final int rowLimit;
+  private final long sequence;
+  private volatile View view;
+
+  private TodoChanges(int baseSize, Log log, int length, int rowLimit, long sequence) {
+    this.baseSize = baseSize;
+    this.log = log;
+    this.length = length;
+    this.rowLimit = rowLimit;
+    this.sequence = sequence;
+  }
+
+  /**
+   * @param baseSize the number of rows in the columns
+   * @param sequence the number of the last write already in the columns
+   * @return no changes at all
+   */
+  static TodoChanges none(int baseSize, long sequence) {
+    return new TodoChanges(baseSize, new Log(), 0, baseSize, sequence);
+  }
+
+  /**
+   * @param writes   the writes to add, in order, with their rows already
+   *                 worked out; a later write to a todo replaces an earlier one
+   * @param rowLimit one more than the last row any of the changes is in
+   * @return these changes, plus the new ones
+   */
+  TodoChanges with(Collection<Change> writes, int rowLimit) {
+    long last = sequence;
+    for (Change write : writes) {
+      last = Math.max(last, write.sequence());
+    }
+    if (log.append(length, writes)) {
+      return new TodoChanges(baseSize, log, length + writes.size(), rowLimit, last);
+    }
+    // Someone has already written to this version, so these writes start
+    // a new branch, with its own log
+    Log branch = log.copy(length);
+    branch.append(length, writes);
+    return new TodoChanges(baseSize, branch, length + writes.size(), rowLimit, last);
+  }
+
+  boolean isEmpty() {
+    return length == 0;
+  }
+
+  /**
+   * @return how many writes there have been
+   */
+  int count() {
+    return length;
+  }
+
+  /**
+   * @return the number of the last write
+   */
+  long sequence() {
+    return sequence;
+  }
+
+  /**
+   * @return one more than the highest row in use; rows from here on are free
+   */
+  int rowLimit() {
+    return rowLimit;
+  }
+
+  /**
+   * @param id the ID of a todo (or null, which no todo has)
+   * @return the last write to it, or null if it hasn't been written to
+   */
+  Change get(String id) {
+    Entry entry = id == null ? null : log.newest.get(id);
+    while (entry != null && entry.index() >= length) {
+      entry = entry.previous();
+    }
+    return entry == null ? null : entry.change();
+  }
+
+  private View view() {
+    View worked = view;
+    if (worked == null) {
+      Entry[] entries = log.entries;
+      Map<String, Change> byId = new HashMap<>();
+      for (int i = 0; i < length; i++) {
+        byId.put(entries[i].change().id(), entries[i].change());
+      }
+      List<Change> live = new ArrayList<>();
+      List<Integer> hiddenRows = new ArrayList<>();
+      for (Change change : byId.values()) {
+        if (change.todo() != null) {
+          live.add(change);
+        }
+        if (change.row() < baseSize) {
+          hiddenRows.add(change.row());
+        }
+      }
+      live.sort(Comparator.comparingInt(Change::row));
+      int[] hidden = hiddenRows.stream().mapToInt(Integer::intValue).sorted().toArray();
+      BitSet isHidden = new BitSet(baseSize);
+      for (int row : hidden) {
+        isHidden.set(row);
+      }
+      worked = new View(byId,
+        live.stream().mapToInt(Change::row).toArray(),
+        live.stream().map(Change::todo).toArray(Todo[]::new),
+        live.stream().map(Change::json).toArray(byte[][]::new),
+        hidden, isHidden);
+      view = worked;
+    }
+    return worked;
+  }
+
+  /**
+   * @return how many more todos there are than there are rows in the
+   *         columns (negative if more have been deleted than added)
+   */
+  int sizeChange() {
+    return isEmpty() ? 0 : view().rows().length - view().hidden().length;
+  }
+
+  /**
+   * @param row a row in the columns
+   * @return whether the todo in it has been changed or deleted, so the
+   *         columns (and indexes) are out of date about it
+   */
+  boolean hides(int row) {
+    return row < baseSize && !isEmpty() && view().isHidden().get(row);
+  }
+
+  /**
+   * @return the base rows that have been written to, in ascending order
+   */
+  int[] hiddenRows() {
+    return isEmpty() ? new int[0] : view().hidden();
+  }
+
+  /**
+   * @return the rows of the todos written to (and not deleted), in ascending order
+   */
+  int[] rows() {
+    return isEmpty() ? new int[0] : view().rows();
+  }
+
+  /**
+   * @return the todos in `rows()`, in the same order; these must not be modified
+   */
+  Todo[] todos() {
+    return isEmpty() ? new Todo[0] : view().todos();
+  }
+
+  /**
+   * @return the JSON of the todos in `rows()`, in the same order
+   */
+  byte[][] json() {
+    return isEmpty() ? new byte[0][] : view().json();
+  }
+
+  /**
+   * @param row any row
+   * @return a copy of the todo written to that row, or null if nothing has been
+   */
+  Todo todoAt(int row) {
+    if (isEmpty()) {
+      return null;
+    }
+    int i = Arrays.binarySearch(view().rows(), row);
+    return i < 0 ? null : copy(view().todos()[i]);
+  }
+
+  /**
+   * @param older the changes of an earlier version, which these were made
+   *              from (by `with`)
+   * @return the writes made since then, in the order they were made
+   */
+  List<Change> writesSince(TodoChanges older) {
+    // A branch starts with a copy of the entries it branched from, so
+    // either way, the new writes are the ones past the end of the older
+    Entry[] entries = log.entries;
+    List<Change> since = new ArrayList<>();
+    for (int i = older.length; i < length; i++) {
+      since.add(entries[i].change());
+    }
+    return since;
+  }
+
+  /**
+   * @param after the number of a write
+   * @return the last write to each todo written to since then, in row
+   *         order, so that todos added since then can be added again in
+   *         the same order
+   */
+  List<Change> since(long after) {
+    List<Change> since = new ArrayList<>();
+    if (isEmpty()) {
+      return since;
+    }
+    for (Change change : view().byId().values()) {
+      if (change.sequence() > after) {
+        since.add(change);
+      }
+    }
+    since.sort(Comparator.comparingInt(Change::row));
+    return since;
+  }
+
+  /**
+   * @param todo a todo
+   * @return a new todo with all the same fields
+   */
+  static Todo copy(Todo todo) {
+    Todo copy = new Todo();
+    copy._id = todo._id;
+    copy.owner = todo.owner;
+    copy.status = todo.status;
+    copy.body = todo.body;
+    copy.category = todo.category;
+    return copy;
+  }
+}
@@ -0,0 +1,317 @@
+package umm3601.todo;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * The todos, stored a column (attribute) at a time rather than as one
+ * `Todo` object per row.
+ * <p>
+ * - owners and categories are dictionary-encoded (see `DictionaryColumn`),
+ * - statuses are two bitsets, one bit per row, of the complete and the
+ *   incomplete todos (a todo with no status is in neither), and
+ * - IDs and bodies are each kept in a single UTF-8 arena (see `TextColumn`).
+ *
+ * A `Todo` is only built, by `get`, for a row that is actually going to be
+ * sent back to a client. IDs are looked up through an open-addressing hash
+ * table of row numbers, which compares against the ID arena rather than
+ * keeping a `String` key per todo.
+ * <p>
+ * Every column is held in an NIO buffer, so the same code works whether the
+ * columns were built from JSON (and wrap arrays on the heap) or are views of
+ * a memory-mapped snapshot file (see `TodoSnapshot`).
+ */
+final class TodoColumns {
+  // Each `long` of a bitset holds 2^6 = 64 rows
+  private static final int WORD_SHIFT = 6;
+
+  private final int size;
+  private final TextColumn ids;
+  private final DictionaryColumn owners;
+  private final DictionaryColumn categories;
+  private final LongBuffer complete;
+  private final LongBuffer incomplete;
+  private final TextColumn bodies;
+  // Open-addressing hash table of `row + 1` (0 is an empty slot), keyed by ID
+  private final IntBuffer idSlots;
+
+  private TodoColumns(Builder builder) {
+    size = builder.size;
+    ids = builder.ids.build();
+    owners = builder.owners.build();
+    categories = builder.categories.build();
+    complete = LongBuffer.wrap(Arrays.copyOf(builder.complete, wordsFor(size)));
+    incomplete = LongBuffer.wrap(Arrays.copyOf(builder.incomplete, wordsFor(size)));
+    bodies = builder.bodies.build();
+    idSlots = IntBuffer.wrap(buildIdSlots());
+  }
+
+  // Reassemble columns that were read back from a snapshot
+  TodoColumns(TextColumn ids, DictionaryColumn owners, DictionaryColumn categories, LongBuffer complete,
+      LongBuffer incomplete, TextColumn bodies, IntBuffer idSlots) {
+    this.size = ids.size();
+    this.ids = ids;
+    this.owners = owners;
+    this.categories = categories;
+    this.complete = complete;
+    this.incomplete = incomplete;
+    this.bodies = bodies;
+    this.idSlots = idSlots;
+  }
+
+  /**
+   * Builds the columns one todo at a time, as they are read.
+   */
+  static final class Builder {
+    private static final int INITIAL_WORDS = 4;
+
+    private final TextColumn.Builder ids = new TextColumn.Builder();
+    private final DictionaryColumn.Builder owners = new DictionaryColumn.Builder();
+    private final DictionaryColumn.Builder categories = new DictionaryColumn.Builder();
+    private long[] complete = new long[INITIAL_WORDS];
+    private long[] incomplete = new long[INITIAL_WORDS];
+    private final TextColumn.Builder bodies = new TextColumn.Builder();
+    private int size;
+
+    /**
+     * @param todo the todo for the next row
+     * @return the row it was stored in
+     */
+    int add(Todo todo) {
+      int row = size++;
+      ids.add(todo._id);
+      owners.add(todo.owner);
+      categories.add(todo.category);
+      if (wordsFor(size) > complete.length) {
+        complete = Arrays.copyOf(complete, complete.length * 2);
+        incomplete = Arrays.copyOf(incomplete, incomplete.length * 2);
+      }
+      if (todo.status != null) {
+        (todo.status ? complete : incomplete)[row >>> WORD_SHIFT] |= 1L << row;
+      }
+      bodies.add(todo.body);
+      return row;
+    }
+
+    TodoColumns build() {
+      return new TodoColumns(this);
+    }
+  }
+
+  private static int wordsFor(int rows) {
+    return (rows + Long.SIZE - 1) >>> WORD_SHIFT;
+  }
+
+  // The hash table is kept at most half full, so probe sequences stay short
+  private int[] buildIdSlots() {
+    int[] slots = new int[Integer.highestOneBit(Math.max(size, 1) * 2) * 2];
+    for (int row = 0; row < size; row++) {
+      int slot = ids.hashAt(row) & (slots.length - 1);
+      boolean duplicate = false;
+      while (slots[slot] != 0 && !duplicate) {
+        // If the data somehow has duplicate IDs, the first todo with the ID wins
+        duplicate = ids.sameAt(slots[slot] - 1, row);
+        slot = (slot + 1) & (slots.length - 1);
+      }
+      if (!duplicate) {
+        slots[slot] = row + 1;
+      }
+    }
+    return slots;
+  }
+
+  /**
+   * @return how many todos there are
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param id the ID of a todo
+   * @return the row of the todo with that ID, or -1 if there isn't one
+   */
+  int rowOf(String id) {
+    if (id == null) {
+      return -1;
+    }
+    byte[] key = id.getBytes(StandardCharsets.UTF_8);
+    int mask = idSlots.limit() - 1;
+    int slot = TextColumn.hash(key) & mask;
+    while (idSlots.get(slot) != 0) {
+      int row = idSlots.get(slot) - 1;
+      if (ids.equalsAt(row, key)) {
+        return row;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * @param row a row number
+   * @return a new `Todo` holding the values in that row
+   */
+  Todo get(int row) {
+    Todo todo = new Todo();
+    todo._id = ids.get(row);
+    todo.owner = owners.get(row);
+    todo.status = status(row);
+    todo.body = bodies.get(row);
+    todo.category = categories.get(row);
+    return todo;
+  }
+
+  String owner(int row) {
+    return owners.get(row);
+  }
+
+  String category(int row) {
+    return categories.get(row);
+  }
+
+  Boolean status(int row) {
+    if (isSet(complete, row)) {
+      return Boolean.TRUE;
+    }
+    return isSet(incomplete, row) ? Boolean.FALSE : null;
+  }
+
+  /**
+   * @param row a row number
+   * @return the status of that row as a number: 0 for no status, 1 for
+   *         incomplete, or 2 for complete (the same order as `statusOrder`)
+   */
+  int statusCode(int row) {
+    // At most one of the two bits is set, so there's no need to branch
+    int w = row >>> WORD_SHIFT;
+    return (int) ((complete.get(w) >>> row) & 1) * 2 + (int) ((incomplete.get(w) >>> row) & 1);
+  }
+
+  String body(int row) {
+    return bodies.get(row);
+  }
+
+  /**
+   * @param row    a row number
+   * @param needle the UTF-8 encoding of the text to look for
+   * @return whether that row's body contains the text
+   */
+  boolean bodyContains(int row, byte[] needle) {
+    return bodies.contains(row, needle);
+  }
+
+  private static boolean isSet(LongBuffer bits, int row) {
+    return (bits.get(row >>> WORD_SHIFT) & (1L << row)) != 0;
+  }
+
+  // The raw columns, for writing to a snapshot
+  TextColumn ids() {
+    return ids;
+  }
+
+  DictionaryColumn owners() {
+    return owners;
+  }
+
+  DictionaryColumn categories() {
+    return categories;
+  }
+
+  LongBuffer complete() {
+    return complete.duplicate();
+  }
+
+  LongBuffer incomplete() {
+    return incomplete.duplicate();
+  }
+
+  TextColumn bodies() {
+    return bodies;
+  }
+
+  IntBuffer idSlots() {
+    return idSlots.duplicate();
+  }
+
+  /**
+   * @return the index from each owner to the rows of their todos
+   */
+  Map<String, RowBitmap> ownerIndex() {
+    return owners.index();
+  }
+
+  /**
+   * @return the index from each category to the rows of its todos
+   */
+  Map<String, RowBitmap> categoryIndex() {
+    return categories.index();
+  }
+
+  /**
+   * @param targetStatus the status to look for
+   * @return the rows of the todos with that status
+   */
+  RowBitmap rowsWithStatus(boolean targetStatus) {
+    LongBuffer bits = targetStatus ? complete : incomplete;
+    RowBitmap.Builder rows = new RowBitmap.Builder();
+    for (int w = 0; w < bits.limit(); w++) {
+      for (long word = bits.get(w); word != 0; word &= word - 1) {
+        rows.add((w << WORD_SHIFT) + Long.numberOfTrailingZeros(word));
+      }
+    }
+    return rows.build();
+  }
+
+  /**
+   * @return every row, sorted by owner (stable)
+   */
+  int[] ownerOrder() {
+    return owners.sortOrder();
+  }
+
+  /**
+   * @return every row, sorted by category (stable)
+   */
+  int[] categoryOrder() {
+    return categories.sortOrder();
+  }
+
+  /**
+   * @return every row, sorted by status: no status, then incomplete, then
+   *         complete (stable)
+   */
+  int[] statusOrder() {
+    int[] order = new int[size];
+    int next = 0;
+    for (Boolean pass : new Boolean[] {null, Boolean.FALSE, Boolean.TRUE}) {
+      for (int row = 0; row < size; row++) {
+        if (status(row) == pass) {
+          order[next++] = row;
+        }
+      }
+    }
+    return order;
+  }
+
+  /**
+   * @return every row, sorted by body (stable)
+   */
+  int[] bodyOrder() {
+    // The bodies are decoded just for the sort; Java's `String` order
+    // (UTF-16) isn't quite the same as comparing the UTF-8 bytes.
+    String[] decoded = new String[size];
+    Integer[] rows = new Integer[size];
+    for (int row = 0; row < size; row++) {
+      decoded[row] = bodies.get(row);
+      rows[row] = row;
+    }
+    Comparator<String> byBody = Comparator.nullsFirst(Comparator.naturalOrder());
+    Arrays.sort(rows, (a, b) -> byBody.compare(decoded[a], decoded[b]));
+    return Arrays.stream(rows).mapToInt(Integer::intValue).toArray();
+  }
+}
@@ -1,37 +1,186 @@
 package umm3601.todo;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.UnaryOperator;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
+import io.javalin.http.InternalServerErrorResponse;
 import io.javalin.http.NotFoundResponse;
 import umm3601.Controller;
+import umm3601.ETags;
+import umm3601.Gzip;
+import umm3601.JsonFragments;
+import umm3601.Reloadable;
+import umm3601.ResponseCache;
 //import umm3601.todo.TodoDatabase;
 
 
 public class TodoController implements Controller {
-  private TodoDatabase todoDatabase;
+  public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+  //responses with more todos than this are streamed instead of built in memory
+  public static final int STREAMING_THRESHOLD = 1000;
+  //the attributes a new todo has to have (and the only ones a todo can be given)
+  public static final List<String> TODO_ATTRIBUTES = List.of("owner", "category", "body", "status");
+  //the most todos a batch request can ask for at once
+  public static final int MAX_BATCH_IDS = 1000;
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  //the todos, which can be swapped for a new version at any time (see `Reloadable`),
+  //so each request gets the current `TodoDatabase` once and sticks with it
+  private Reloadable<TodoDatabase> database;
+  private int streamingThreshold;
+  //finished responses to `getTodos`, or null to build every response from scratch
+  private ResponseCache cache;
+  //done once the whole list of the latest todos has been pinned in the cache (see `keepWholeList`)
+  private volatile CompletableFuture<Void> wholeListKept = CompletableFuture.completedFuture(null);
+  //where writes are kept so they survive a restart (see `TodoLog`), or null if they don't have to
+  private TodoLog log;
+  //writes through the log that are waiting for the next commit (see `commit`)
+  private final List<QueuedWrite> queued = new ArrayList<>();
+  //held by whichever writer is committing the queued writes
+  private final Object committing = new Object();
+
+  //a write waiting in `queued`, and how it turned out, once it's been committed
+  private static final class QueuedWrite {
+    private final UnaryOperator<TodoDatabase> change;
+    private TodoDatabase result;
+    private RuntimeException error;
+    private boolean done;
+
+    QueuedWrite(UnaryOperator<TodoDatabase> change) {
+      this.change = change;
+    }
+  }
 
   public TodoController(TodoDatabase todoDatabase) {
-    this.todoDatabase = todoDatabase;
+    this(todoDatabase, STREAMING_THRESHOLD);
+  }
+
+  //builds todoController that streams any response with more than streamingThreshold todos
+  public TodoController(TodoDatabase todoDatabase, int streamingThreshold) {
+    this(todoDatabase, streamingThreshold, null);
+  }
+
+  //builds todoController that also keeps the responses to `getTodos` in the given cache (if it isn't null)
+  public TodoController(TodoDatabase todoDatabase, int streamingThreshold, ResponseCache cache) {
+    this(new Reloadable<>(todoDatabase, null), streamingThreshold, cache);
+  }
+
+  //builds todoController whose todos can be reloaded; the cache is emptied every time they are (or are written to)
+  public TodoController(Reloadable<TodoDatabase> database, int streamingThreshold, ResponseCache cache) {
+    this.database = database;
+    this.streamingThreshold = streamingThreshold;
+    this.cache = cache;
+    if (cache != null) {
+      database.onPublish(todoDatabase -> {
+        cache.clear();
+        keepWholeList(todoDatabase);
+      });
+      keepWholeList(database.get());
+    }
+  }
+
+  //the whole unfiltered list is asked for all the time, so it's built and gzipped once for each version of the todos,
+  //in the background rather than on a request's thread, and pinned in the cache if there's room for it
+  //(until then, or if there isn't room, it's streamed like any other big response)
+  private void keepWholeList(TodoDatabase todoDatabase) {
+    if (todoDatabase.hasChanges()) {
+      //the next write would just throw it away again
+      return;
+    }
+    //one at a time, carrying on after one that failed, which just leaves that version streamed
+    wholeListKept = wholeListKept.exceptionally(e -> null).thenRunAsync(() -> pinWholeList(todoDatabase));
+  }
+
+  private void pinWholeList(TodoDatabase todoDatabase) {
+    if (database.get() != todoDatabase) {
+      //there are newer todos already
+      return;
+    }
+    Map<String, List<String>> everything = Map.of();
+    int[] rows = todoDatabase.listTodoRows(everything);
+    if (todoDatabase.json().length(rows) > cache.maxPinnedBytes()) {
+      return;
+    }
+    ResponseCache.Response response = new ResponseCache.Response(todoDatabase.json().toBytes(rows),
+      todoDatabase.nextCursor(everything, rows));
+    //the cache is emptied after newer todos are published, so checking they still haven't been
+    //(while no one else can use the cache) means it can't be kept around for todos that are gone
+    synchronized (cache) {
+      if (database.get() == todoDatabase) {
+        cache.pin(todoDatabase.version() + "?" + ResponseCache.key(everything), response);
+      }
+    }
+  }
+
+  //done once the whole list of the latest todos has been pinned, or turned out not to fit
+  CompletableFuture<Void> wholeListKept() {
+    return wholeListKept;
+  }
+
+  //builds todoController that also appends every write to the given log (if it isn't null),
+  //which the todos must have been recovered from
+  TodoController(Reloadable<TodoDatabase> database, int streamingThreshold, ResponseCache cache, TodoLog log) {
+    this(database, streamingThreshold, cache);
+    this.log = log;
   }
 
-  //builds todoController with given todoDataFile
+  //builds todoController with given todoDataFile, reloading it whenever it changes (if it's in the filesystem)
   public static TodoController buildTodoController(String todoDataFile) throws IOException {
     TodoController todoController = null;
 
     TodoDatabase todoDatabase = new TodoDatabase(todoDataFile);
-    todoController = new TodoController(todoDatabase);
+    Reloadable<TodoDatabase> todos = new Reloadable<>(todoDatabase, () -> new TodoDatabase(todoDataFile));
+    todoController = new TodoController(todos.watch(todoDataFile), STREAMING_THRESHOLD,
+      new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES));
 
     return todoController;
   }
 
+  //builds todoController whose writes are kept in the given log file (see `TodoLog`), if it isn't null
+  //the todos are then recovered from the log (and the snapshot it was last folded into), and only read
+  //from todoDataFile the first time, before there is a snapshot; after that, the log and the snapshot
+  //are the only record of the writes, so the todos aren't reloaded from todoDataFile when it changes
+  public static TodoController buildTodoController(String todoDataFile, String todoLogFile) throws IOException {
+    if (todoLogFile == null) {
+      return buildTodoController(todoDataFile);
+    }
+    TodoLog log = TodoLog.open(Path.of(todoLogFile));
+    Reloadable<TodoDatabase> todos = new Reloadable<>(log.recover(todoDataFile), null);
+    TodoController todoController = new TodoController(todos, STREAMING_THRESHOLD,
+      new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES), log);
+    //a long log (e.g., from before a crash) is folded into a new snapshot straight away
+    if (todos.get().needsCompaction()) {
+      todoController.compact();
+    }
+    return todoController;
+  }
+
   //Gets single todo with a given ID
+  //a client that already has it (according to `If-None-Match`) gets a 304 instead
   public void getTodo(Context ctx) {
+    TodoDatabase todoDatabase = database.get();
     String id = ctx.pathParam("id");
     Todo todos = todoDatabase.getTodosByID(id);
     if (todos != null) {
+      if (ETags.notModified(ctx, ETags.of(todoDatabase.version(), "id=" + id))) {
+        return;
+      }
       ctx.json(todos);
       ctx.status(HttpStatus.OK);
     } else {
@@ -40,14 +189,328 @@ public class TodoController implements Controller {
   }
 
   //gets todos that fit with given path parameters
+  //if there's another page of them, the cursor for it goes in the X-Next-Cursor header
+  //if there's a cache, a query it has seen before is answered straight from it (gzipped, if the client allows)
+  //a client that already has the response (according to `If-None-Match`) gets a 304 instead
   public void getTodos(Context ctx) {
-    Todo[] todos = todoDatabase.listTodos(ctx.queryParamMap());
-    ctx.json(todos);
+    TodoDatabase todoDatabase = database.get();
+    String key = ResponseCache.key(ctx.queryParamMap());
+    if (ETags.notModified(ctx, ETags.of(todoDatabase.version(), key))) {
+      return;
+    }
+    //cached responses are kept by version too, so one built from old todos
+    //(by a request that was still going when they were reloaded) is never sent
+    String cacheKey = todoDatabase.version() + "?" + key;
+    ResponseCache.Response cached = cache == null ? null : cache.get(cacheKey);
+    if (cached != null) {
+      send(ctx, cached, "HIT");
+      return;
+    }
+    //the JSON of each todo was worked out when they were loaded (see `JsonFragments`),
+    //so a response is put together from that, without making any `Todo`s
+    int[] rows = todoDatabase.listTodoRows(ctx.queryParamMap());
+    String nextCursor = todoDatabase.nextCursor(ctx.queryParamMap(), rows);
+    if (rows.length > streamingThreshold) {
+      //too big to keep around, so not cached, and gzipped (if the client allows) by Javalin as it's streamed
+      setNextCursor(ctx, nextCursor);
+      todoDatabase.json().write(ctx, rows);
+    } else if (cache != null) {
+      ResponseCache.Response response = new ResponseCache.Response(todoDatabase.json().toBytes(rows), nextCursor);
+      cache.put(cacheKey, response);
+      send(ctx, response, "MISS");
+    } else {
+      setNextCursor(ctx, nextCursor);
+      ctx.json(todoDatabase.todosAt(rows));
+    }
+  }
+
+  private static void setNextCursor(Context ctx, String nextCursor) {
+    if (nextCursor != null) {
+      ctx.header(NEXT_CURSOR_HEADER, nextCursor);
+    }
+  }
+
+  //sends an already serialized list of todos, gzipped if the client accepts that
+  private static void send(Context ctx, ResponseCache.Response response, String cacheStatus) {
+    setNextCursor(ctx, response.nextCursor());
+    ctx.header(ResponseCache.CACHE_HEADER, cacheStatus);
+    ctx.contentType("application/json");
+    Gzip.send(ctx, response.body(), response.gzipped());
+  }
+
+  //gets the todos with each of the ids in the request body (a JSON array), in one go instead of a request each
+  //they're sent in the same order as the ids, streamed straight into the response, and an id that no todo has
+  //gets {"_id": id, "missing": true} in its place
+  public void getTodosBatch(Context ctx) {
+    List<String> ids = parseIds(ctx);
+    TodoDatabase todoDatabase = database.get();
+    int[] rows = todoDatabase.rowsOfIds(ids);
+    ctx.status(HttpStatus.OK);
+    todoDatabase.json().write(ctx, rows, i -> JsonFragments.missing(ids.get(i)));
+  }
+
+  //the JSON array of ids in the request body
+  private static List<String> parseIds(Context ctx) {
+    List<String> ids;
+    try {
+      ids = MAPPER.readValue(ctx.body(), new TypeReference<List<String>>() { });
+    } catch (JsonProcessingException e) {
+      throw new BadRequestResponse("The request body must be a JSON array of todo ids");
+    }
+    if (ids == null || ids.contains(null)) {
+      throw new BadRequestResponse("The request body must be a JSON array of todo ids");
+    }
+    if (ids.size() > MAX_BATCH_IDS) {
+      throw new BadRequestResponse("A batch can have at most " + MAX_BATCH_IDS + " ids, not " + ids.size());
+    }
+    return ids;
+  }
+
+  //gets the todos that best match the words in `q`, best first
+  public void searchTodos(Context ctx) {
+    TodoDatabase todoDatabase = database.get();
+    String key = "search?" + ResponseCache.key(ctx.queryParamMap());
+    if (ETags.notModified(ctx, ETags.of(todoDatabase.version(), key))) {
+      return;
+    }
+    ctx.json(todoDatabase.searchTodos(ctx.queryParamMap()));
+    ctx.status(HttpStatus.OK);
+  }
+
+  //counts the todos that fit with given path parameters, grouped by the attributes in `groupBy`
+  //e.g. `?groupBy=owner,category&status=complete` gives the number of complete todos each owner has in each category
+  public void summarizeTodos(Context ctx) {
+    TodoDatabase todoDatabase = database.get();
+    String key = "summary?" + ResponseCache.key(ctx.queryParamMap());
+    if (ETags.notModified(ctx, ETags.of(todoDatabase.version(), key))) {
+      return;
+    }
+    ctx.json(todoDatabase.summarizeTodos(ctx.queryParamMap()));
+    ctx.status(HttpStatus.OK);
+  }
+
+  //adds a todo with the owner, category, body, and status in the request body (a JSON object)
+  //it's given a new id, which is sent back as `{"id": ...}`
+  public void addNewTodo(Context ctx) {
+    Map<String, Object> attributes = parseAttributes(ctx);
+    for (String attribute : TODO_ATTRIBUTES) {
+      if (!attributes.containsKey(attribute)) {
+        throw new BadRequestResponse("A new todo needs a '" + attribute + "'");
+      }
+    }
+    Todo newTodo = new Todo();
+    setAttributes(newTodo, attributes);
+    write(todoDatabase -> {
+      newTodo._id = todoDatabase.newId();
+      return todoDatabase.withTodo(newTodo);
+    });
+    ctx.json(Map.of("id", newTodo._id));
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  //changes just the attributes in the request body (a JSON object) of the todo with the given id
+  //and sends back the whole todo as it is now
+  public void updateTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    Map<String, Object> attributes = parseAttributes(ctx);
+    TodoDatabase updated = write(todoDatabase -> {
+      Todo todo = todoDatabase.getTodosByID(id);
+      if (todo == null) {
+        throw new NotFoundResponse("No todo with id " + id + " was found.");
+      }
+      setAttributes(todo, attributes);
+      return todoDatabase.withTodo(todo);
+    });
+    ctx.json(updated.getTodosByID(id));
+    ctx.status(HttpStatus.OK);
+  }
+
+  //deletes the todo with the given id
+  public void deleteTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    write(todoDatabase -> {
+      if (todoDatabase.getTodosByID(id) == null) {
+        throw new NotFoundResponse("No todo with id " + id + " was found.");
+      }
+      return todoDatabase.withoutTodo(id);
+    });
+    ctx.status(HttpStatus.OK);
+  }
+
+  //makes one write, then publishes the new version of the todos (see `Reloadable.update`)
+  //readers never wait for a write; they just get the new version from their next request on
+  //if there's a log, the write is only published once it's on the disk (see `commit`)
+  //once there have been enough writes, new indexes are built with them in, in the background,
+  //and if writes are coming in faster than that can keep up with, it's the writers that wait for it
+  private TodoDatabase write(UnaryOperator<TodoDatabase> change) {
+    TodoDatabase updated = log == null ? database.update(change) : commit(change);
+    if (updated.needsCompaction()) {
+      CompletableFuture<TodoDatabase> compacted = compact();
+      if (updated.isBehindOnCompaction()) {
+        try {
+          compacted.join();
+        } catch (CompletionException e) {
+          //the write is already saved and published, so it still succeeded; the compaction has been
+          //logged (see `Reloadable.rebuild`), and is tried again on the next write
+        }
+      }
+    }
+    return updated;
+  }
+
+  //makes a write through the log: it's queued, and whichever writer gets to commit next makes all the
+  //queued writes, appends them to the log, and syncs it once for all of them (see `TodoLog.sync`), and only
+  //then publishes them, so nobody ever sees a write that could still be lost; writers that arrive while a
+  //commit is under way are all in the next one, so the more writers there are, the more writes each sync covers
+  private TodoDatabase commit(UnaryOperator<TodoDatabase> change) {
+    QueuedWrite write = new QueuedWrite(change);
+    synchronized (queued) {
+      queued.add(write);
+    }
+    synchronized (committing) {
+      if (!write.done) {
+        List<QueuedWrite> batch;
+        synchronized (queued) {
+          batch = new ArrayList<>(queued);
+          queued.clear();
+        }
+        commit(batch);
+      }
+    }
+    if (write.error != null) {
+      throw write.error;
+    }
+    return write.result;
+  }
+
+  //makes, syncs, and publishes a batch of writes, or none of them if they can't be saved; a write that
+  //isn't allowed (e.g., to a todo that isn't there) just fails on its own; only called holding `committing`
+  private void commit(List<QueuedWrite> batch) {
+    try {
+      database.update(todoDatabase -> {
+        try {
+          //once the log has failed, nothing more is written, not even in memory
+          log.checkWritable();
+          TodoDatabase next = todoDatabase;
+          for (QueuedWrite write : batch) {
+            try {
+              next = write.change.apply(next);
+              write.result = next;
+            } catch (RuntimeException e) {
+              write.error = e;
+            }
+          }
+          if (next != todoDatabase) {
+            log.append(next.writesSince(todoDatabase));
+            log.sync(next.sequence());
+          }
+          return next;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      //nothing was published, so none of the writes happened
+      for (QueuedWrite write : batch) {
+        if (write.error == null) {
+          write.error = new InternalServerErrorResponse("The todos couldn't be saved: " + e.getCause().getMessage());
+        }
+      }
+    } finally {
+      for (QueuedWrite write : batch) {
+        write.done = true;
+      }
+    }
+  }
+
+  //builds new indexes with all the writes so far folded in, in the background, and catches them up with
+  //any writes made in the meantime; if there's a log, the compacted todos become its new snapshot
+  private CompletableFuture<TodoDatabase> compact() {
+    return database.rebuild(todoDatabase -> {
+      TodoDatabase compacted = todoDatabase.compacted();
+      if (log != null) {
+        try {
+          log.checkpoint(compacted);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      return compacted;
+    }, (rebuilt, latest) -> latest.rebasedOnto(rebuilt));
+  }
+
+  //the JSON object in the request body
+  private static Map<String, Object> parseAttributes(Context ctx) {
+    Map<String, Object> attributes;
+    try {
+      attributes = MAPPER.readValue(ctx.body(), new TypeReference<Map<String, Object>>() { });
+    } catch (JsonProcessingException e) {
+      throw new BadRequestResponse("The request body must be a JSON object of todo attributes");
+    }
+    if (attributes == null) {
+      throw new BadRequestResponse("The request body must be a JSON object of todo attributes");
+    }
+    return attributes;
+  }
+
+  //sets the todo's attributes, after checking each is one a todo has, with a value of the right type
+  private static void setAttributes(Todo todo, Map<String, Object> attributes) {
+    for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+      String name = attribute.getKey();
+      Object value = attribute.getValue();
+      if (!TODO_ATTRIBUTES.contains(name)) {
+        throw new BadRequestResponse("Specified attribute '" + name + "' is not one a todo can be given");
+      }
+      if (name.equals("status")) {
+        if (!(value instanceof Boolean)) {
+          throw new BadRequestResponse("Specified status '" + value + "' must be true or false");
+        }
+        todo.status = (Boolean) value;
+      } else {
+        if (!(value instanceof String) || (!name.equals("body") && ((String) value).isBlank())) {
+          throw new BadRequestResponse("Specified " + name + " '" + value + "' must be a non-empty string");
+        }
+        switch (name) {
+          case "owner" -> todo.owner = (String) value;
+          case "category" -> todo.category = (String) value;
+          default -> todo.body = (String) value;
+        }
+      }
+    }
+  }
+
+  //loads the todos again in the background, and switches over to them once they're ready
+  //requests carry on with the old todos until then (and keep them if the new ones can't be loaded)
+  //anything written since the todos were last loaded is replaced by whatever is in the data file now,
+  //so todos kept in a log (which holds writes the data file doesn't have) are never reloaded
+  public CompletableFuture<TodoDatabase> reload() {
+    return database.reload();
+  }
+
+  //asks for the todos to be reloaded; the response (202) doesn't wait for that to finish
+  //todos that can't be reloaded, e.g., because they're kept in a log, get a 409 instead
+  public void reloadTodos(Context ctx) {
+    if (log != null) {
+      throw new ConflictResponse("The todos are kept in a log, so they can't be reloaded from the data file");
+    }
+    if (!database.canReload()) {
+      throw new ConflictResponse("The todos can't be reloaded");
+    }
+    reload();
+    ctx.status(HttpStatus.ACCEPTED);
   }
 
   @Override
   public void addRoutes(Javalin server) {
+    server.post("/api/todos/reload", this::reloadTodos);
+    server.post("/api/todos/batch", this::getTodosBatch);
+    //these have to come before the `{id}` route, or "search" and "summary" would be taken as ids
+    server.get("/api/todos/search", this::searchTodos);
+    server.get("/api/todos/summary", this::summarizeTodos);
     server.get("api/todos/{id}", this::getTodo);
     server.get("/api/todos", this::getTodos);
+    server.post("/api/todos", this::addNewTodo);
+    server.patch("/api/todos/{id}", this::updateTodo);
+    server.delete("/api/todos/{id}", this::deleteTodo);
   }
 }
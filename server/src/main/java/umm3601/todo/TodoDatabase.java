@@ -1,37 +1,444 @@
 package umm3601.todo;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 import io.javalin.http.BadRequestResponse;
+import umm3601.CaseFoldedDictionary;
+import umm3601.ETags;
+import umm3601.JsonFragments;
+import umm3601.PageCursor;
+import umm3601.RecordLoader;
 
+/**
+ * The todos, with indexes for answering queries about them.
+ * <p>
+ * A database never changes. Writing to it (`withTodo`, `withoutTodo`) gives a
+ * new version, which shares the columns and indexes with this one and just
+ * adds the new todo to a short list of changes (see `TodoChanges`), so a
+ * write takes time in proportion to the number of changes, not the number
+ * of todos. Requests still using an older version carry on undisturbed, so
+ * readers never have to wait for writers (see `Reloadable.update`). Once
+ * there are enough changes to slow things down, `compacted` builds new
+ * columns and indexes with them folded in.
+ */
 public class TodoDatabase {
+  // How many results a search returns if it doesn't give a `limit`
+  public static final int DEFAULT_SEARCH_LIMIT = 20;
+  // A database is due to be compacted once there have been this many
+  // writes, or this fraction as many as there are todos, whichever is more
+  public static final int COMPACTION_CHANGES = 1024;
+  public static final int COMPACTION_FRACTION = 64;
+  // If there get to be this many times as many writes as that (because
+  // they're coming faster than compactions can keep up with), writers
+  // should wait for a compaction, so that reads don't slow down
+  public static final int COMPACTION_BACKLOG = 4;
+  private static final int ID_BYTES = 12;
+
 
-  private Todo[] allTodos;
+  // The todos themselves, stored by column (see `TodoColumns`). A todo's
+  // "row" is its position in the data file.
+  private TodoColumns columns;
+  // Secondary indexes, built at load time. Each maps a value to the
+  // bitmap of the rows of the todos having that value.
+  private Map<String, RowBitmap> todosByOwner;
+  private Map<String, RowBitmap> todosByCategory;
+  // The owners, case-folded and sorted, for case-insensitive and prefix
+  // matching of `owner`
+  private CaseFoldedDictionary ownerNames;
+  private RowBitmap completeRows;
+  private RowBitmap incompleteRows;
+  // Each of the `Lazy` ones takes a pass over all the todos to build, so for
+  // a snapshot, which has to be ready straight away, it's built the first
+  // time it's needed; todos loaded from JSON, or compacted, have them built
+  // before they're used.
+  // The trigrams of every body, for `contains`
+  private Lazy<NgramIndex> bodyGrams;
+  // The words in every body and category, for ranked search
+  private Lazy<TermIndex> terms;
+  // For counting todos by owner, category, and status
+  private Lazy<TodoSummary> summary;
+  // For each attribute that can be used for `orderBy`, the rows of all the
+  // todos sorted by that attribute (`sortOrders`), and its inverse, the
+  // position of each row in that sorted order (`sortRanks`). Both are built
+  // once at load time and never modified.
+  private Map<String, int[]> sortOrders;
+  private Map<String, int[]> sortRanks;
+  // A digest of all the todos, which only changes if they do (see `ETags`)
+  private String version;
+  // The JSON of every todo in the columns, by row, for putting responses together
+  private JsonFragments json;
+  // The todos written to since the columns and indexes were built, which
+  // take precedence over them; a freshly loaded database has none
+  private TodoChanges changes;
+  // The version of just the todos in the columns, which is what page cursors
+  // belong to: rows stay put across writes, but not across compaction
+  private String baseVersion;
+  // Worked out from the columns and the changes the first time they're
+  // needed, if there are any changes: every row in use, in ascending order,
+  // and the sort order and ranks for each `orderBy`, as `{order, ranks}`
+  private volatile int[] rowsInUse;
+  private Map<String, int[][]> changedOrderings = new ConcurrentHashMap<>();
 
+  /**
+   * Load the todos from a classpath resource, or from a file or directory
+   * of shards in the filesystem (see `RecordLoader.load`), or open a
+   * snapshot file (one ending in `.snapshot`; see `TodoSnapshot`).
+   *
+   * @param todoDataFile where to find the todos
+   * @throws IOException if the todos can't be found or read
+   */
   public TodoDatabase(String todoDataFile) throws IOException {
-    //makes sure JSON file is there
-    InputStream resourceAsStream = getClass().getResourceAsStream(todoDataFile);
-    //throws error if todoDataFile is not found
-    if (resourceAsStream == null) {
-      throw new IOException("Could not find " + todoDataFile);
+    this(load(todoDataFile));
+    if (!todoDataFile.endsWith(TodoSnapshot.EXTENSION)) {
+      // Parsing the JSON took a while anyway
+      buildIndexes();
+    }
+  }
+
+  // The columns, the JSON of each todo in them, the sort orders for them,
+  // the number of the last write already in them, and their version
+  private record Base(TodoColumns columns, JsonFragments json, Map<String, int[]> sortOrders, long sequence,
+      String version) {
+  }
+
+  /**
+   * Something worked out from the columns the first time it's needed,
+   * which every version of the database made from them then shares.
+   *
+   * @param <T> what is worked out
+   */
+  private static final class Lazy<T> {
+    private final Supplier<T> build;
+    private volatile T value;
+
+    Lazy(Supplier<T> build) {
+      this.build = build;
+    }
+
+    T get() {
+      T built = value;
+      if (built == null) {
+        synchronized (this) {
+          built = value;
+          if (built == null) {
+            built = build.get();
+            value = built;
+          }
+        }
+      }
+      return built;
+    }
+  }
+
+  private static Base load(String todoDataFile) throws IOException {
+    if (todoDataFile.endsWith(TodoSnapshot.EXTENSION)) {
+      // A snapshot already has the columns, the JSON, the sort orders, and
+      // the version in it
+      TodoSnapshot snapshot = TodoSnapshot.open(Path.of(todoDataFile));
+      return new Base(snapshot.columns(), snapshot.json(), snapshot.sortOrders(), snapshot.sequence(),
+        snapshot.version());
+    }
+    // Read the todos one at a time, adding each to the columns (and
+    // serializing it) as soon as it has been parsed, so the parsed `Todo`
+    // can be thrown away straight after
+    TodoColumns.Builder builder = new TodoColumns.Builder();
+    JsonFragments.Builder json = new JsonFragments.Builder();
+    RecordLoader.load(todoDataFile, Todo.class, todo -> {
+      builder.add(todo);
+      json.add(todo);
+    });
+    return sorted(builder.build(), json.build(), 0);
+  }
+
+  private static Base sorted(TodoColumns columns, JsonFragments json, long sequence) {
+    return new Base(columns, json, Map.of(
+      "status", columns.statusOrder(),
+      "owner", columns.ownerOrder(),
+      "category", columns.categoryOrder(),
+      "body", columns.bodyOrder()), sequence, versionOf(columns));
+  }
+
+  // A digest of all the todos in some columns
+  private static String versionOf(TodoColumns columns) {
+    ETags.Version digest = new ETags.Version();
+    for (int row = 0; row < columns.size(); row++) {
+      digest.add(columns.ids().get(row)).add(columns.owner(row)).add(columns.category(row))
+        .add(String.valueOf(columns.status(row))).add(columns.body(row));
+    }
+    return digest.finish();
+  }
+
+  /**
+   * Build the indexes for some columns.
+   *
+   * @param base the columns, their sort orders, the number of the last
+   *             write already in them, and their version
+   */
+  private TodoDatabase(Base base) {
+    columns = base.columns();
+    sortOrders = base.sortOrders();
+    // The bitmap indexes take one pass over the (small) code columns
+    todosByOwner = columns.ownerIndex();
+    ownerNames = new CaseFoldedDictionary(todosByOwner.keySet());
+    todosByCategory = columns.categoryIndex();
+    completeRows = columns.rowsWithStatus(true);
+    incompleteRows = columns.rowsWithStatus(false);
+    TodoColumns indexed = columns;
+    bodyGrams = new Lazy<>(() -> NgramIndex.of(indexed.bodies()));
+    terms = new Lazy<>(() -> TermIndex.of(indexed));
+    summary = new Lazy<>(() -> new TodoSummary(indexed));
+    sortRanks = new HashMap<>();
+    for (Map.Entry<String, int[]> ordering : sortOrders.entrySet()) {
+      int[] order = ordering.getValue();
+      int[] rank = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        rank[order[i]] = i;
+      }
+      sortRanks.put(ordering.getKey(), rank);
+    }
+    version = base.version();
+    json = base.json();
+    changes = TodoChanges.none(columns.size(), base.sequence());
+    baseVersion = version;
+  }
+
+  // Build everything that would otherwise be built the first time it's needed
+  private void buildIndexes() {
+    bodyGrams.get();
+    terms.get();
+    summary.get();
+  }
+
+  /**
+   * Make a new version of a database, with different changes.
+   *
+   * @param base    the database to share the columns and indexes of
+   * @param changes all the writes since those were built
+   */
+  private TodoDatabase(TodoDatabase base, TodoChanges changes) {
+    columns = base.columns;
+    todosByOwner = base.todosByOwner;
+    todosByCategory = base.todosByCategory;
+    ownerNames = base.ownerNames;
+    completeRows = base.completeRows;
+    incompleteRows = base.incompleteRows;
+    bodyGrams = base.bodyGrams;
+    terms = base.terms;
+    summary = base.summary;
+    sortOrders = base.sortOrders;
+    sortRanks = base.sortRanks;
+    baseVersion = base.baseVersion;
+    json = base.json;
+    this.changes = changes;
+    // Every write gets a new number, so that's enough to tell the versions apart
+    version = new ETags.Version().add(baseVersion).add(String.valueOf(changes.sequence())).finish();
+  }
+
+  /**
+   * Write everything this database knows to a snapshot file, which a later
+   * `TodoDatabase` can open far faster than it could parse the JSON. The
+   * snapshot also records the number of the last write in it, so that a
+   * `TodoLog` can be replayed on top of it.
+   *
+   * @param file where to write the snapshot; it should end in `.snapshot`
+   * @throws IOException if the file can't be written
+   */
+  public void writeSnapshot(Path file) throws IOException {
+    if (!changes.isEmpty()) {
+      compacted().writeSnapshot(file);
+      return;
     }
-    // constructs reader to parse JSON file objects
-    InputStreamReader reader = new InputStreamReader(resourceAsStream);
-    ObjectMapper objectMapper = new ObjectMapper();
-    // Read our todo data file into an array of Todo objects.
-    allTodos = objectMapper.readValue(reader, Todo[].class);
+    TodoSnapshot.write(file, columns, json, sortOrders, changes.sequence(), version);
   }
 
   public int size() {
-    return allTodos.length;
+    return columns.size() + changes.sizeChange();
+  }
+
+  /**
+   * @return the version of the todos in this database, which is the same
+   *         for the same todos, however they were loaded
+   */
+  public String version() {
+    return version;
+  }
+
+  /**
+   * @return the JSON of every todo, by row, serialized when the todos were
+   *         loaded (or, for todos written since, when they were written);
+   *         see `listTodoRows`
+   */
+  public JsonFragments json() {
+    return changes.isEmpty() ? json : json.with(changes.rows(), changes.json());
+  }
+
+  /**
+   * @return the number of the last write to these todos, or to the ones
+   *         they were compacted from
+   */
+  public long sequence() {
+    return changes.sequence();
+  }
+
+  /**
+   * @return whether any todos have been written to since the indexes were
+   *         built, i.e., whether this isn't a freshly loaded or compacted
+   *         database
+   */
+  public boolean hasChanges() {
+    return !changes.isEmpty();
+  }
+
+  /**
+   * Make a new version of the todos with one more todo in it, or with one
+   * todo changed.
+   *
+   * @param todo the todo; if there's already one with its `_id`, this replaces
+   *             that one, in the same place, and otherwise it goes at the end
+   * @return the new version, sharing everything it can with this one
+   */
+  public TodoDatabase withTodo(Todo todo) {
+    Todo copy = TodoChanges.copy(todo);
+    return apply(List.of(new TodoChanges.Change(sequence() + 1, copy._id, -1, copy, JsonFragments.serialize(copy))));
+  }
+
+  /**
+   * Make a new version of the todos without the todo with the given ID.
+   *
+   * @param id the ID of the todo to delete
+   * @return the new version, sharing everything it can with this one; if
+   *         there's no todo with the ID, it's the same as this one
+   */
+  public TodoDatabase withoutTodo(String id) {
+    return apply(List.of(new TodoChanges.Change(sequence() + 1, id, -1, null, null)));
+  }
+
+  /**
+   * Add some writes to the changes, working out where each todo goes: the
+   * same row as before, if there's a todo with its ID, or else the next
+   * free row. This is also how a `TodoLog` is replayed.
+   *
+   * @param writes the writes, in order; their rows are ignored
+   * @return the new version
+   */
+  TodoDatabase apply(List<TodoChanges.Change> writes) {
+    Map<String, TodoChanges.Change> placed = new LinkedHashMap<>();
+    int nextRow = changes.rowLimit();
+    for (TodoChanges.Change write : writes) {
+      TodoChanges.Change before = placed.containsKey(write.id()) ? placed.get(write.id()) : changes.get(write.id());
+      int row = before != null ? before.row() : columns.rowOf(write.id());
+      boolean exists = before != null ? before.todo() != null : row >= 0;
+      if (write.todo() == null && !exists) {
+        // Nothing to delete
+        continue;
+      }
+      if (row < 0) {
+        row = nextRow++;
+      }
+      placed.remove(write.id());
+      placed.put(write.id(), new TodoChanges.Change(write.sequence(), write.id(), row, write.todo(), write.json()));
+    }
+    return placed.isEmpty() ? this : new TodoDatabase(this, changes.with(placed.values(), nextRow));
+  }
+
+  /**
+   * @param older an earlier version of this database, which this one was
+   *              made from by writing to it
+   * @return the writes made since that version, in order, e.g., to add to a
+   *         `TodoLog`
+   */
+  List<TodoChanges.Change> writesSince(TodoDatabase older) {
+    return changes.writesSince(older.changes);
+  }
+
+  /**
+   * @return a new ID, like those in the data (24 hex digits), that no todo has
+   */
+  public String newId() {
+    byte[] bytes = new byte[ID_BYTES];
+    String id;
+    do {
+      ThreadLocalRandom.current().nextBytes(bytes);
+      id = HexFormat.of().formatHex(bytes);
+    } while (rowOf(id) >= 0 || changes.get(id) != null);
+    return id;
+  }
+
+  /**
+   * @return whether there are enough changes that it's worth building new
+   *         columns and indexes with them folded in (see `compacted`)
+   */
+  public boolean needsCompaction() {
+    return changes.count() >= compactionThreshold();
+  }
+
+  /**
+   * @return whether there are so many changes that no more writes should be
+   *         made until there has been a compaction (see `COMPACTION_BACKLOG`)
+   */
+  public boolean isBehindOnCompaction() {
+    return changes.count() >= (long) COMPACTION_BACKLOG * compactionThreshold();
+  }
+
+  private int compactionThreshold() {
+    return Math.max(COMPACTION_CHANGES, columns.size() / COMPACTION_FRACTION);
+  }
+
+  /**
+   * Build new columns and indexes for exactly the todos in this version,
+   * with no changes on top. The todos stay in the same order. This takes
+   * as long as loading them did, so it's best done in the background (see
+   * `Reloadable.rebuild`), and then caught up with `rebasedOnto`.
+   *
+   * @return a database with the same todos as this one, and no changes
+   */
+  public TodoDatabase compacted() {
+    if (changes.isEmpty()) {
+      return this;
+    }
+    TodoColumns.Builder builder = new TodoColumns.Builder();
+    // The todos have all been serialized already, so that's just copied
+    JsonFragments current = json();
+    JsonFragments.Builder json = new JsonFragments.Builder();
+    for (int row : rowsInUse()) {
+      builder.add(todoAt(row));
+      json.addSerialized(current.fragment(row));
+    }
+    TodoDatabase compacted = new TodoDatabase(sorted(builder.build(), json.build(), changes.sequence()));
+    // This is done off to the side, so the new indexes can be ready by the
+    // time it takes over
+    compacted.buildIndexes();
+    return compacted;
+  }
+
+  /**
+   * Catch a compacted database up with this one, by making the writes this
+   * one has had since the version it was compacted from.
+   *
+   * @param compacted the result of `compacted` on an earlier version of this
+   *                  database (or on this one)
+   * @return the compacted database, with those writes on top
+   */
+  public TodoDatabase rebasedOnto(TodoDatabase compacted) {
+    return compacted.apply(changes.since(compacted.sequence()));
   }
 
   /**
@@ -41,155 +448,731 @@ public class TodoDatabase {
    * @return the todo with the given ID, or null if there is no todo with that ID
    */
   public Todo getTodosByID(String id) {
-    return Arrays.stream(allTodos).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+    int row = rowOf(id);
+    return row < 0 ? null : todoAt(row);
+  }
+
+  /**
+   * Find many todos at once, e.g., for a batch request.
+   *
+   * @param ids the IDs of the todos
+   * @return the row of the todo with each ID, in the same order, or -1 for
+   *         each ID that no todo has; see `json`
+   */
+  public int[] rowsOfIds(List<String> ids) {
+    int[] rows = new int[ids.size()];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = rowOf(ids.get(i));
+    }
+    return rows;
+  }
+
+  // The row of the todo with the given ID, or -1 if there isn't one
+  private int rowOf(String id) {
+    TodoChanges.Change change = changes.get(id);
+    if (change != null) {
+      return change.todo() == null ? -1 : change.row();
+    }
+    return columns.rowOf(id);
+  }
+
+  private Todo todoAt(int row) {
+    Todo changed = changes.isEmpty() ? null : changes.todoAt(row);
+    return changed != null ? changed : columns.get(row);
   }
 
   /**
    * Get an array of all the todos satisfying the queries in the params.
+   * <p>
+   * The filters (`owner`, `category`, `status`, and `contains`) are all
+   * applied together. The indexed filters are answered by intersecting
+   * their row bitmaps, smallest first, and only the rows that survive are
+   * checked against the remaining filters and turned back into todos. The
+   * matches are then ordered (if `orderBy` is given), everything up to the
+   * `after` cursor (if given) is skipped, and the result is cut down to
+   * `limit`.
+   * <p>
+   * `owner` ignores case, and a trailing `*` makes it a prefix, so
+   * `owner=blan*` finds Blanche's todos (see `CaseFoldedDictionary`).
+   *
    * @param queryParams map of key-value pairs for the query
    * @return an array of all the todos matching the given criteria
    */
   public Todo[] listTodos(Map<String, List<String>> queryParams) {
-    Todo[] filteredTodos = allTodos;
+    return todosAt(listTodoRows(queryParams));
+  }
+
+  /**
+   * Find all the todos satisfying the queries in the params, just like
+   * `listTodos`, but give back their rows rather than the todos themselves.
+   * Those can be sent as JSON with `json()`, without any `Todo`s being made.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the rows of all the todos matching the given criteria, in order
+   */
+  public int[] listTodoRows(Map<String, List<String>> queryParams) {
+    List<TodoFilter> filters = parseFilters(queryParams);
+    String orderBy = queryParams.containsKey("orderBy") ? queryParams.get("orderBy").get(0) : null;
+    int[] order = orderBy == null ? null : sortOrder(orderBy);
+    Integer limit = parseLimit(queryParams);
+    // The position (in the active order) of the last todo the client has
+    // already seen, or -1 to start from the beginning
+    int after = -1;
+    if (queryParams.containsKey("after")) {
+      String cursor = queryParams.get("after").get(0);
+      after = orderBy == null ? PageCursor.decode(cursor, baseVersion, "") : positionOf(cursor, orderBy);
+    }
+
+    if (filters.isEmpty()) {
+      // Every row is a match, so we can go straight to the requested page
+      int[] all = order;
+      int from = Math.min(after + 1, size());
+      if (order == null && !changes.isEmpty()) {
+        // There are gaps where todos have been deleted, so the cursor's
+        // row isn't necessarily its position
+        all = rowsInUse();
+        int start = Arrays.binarySearch(all, after + 1);
+        from = start < 0 ? -start - 1 : start;
+      }
+      int to = limit == null ? size() : (int) Math.min(size(), (long) from + limit);
+      if (all != null) {
+        return Arrays.copyOfRange(all, from, to);
+      }
+      return IntStream.range(from, to).toArray();
+    }
+
+    int[] rows = matchingRows(filters);
+    if (order == null) {
+      // the matches are already in ascending row order, so find the first
+      // one past the cursor
+      int start = Arrays.binarySearch(rows, after + 1);
+      rows = Arrays.copyOfRange(rows, start < 0 ? -start - 1 : start, rows.length);
+    } else {
+      rows = rowsRankedAfter(rows, orderBy, after);
+      if (limit != null && limit < rows.length) {
+        // only the first `limit` rows matter, so don't order the rest
+        rows = topRows(rows, orderBy, limit);
+      } else {
+        rows = orderRows(rows, orderBy);
+      }
+    }
+    if (limit != null && limit < rows.length) {
+      rows = Arrays.copyOf(rows, limit);
+    }
+    return rows;
+  }
+
+  /**
+   * Get the todos that best match a free-text search, ranked by relevance.
+   * <p>
+   * `q` is split into words (see `TermIndex`), and todos are scored with
+   * BM25 by how often those words turn up in their body and category, with
+   * rare words counting for more. Only todos with at least one of the words
+   * are returned, best first, and at most `limit` of them (20 by default).
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the best matching todos, best first
+   */
+  public Todo[] searchTodos(Map<String, List<String>> queryParams) {
+    String query = queryParams.containsKey("q") ? queryParams.get("q").get(0) : "";
+    if (query.isBlank()) {
+      throw new BadRequestResponse("A search needs a non-empty query 'q'");
+    }
+    Integer limit = parseLimit(queryParams);
+    return todosAt(terms.get().search(query, limit == null ? DEFAULT_SEARCH_LIMIT : limit, changes));
+  }
+
+  /**
+   * Count the todos satisfying the queries in the params, grouped by the
+   * attributes in `groupBy`, a comma-separated list of `owner`, `category`,
+   * and `status` (if it's missing, all the matching todos are one group).
+   * <p>
+   * The filters are the same as for `listTodos`, and are run the same way,
+   * but the matching rows are only counted, straight from the columns (see
+   * `TodoSummary`), so no `Todo`s are made. `orderBy`, `limit`, and `after`
+   * don't apply.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return one map per group that has any todos in it, holding its value
+   *         for each of the `groupBy` attributes and then its `count`, in
+   *         order by those values
+   */
+  public List<Map<String, Object>> summarizeTodos(Map<String, List<String>> queryParams) {
+    List<String> groupBy = new ArrayList<>();
+    for (String attributes : queryParams.getOrDefault("groupBy", List.of())) {
+      for (String attribute : attributes.split(",")) {
+        String trimmed = attribute.trim();
+        if (!summary.get().canGroupBy(trimmed)) {
+          throw new BadRequestResponse("Specified groupBy '" + trimmed + "' is not a todo attribute to group by");
+        }
+        if (!groupBy.contains(trimmed)) {
+          groupBy.add(trimmed);
+        }
+      }
+    }
+    List<TodoFilter> filters = parseFilters(queryParams);
+    int[] rows = filters.isEmpty() ? null : runFilters(filters);
+    if (changes.isEmpty()) {
+      return summary.get().count(groupBy, rows, List.of());
+    }
+    // The summary only knows about the columns, so the changed todos are
+    // counted separately, by their new values
+    List<Todo> changed = new ArrayList<>();
+    for (Todo todo : changes.todos()) {
+      if (passesAll(filters, todo)) {
+        changed.add(todo);
+      }
+    }
+    return summary.get().count(groupBy, withoutHidden(rows), changed);
+  }
+
+  /**
+   * Get the cursor for the page after the given one, if there might be one.
+   * There's only a next page if the client asked for a `limit` and got a
+   * full page back.
+   *
+   * @param queryParams map of key-value pairs for the query that produced the page
+   * @param page        the todos returned for that query
+   * @return the cursor to pass as `after` to get the next page, or null if
+   *         that was the last page
+   */
+  public String nextCursor(Map<String, List<String>> queryParams, Todo[] page) {
+    return nextCursor(queryParams, page.length, page.length == 0 ? -1 : rowOf(page[page.length - 1]._id));
+  }
+
+  /**
+   * Get the cursor for the page after the given one, like
+   * `nextCursor(queryParams, Todo[])`, for a page of rows from `listTodoRows`.
+   *
+   * @param queryParams map of key-value pairs for the query that produced the page
+   * @param page        the rows returned for that query
+   * @return the cursor to pass as `after` to get the next page, or null if
+   *         that was the last page
+   */
+  public String nextCursor(Map<String, List<String>> queryParams, int[] page) {
+    return nextCursor(queryParams, page.length, page.length == 0 ? -1 : page[page.length - 1]);
+  }
+
+  // The cursor after a page with the given length, whose last todo is in `row`
+  private String nextCursor(Map<String, List<String>> queryParams, int length, int row) {
+    Integer limit = parseLimit(queryParams);
+    if (limit == null || length == 0 || length < limit) {
+      return null;
+    }
+    if (!queryParams.containsKey("orderBy")) {
+      return PageCursor.encode(baseVersion, "", row);
+    }
+    // A todo's rank moves whenever one is written before it, so the cursor
+    // holds its row and value instead, which are where it is in the order
+    String orderBy = queryParams.get("orderBy").get(0);
+    Object value = currentValueAt(orderBy, row);
+    return PageCursor.encode(baseVersion, orderBy, row, value == null ? "-" : "=" + value);
+  }
+
+  /**
+   * Find where the todo a cursor was made for is now, in the named order.
+   * The order is by value and then by row, so this is the position of the
+   * last todo at or before the cursor's value and row, whether or not that
+   * todo has been changed or deleted since: the todos written since that go
+   * before it aren't repeated, and the ones that go after it aren't skipped.
+   *
+   * @param cursor  the cursor the client sent
+   * @param orderBy the attribute being ordered by
+   * @return the position of the last todo the client has already seen, or
+   *         -1 if the next page is the first
+   */
+  private int positionOf(String cursor, String orderBy) {
+    int[] order = sortOrder(orderBy);
+    PageCursor.Keyed keyed = PageCursor.decodeKeyed(cursor, baseVersion, orderBy);
+    Object value;
+    if (keyed.key().equals("-")) {
+      value = null;
+    } else if (keyed.key().startsWith("=")) {
+      String key = keyed.key().substring(1);
+      value = orderBy.equals("status") ? Boolean.valueOf(key) : key;
+    } else {
+      throw new BadRequestResponse("Specified cursor '" + cursor + "' is not a valid cursor");
+    }
+    int low = 0;
+    int high = order.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int compared = TodoSummary.VALUE_ORDER.compare(currentValueAt(orderBy, order[mid]), value);
+      if (compared < 0 || (compared == 0 && order[mid] <= keyed.position())) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low - 1;
+  }
+
+  // The `limit` from the query, or null if there isn't one
+  private static Integer parseLimit(Map<String, List<String>> queryParams) {
+    if (!queryParams.containsKey("limit")) {
+      return null;
+    }
+    String limitParam = queryParams.get("limit").get(0);
+    try {
+      int limit = Integer.parseInt(limitParam);
+      if (limit >= 0) {
+        return limit;
+      }
+    } catch (NumberFormatException e) {
+      // handled below, along with negative limits
+    }
+    throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be parsed to a non-negative integer");
+  }
+
+  // The rows that come after the given position in the named ordering
+  private int[] rowsRankedAfter(int[] rows, String orderBy, int after) {
+    if (after < 0) {
+      return rows;
+    }
+    int[] rank = sortRank(orderBy);
+    int[] kept = new int[rows.length];
+    int count = 0;
+    for (int row : rows) {
+      if (rank[row] > after) {
+        kept[count++] = row;
+      }
+    }
+    return Arrays.copyOf(kept, count);
+  }
 
+  /**
+   * Turn the filtering query parameters into a list of filters, most
+   * selective first.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the filters to apply, sorted by how many todos we expect each
+   *         to let through
+   */
+  private List<TodoFilter> parseFilters(Map<String, List<String>> queryParams) {
+    List<TodoFilter> filters = new ArrayList<>();
     // Filter owner if defined
     if (queryParams.containsKey("owner")) {
-      String ownerParam = queryParams.get("owner").get(0); //grabs name of owner
-      try {
-        String targetOwner = queryParams.get("owner").get(0);
-        filteredTodos = filterTodosByOwner(targetOwner);
-      } catch (NumberFormatException e) { //catches if name is not parsable(should never happen)
-        throw new BadRequestResponse("Specified owner '" + ownerParam + "' can't be parsed to a String");
-      }
+      String targetOwner = queryParams.get("owner").get(0);
+      Set<String> targetOwners = ownerNames.matching(targetOwner); //grabs names of owners
+      filters.add(new TodoFilter(row -> targetOwners.contains(columns.owner(row)),
+        todo -> CaseFoldedDictionary.matches(targetOwner, todo.owner), ownerRows(targetOwners)));
     }
     // Filter category if defined
     if (queryParams.containsKey("category")) {
       String targetCategory = queryParams.get("category").get(0); //gets desired category
-      filteredTodos = filterTodosByCategory(targetCategory); //runs associated filtering function
+      filters.add(new TodoFilter(row -> targetCategory.equals(columns.category(row)),
+        todo -> targetCategory.equals(todo.category), todosByCategory.getOrDefault(targetCategory, RowBitmap.EMPTY)));
     }
     //filter status if defined
     if (queryParams.containsKey("status")) {
       boolean targetStatus = queryParams.get("status").get(0).equals("complete");
-      filteredTodos = filterTodosByStatus(targetStatus);
-    }
-    // filter if limit is defined
-    if (queryParams.containsKey("limit")) {
-      int limit = Integer.valueOf(queryParams.get("limit").get(0));
-      filteredTodos = filterTodosWithLimit(limit);
+      filters.add(new TodoFilter(row -> Boolean.valueOf(targetStatus).equals(columns.status(row)),
+        todo -> Boolean.valueOf(targetStatus).equals(todo.status), targetStatus ? completeRows : incompleteRows));
     }
     //filter if looking in body
     if (queryParams.containsKey("contains")) {
-      String targetBody = queryParams.get("contains").get(0);
-        filteredTodos = filterTodosByBody(targetBody);
+      String target = queryParams.get("contains").get(0);
+      byte[] targetBody = target.getBytes(StandardCharsets.UTF_8);
+      IntPredicate test = row -> columns.bodyContains(row, targetBody);
+      Predicate<Todo> todoTest = todo -> todo.body != null && todo.body.contains(target);
+      RowBitmap candidates = bodyGrams.get().candidates(targetBody);
+      // Too short to look up, so assume the worst; otherwise only the
+      // candidates from the trigram index need checking
+      filters.add(candidates == null
+        ? new TodoFilter(test, todoTest, size())
+        : new TodoFilter(test, todoTest, candidates, false));
+    }
+    filters.sort(Comparator.comparingInt(TodoFilter::estimate));
+    return filters;
+  }
+
+  /**
+   * Find the rows of all the todos that pass every one of the filters.
+   *
+   * @param filters the filters to apply, most selective first
+   * @return the rows of the matching todos, in ascending order
+   */
+  private int[] runFilters(List<TodoFilter> filters) {
+    // AND together the bitmaps of all the indexed filters, starting with
+    // the smallest so the intermediate results shrink as fast as possible.
+    RowBitmap candidates = null;
+    List<TodoFilter> residual = new ArrayList<>();
+    for (TodoFilter filter : filters) {
+      if (!filter.isExact()) {
+        residual.add(filter);
+      }
+      if (filter.isIndexed() && candidates == null) {
+        candidates = filter.rows();
+      } else if (filter.isIndexed() && candidates.cardinality() > 0) {
+        candidates = candidates.and(filter.rows());
+      }
+    }
+    if (residual.isEmpty()) {
+      return candidates.toArray();
+    }
+
+    // Only the survivors get checked against the filters whose indexes
+    // aren't exact (or that have no index at all); if nothing was indexed,
+    // every row is a candidate.
+    int candidateCount = candidates == null ? columns.size() : candidates.cardinality();
+    int[] matches = new int[candidateCount];
+    int[] matchCount = {0};
+    if (candidates == null) {
+      for (int row = 0; row < columns.size(); row++) {
+        if (passesAll(residual, row)) {
+          matches[matchCount[0]++] = row;
+        }
+      }
+    } else {
+      candidates.forEach(row -> {
+        if (passesAll(residual, row)) {
+          matches[matchCount[0]++] = row;
+        }
+      });
     }
-    //filter if looking by attributes in orderBy Alphabetically
-    if (queryParams.containsKey("orderBy")) { //if query parameters contains key orderBy block executes.
-      String orderByParam = queryParams.get("orderBy").get(0);
-    //line above retrieves the first element from list of strings associated with orderBy.
+    return Arrays.copyOf(matches, matchCount[0]);
+  }
 
-      if (orderByParam.equals("status")) { //if parameter is a status then
-        filteredTodos = orderByStatus(); //filtered todos will call method orderByStatus().
+  private static boolean passesAll(List<TodoFilter> filters, int row) {
+    for (TodoFilter filter : filters) {
+      if (!filter.test(row)) {
+        return false;
       }
+    }
+    return true;
+  }
 
-      if (orderByParam.equals("owner")) { //if parameter is a owner then
-        filteredTodos = orderByOwner(); //filtered todos will call method orderByOwner().
+  private static boolean passesAll(List<TodoFilter> filters, Todo todo) {
+    for (TodoFilter filter : filters) {
+      if (!filter.test(todo)) {
+        return false;
       }
+    }
+    return true;
+  }
 
-      if (orderByParam.equals("category")) { //if parameter is a category then
-        filteredTodos = orderByCategory(); //filtered todos will call method orderByCategory().
+  /**
+   * Find the rows of all the todos that pass every one of the filters,
+   * like `runFilters`, but taking the changes into account: the base rows
+   * of changed todos are dropped, whatever the indexes say about them, and
+   * the changed todos are checked one by one instead.
+   *
+   * @param filters the filters to apply, most selective first
+   * @return the rows of the matching todos, in ascending order
+   */
+  private int[] matchingRows(List<TodoFilter> filters) {
+    int[] rows = runFilters(filters);
+    if (changes.isEmpty()) {
+      return rows;
+    }
+    int[] changedRows = changes.rows();
+    Todo[] changedTodos = changes.todos();
+    int[] merged = new int[rows.length + changedRows.length];
+    int count = 0;
+    int next = 0;
+    for (int i = 0; i < changedRows.length; i++) {
+      if (!passesAll(filters, changedTodos[i])) {
+        continue;
+      }
+      for (; next < rows.length && rows[next] < changedRows[i]; next++) {
+        if (!changes.hides(rows[next])) {
+          merged[count++] = rows[next];
+        }
+      }
+      merged[count++] = changedRows[i];
+    }
+    for (; next < rows.length; next++) {
+      if (!changes.hides(rows[next])) {
+        merged[count++] = rows[next];
       }
+    }
+    return Arrays.copyOf(merged, count);
+  }
+
+  // The given base rows (or all of them, if that's null), except the hidden ones
+  private int[] withoutHidden(int[] rows) {
+    int[] from = rows == null ? IntStream.range(0, columns.size()).toArray() : rows;
+    return Arrays.stream(from).filter(row -> !changes.hides(row)).toArray();
+  }
 
-      if (orderByParam.equals("body")) { //if parameter is a body then
-        filteredTodos = orderByBody(); //filtered todos will call method orderByBody().
+  /**
+   * @return the rows of all the todos, in ascending order
+   */
+  private int[] rowsInUse() {
+    int[] rows = rowsInUse;
+    if (rows == null) {
+      // The rows of the changed todos (some of which are in the columns,
+      // and some past the end), merged with all the other rows in the columns
+      int[] changedRows = changes.rows();
+      rows = new int[size()];
+      int count = 0;
+      int next = 0;
+      for (int row = 0; row < columns.size(); row++) {
+        for (; next < changedRows.length && changedRows[next] < row; next++) {
+          rows[count++] = changedRows[next];
+        }
+        if (!changes.hides(row)) {
+          rows[count++] = row;
+        }
+      }
+      for (; next < changedRows.length; next++) {
+        rows[count++] = changedRows[next];
       }
+      rowsInUse = rows;
+    }
+    return rows;
+  }
 
+  /**
+   * Get the todos in the given rows. This is the only time `Todo`s get built.
+   *
+   * @param rows the rows of some todos, e.g., from `listTodoRows`
+   * @return the todos in those rows, in the same order
+   */
+  public Todo[] todosAt(int[] rows) {
+    Todo[] todos = new Todo[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      todos[i] = todoAt(rows[i]);
     }
-    return filteredTodos;
+    return todos;
   }
 
   /**
    * Get an array of all the todos with the correct status.
    *
-   * @param todos     the list of todos to filter by status
    * @param targetStatus the desired status
    * @return array of todos with target status
    */
-    public Todo[] filterTodosByStatus(Boolean targetStatus) {
-      return Arrays.stream(allTodos).filter(x -> x.status == targetStatus).toArray(Todo[]::new);
-    }
+  public Todo[] filterTodosByStatus(Boolean targetStatus) {
+    return listTodos(Map.of("status", List.of(targetStatus ? "complete" : "incomplete")));
+  }
 
   /**
    * Get an array of all the users having the target category.
    *
-   * @param todos         the list of todos to filter by company
    * @param targetCategory the target company to look for
    * @return array of todos with target category
    */
   public Todo[] filterTodosByCategory(String targetCategory) {
-    return Arrays.stream(allTodos).filter(x -> x.category.equals(targetCategory)).toArray(Todo[]::new);
+    return listTodos(Map.of("category", List.of(targetCategory)));
   }
 
-  // filter by owner
-  // @param todos --to filter
-  //@param targetOwner -- owner to look for
+  // filter by owner, ignoring case; `blan*` gets every owner starting with "blan"
+  //@param targetOwner -- owner (or prefix followed by `*`) to look for
   // @return -- array of todos with target owner
   public Todo[] filterTodosByOwner(String targetOwner) {
-    return Arrays.stream(allTodos).filter(x -> x.owner.equals(targetOwner)).toArray(Todo[]::new);
+    return listTodos(Map.of("owner", List.of(targetOwner)));
   }
 
-  /*
-   * filter with limit
-   * @param todos list of todos
-   * @param limit -- amount of todos to show
-   * @return --array of length limit to return
-   */
-  public Todo[] filterTodosWithLimit(int limit) {
-
-    if (allTodos.length <= limit) { //if limit is greater than allTodos.length then return allTodos
-      return allTodos;
-    } else { //if limit is smaller than copy over limit number of items
-      Todo[] temp = new Todo[limit];
-      for (int i = 0; i < limit; i++) {
-        temp[i] = allTodos[i];
-      }
-      return temp;
+  // The rows of all the todos belonging to any of the given owners
+  private RowBitmap ownerRows(Set<String> owners) {
+    List<RowBitmap> rows = new ArrayList<>();
+    for (String owner : owners) {
+      rows.add(todosByOwner.get(owner));
     }
+    return rows.isEmpty() ? RowBitmap.EMPTY : RowBitmap.union(rows);
   }
 
   /*]
    * filter by body
-   * @param todos list of todos
    * @param targetBody --string that body will contain
    * @return list of todos with intended string in the body
    */
   public Todo[] filterTodosByBody(String targetBody) {
-    return Arrays.stream(allTodos).filter(x -> x.body.contains(targetBody)).toArray(Todo[]::new);
+    Map<String, List<String>> query = new HashMap<>();
+    query.put("contains", List.of(targetBody));
+    return listTodos(query);
   }
 
-//Order by Status/Owner/Category/Body Alphabetically
-public Todo[] orderByStatus() {
-  List<Todo> todos = Arrays.asList(allTodos); //convert array to list
-  todos.sort(Comparator.comparing(t -> t.status)); //sort by 'status' attribute
-  return todos.toArray(new Todo[] {}); //convert list back to array and return
-}
+  /**
+   * Put the given rows in order by the named attribute (status, owner,
+   * category, or body), using the precomputed sort order for that attribute.
+   * <p>
+   * If only a few rows are being ordered, we just sort their ranks; otherwise
+   * it's cheaper to walk the whole sorted order, keeping the rows we want.
+   *
+   * @param rows    the rows to order
+   * @param orderBy the attribute to order by
+   * @return the same rows, in order
+   */
+  private int[] orderRows(int[] rows, String orderBy) {
+    int[] order = sortOrder(orderBy);
+    int[] ordered = new int[rows.length];
+    if ((long) rows.length * (Integer.SIZE - Integer.numberOfLeadingZeros(rows.length)) < order.length) {
+      int[] rank = sortRank(orderBy);
+      for (int i = 0; i < rows.length; i++) {
+        ordered[i] = rank[rows[i]];
+      }
+      Arrays.sort(ordered);
+      for (int i = 0; i < ordered.length; i++) {
+        ordered[i] = order[ordered[i]];
+      }
+    } else {
+      BitSet wanted = new BitSet(changes.rowLimit());
+      for (int row : rows) {
+        wanted.set(row);
+      }
+      int next = 0;
+      for (int i = 0; i < order.length && next < ordered.length; i++) {
+        if (wanted.get(order[i])) {
+          ordered[next++] = order[i];
+        }
+      }
+    }
+    return ordered;
+  }
 
-public Todo[] orderByOwner() {
-  List<Todo> todos = Arrays.asList(allTodos); //convert array to list
-  todos.sort(Comparator.comparing(t -> t.owner)); //sort by 'owner' attribute
-  return todos.toArray(new Todo[] {}); //convert list back to array and return
-}
+  /**
+   * Find the first `limit` of the given rows when ordered by the named
+   * attribute, without ordering the rest of them.
+   * <p>
+   * This keeps a max-heap of the ranks of the best `limit` rows seen so
+   * far, so it takes O(n log limit) time rather than the O(n log n) it
+   * would take to order all of the rows.
+   *
+   * @param rows    the rows to choose from
+   * @param orderBy the attribute to order by
+   * @param limit   how many rows to keep; less than `rows.length`
+   * @return the first `limit` rows, in order
+   */
+  private int[] topRows(int[] rows, String orderBy, int limit) {
+    int[] order = sortOrder(orderBy);
+    int[] rank = sortRank(orderBy);
+    int[] heap = new int[limit];
+    int size = 0;
+    for (int row : rows) {
+      int r = rank[row];
+      if (size < limit) {
+        // sift up
+        int child = size++;
+        while (child > 0 && heap[(child - 1) / 2] < r) {
+          heap[child] = heap[(child - 1) / 2];
+          child = (child - 1) / 2;
+        }
+        heap[child] = r;
+      } else if (limit > 0 && r < heap[0]) {
+        // replace the worst of the best, then sift down
+        int parent = 0;
+        while (2 * parent + 1 < size) {
+          int child = 2 * parent + 1;
+          if (child + 1 < size && heap[child + 1] > heap[child]) {
+            child++;
+          }
+          if (heap[child] <= r) {
+            break;
+          }
+          heap[parent] = heap[child];
+          parent = child;
+        }
+        heap[parent] = r;
+      }
+    }
+    Arrays.sort(heap, 0, size);
+    for (int i = 0; i < size; i++) {
+      heap[i] = order[heap[i]];
+    }
+    return heap;
+  }
 
-public Todo[] orderByCategory() {
-  List<Todo> todos = Arrays.asList(allTodos); //convert array to list
-  todos.sort(Comparator.comparing(t -> t.category)); //sort by 'category' attribute
-  return todos.toArray(new Todo[] {}); //convert list back to array and return
-}
+  // The value of an attribute that can be ordered by, for a row in the columns
+  private Object valueAt(String attribute, int row) {
+    return switch (attribute) {
+      case "status" -> columns.status(row);
+      case "owner" -> columns.owner(row);
+      case "category" -> columns.category(row);
+      default -> columns.body(row);
+    };
+  }
 
-public Todo[] orderByBody() {
-  List<Todo> todos = Arrays.asList(allTodos); //convert array to list
-  todos.sort(Comparator.comparing(t -> t.body)); //sort by 'body' attribute
-  return todos.toArray(new Todo[] {}); //convert list back to array and return
-}
+  // The value of an attribute that can be ordered by, for any row in use
+  private Object currentValueAt(String attribute, int row) {
+    if (!changes.isEmpty()) {
+      int i = Arrays.binarySearch(changes.rows(), row);
+      if (i >= 0) {
+        return valueOf(attribute, changes.todos()[i]);
+      }
+    }
+    return valueAt(attribute, row);
+  }
+
+  private static Object valueOf(String attribute, Todo todo) {
+    return switch (attribute) {
+      case "status" -> todo.status;
+      case "owner" -> todo.owner;
+      case "category" -> todo.category;
+      default -> todo.body;
+    };
+  }
 
+  // The sort order for the named attribute: every row, in order
+  private int[] sortOrder(String orderBy) {
+    int[] order = sortOrders.get(orderBy);
+    if (order == null) {
+      throw new BadRequestResponse("Specified orderBy '" + orderBy + "' is not a todo attribute");
+    }
+    return changes.isEmpty() ? order : changedOrdering(orderBy)[0];
+  }
+
+  // The position of each row in the sort order for the named attribute
+  private int[] sortRank(String orderBy) {
+    return changes.isEmpty() ? sortRanks.get(orderBy) : changedOrdering(orderBy)[1];
+  }
 
+  /**
+   * Work out the sort order (and ranks) for the named attribute with the
+   * changes taken into account, the first time it's needed. This is the
+   * precomputed order, without the hidden rows, and with the changed todos
+   * put where they belong: each is binary searched for in the precomputed
+   * order, so this takes one pass over it plus O(log n) per change.
+   * Equal todos stay in row order, as they are in the precomputed order.
+   *
+   * @param orderBy an attribute that can be ordered by
+   * @return the order, and the ranks
+   */
+  private int[][] changedOrdering(String orderBy) {
+    return changedOrderings.computeIfAbsent(orderBy, attribute -> {
+      int[] base = sortOrders.get(attribute);
+      int[] changedRows = changes.rows();
+      Object[] changedValues = Arrays.stream(changes.todos()).map(todo -> valueOf(attribute, todo)).toArray();
+      Integer[] sorted = new Integer[changedRows.length];
+      for (int i = 0; i < sorted.length; i++) {
+        sorted[i] = i;
+      }
+      Arrays.sort(sorted, Comparator.comparing((Integer i) -> changedValues[i], TodoSummary.VALUE_ORDER)
+        .thenComparingInt(i -> changedRows[i]));
+      int[] order = new int[size()];
+      int count = 0;
+      int next = 0;
+      for (int c : sorted) {
+        // The first base row that comes after the changed todo
+        int low = next;
+        int high = base.length;
+        while (low < high) {
+          int mid = (low + high) >>> 1;
+          int compared = TodoSummary.VALUE_ORDER.compare(valueAt(attribute, base[mid]), changedValues[c]);
+          if (compared < 0 || (compared == 0 && base[mid] < changedRows[c])) {
+            low = mid + 1;
+          } else {
+            high = mid;
+          }
+        }
+        for (; next < low; next++) {
+          if (!changes.hides(base[next])) {
+            order[count++] = base[next];
+          }
+        }
+        order[count++] = changedRows[c];
+      }
+      for (; next < base.length; next++) {
+        if (!changes.hides(base[next])) {
+          order[count++] = base[next];
+        }
+      }
+      int[] rank = new int[changes.rowLimit()];
+      for (int i = 0; i < order.length; i++) {
+        rank[order[i]] = i;
+      }
+      return new int[][] {order, rank};
+    });
+  }
 }
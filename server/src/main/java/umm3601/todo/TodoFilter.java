@@ -0,0 +1,92 @@
+package umm3601.todo;
+
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * One filter from a `/api/todos` query (e.g., `owner=Blanche`), along with
+ * what the `TodoDatabase` knows about how to evaluate it.
+ * <p>
+ * Every filter can test a single todo, given its row, or given the `Todo`
+ * itself (for todos written since the indexes were built; see
+ * `TodoChanges`). Filters on indexed attributes also
+ * carry the precomputed bitmap of the rows of the matching todos, which lets
+ * the database intersect those bitmaps instead of testing todos one by one.
+ * Some indexes (like the trigram index for `contains`) can only narrow the
+ * rows down to candidates, which then still have to be tested; their
+ * filters aren't "exact". The `estimate` is how many rows we expect the filter to let through, and
+ * is used to decide which filter to run first.
+ */
+class TodoFilter {
+  private final IntPredicate test;
+  private final Predicate<Todo> todoTest;
+  private final RowBitmap rows;
+  private final boolean exact;
+  private final int estimate;
+
+  /**
+   * Construct a filter that can only be evaluated by testing each todo.
+   *
+   * @param test     whether the todo in a row passes the filter
+   * @param todoTest whether a todo passes the filter
+   * @param estimate how many todos we expect to pass the filter
+   */
+  TodoFilter(IntPredicate test, Predicate<Todo> todoTest, int estimate) {
+    this(test, todoTest, null, false, estimate);
+  }
+
+  /**
+   * Construct a filter backed by an index.
+   *
+   * @param test     whether the todo in a row passes the filter
+   * @param todoTest whether a todo passes the filter
+   * @param rows     the rows of exactly the todos that pass the filter
+   */
+  TodoFilter(IntPredicate test, Predicate<Todo> todoTest, RowBitmap rows) {
+    this(test, todoTest, rows, true);
+  }
+
+  /**
+   * Construct a filter backed by an index, which may or may not be exact.
+   *
+   * @param test     whether the todo in a row passes the filter
+   * @param todoTest whether a todo passes the filter
+   * @param rows     the rows of the todos that might pass the filter
+   * @param exact    whether every one of those rows does pass the filter
+   */
+  TodoFilter(IntPredicate test, Predicate<Todo> todoTest, RowBitmap rows, boolean exact) {
+    this(test, todoTest, rows, exact, rows.cardinality());
+  }
+
+  private TodoFilter(IntPredicate test, Predicate<Todo> todoTest, RowBitmap rows, boolean exact, int estimate) {
+    this.test = test;
+    this.todoTest = todoTest;
+    this.rows = rows;
+    this.exact = exact;
+    this.estimate = estimate;
+  }
+
+  boolean test(int row) {
+    return test.test(row);
+  }
+
+  boolean test(Todo todo) {
+    return todoTest.test(todo);
+  }
+
+  boolean isIndexed() {
+    return rows != null;
+  }
+
+  boolean isExact() {
+    return exact;
+  }
+
+  RowBitmap rows() {
+    return rows;
+  }
+
+  int estimate() {
+    return estimate;
+  }
+}
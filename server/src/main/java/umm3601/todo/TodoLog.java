@@ -0,0 +1,411 @@
+package umm3601.todo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A write-ahead log of the writes to the todos, so that they survive a
+ * restart without the whole data file being rewritten for each one.
+ * <p>
+ * The log is a file that is only ever appended to. After a short header
+ * (the `MAGIC` number, 8 bytes, and the `VERSION`, 4 bytes), each record is
+ * one write: its length (4 bytes), a CRC-32C checksum of the rest of it
+ * (4 bytes), the number of the write (8 bytes), the length of the todo's ID
+ * (4 bytes), the ID, and then the JSON of the todo as written (the same
+ * bytes `JsonFragments` serves), or nothing if it was deleted. All numbers
+ * are little-endian. If the server stops part way through appending a
+ * record, that record fails its checksum (or is too short) when the log is
+ * next opened, so it, and anything after it, is dropped.
+ * <p>
+ * Writers add their records with `append` (in the order the writes are
+ * made) and then wait in `sync` for them to reach the disk before they
+ * answer. Syncing is the slow part, so writers share it: whichever arrives
+ * first writes everything appended so far in one go and syncs the file
+ * once, while the others wait for it; anything appended in the meantime is
+ * written and synced by the next one. The more writers there are, the more
+ * writes each sync covers.
+ * <p>
+ * On startup, `recover` loads the base the log applies to and replays the
+ * log on top of it. The base is the snapshot `checkpoint` last wrote (see
+ * `snapshotOf`), or the data file, if there hasn't been a checkpoint yet. A
+ * checkpoint writes a compacted database out as a new snapshot, which
+ * records the number of the last write in it, and only then drops those
+ * writes from the log, so replaying after a crash part way through (or
+ * replaying a write twice) does no harm.
+ */
+final class TodoLog implements Closeable {
+  // "TODOLOG" in ASCII, and a zero byte
+  static final long MAGIC = 0x00474F4C4F444F54L;
+  static final int VERSION = 1;
+
+  private static final int HEADER_BYTES = Long.BYTES + Integer.BYTES;
+  // The length and checksum before each record
+  private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+  // The number of the write, and the length of the ID
+  private static final int WRITE_BYTES = Long.BYTES + Integer.BYTES;
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoLog.class);
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final Path file;
+  // Only the thread that's syncing (or checkpointing) uses the channel
+  private FileChannel channel;
+  // The writes read from the file when it was opened, until they're replayed
+  private List<TodoChanges.Change> recovered;
+  // The records appended since the last sync began
+  private List<ByteBuffer> pending = new ArrayList<>();
+  // The numbers of the last write appended, and of the last one synced
+  private long appended;
+  private long durable;
+  // Whether some thread is writing to (or rewriting) the file right now
+  private boolean syncing;
+  // Why the file couldn't be written to, after which it never is again
+  private IOException failure;
+  private long syncs;
+
+  private TodoLog(Path file, FileChannel channel, List<TodoChanges.Change> recovered) {
+    this.file = file;
+    this.channel = channel;
+    this.recovered = recovered;
+  }
+
+  /**
+   * @param file a log file
+   * @return where `checkpoint` writes the snapshot that log applies to
+   */
+  static Path snapshotOf(Path file) {
+    return file.resolveSibling(file.getFileName() + TodoSnapshot.EXTENSION);
+  }
+
+  /**
+   * Open a log file, creating it if there isn't one yet. Any record at the
+   * end that was only partly written is dropped.
+   *
+   * @param file the log
+   * @return the log, ready to be recovered from and then appended to
+   * @throws IOException if the file can't be read or written, or isn't a log
+   */
+  static TodoLog open(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file,
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      if (channel.size() == 0) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+          .putLong(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+          channel.write(header);
+        }
+        channel.force(false);
+      }
+      ByteBuffer contents = read(channel, file);
+      List<TodoChanges.Change> writes = new ArrayList<>();
+      int end = scan(contents, writes);
+      if (end < contents.limit()) {
+        LOGGER.warn("Dropping the last {} bytes of {}, which were only partly written",
+          contents.limit() - end, file);
+        channel.truncate(end);
+        channel.force(false);
+      }
+      channel.position(end);
+      return new TodoLog(file, channel, writes);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  // The whole of a log file, checking that it is one
+  private static ByteBuffer read(FileChannel channel, Path file) throws IOException {
+    if (channel.size() > Integer.MAX_VALUE) {
+      throw new IOException(file + " is too large to read");
+    }
+    ByteBuffer contents = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+    while (contents.hasRemaining() && channel.read(contents, contents.position()) >= 0) {
+      // Keep reading until it's all there
+    }
+    contents.flip();
+    if (contents.limit() < HEADER_BYTES || contents.getLong(0) != MAGIC
+        || contents.getInt(Long.BYTES) != VERSION) {
+      throw new IOException(file + " is not a version " + VERSION + " todo log");
+    }
+    return contents;
+  }
+
+  /**
+   * Read the records in a log file, up to the first one that wasn't
+   * completely written (if any).
+   *
+   * @param contents the whole file
+   * @param writes   where to add the writes in the records, in order, or
+   *                 null to just find where they end
+   * @return the position just past the last whole record
+   * @throws IOException if a record is whole, but its JSON isn't a todo
+   */
+  private static int scan(ByteBuffer contents, List<TodoChanges.Change> writes) throws IOException {
+    int position = HEADER_BYTES;
+    long last = Long.MIN_VALUE;
+    while (contents.limit() - position >= RECORD_HEADER_BYTES) {
+      int length = contents.getInt(position);
+      int start = position + RECORD_HEADER_BYTES;
+      if (length < WRITE_BYTES || length > contents.limit() - start) {
+        break;
+      }
+      CRC32C checksum = new CRC32C();
+      checksum.update(contents.slice(start, length));
+      long sequence = contents.getLong(start);
+      int idLength = contents.getInt(start + Long.BYTES);
+      if ((int) checksum.getValue() != contents.getInt(position + Integer.BYTES)
+          || sequence <= last || idLength < 0 || idLength > length - WRITE_BYTES) {
+        break;
+      }
+      if (writes != null) {
+        byte[] id = new byte[idLength];
+        contents.get(start + WRITE_BYTES, id);
+        byte[] json = new byte[length - WRITE_BYTES - idLength];
+        contents.get(start + WRITE_BYTES + idLength, json);
+        Todo todo = json.length == 0 ? null : MAPPER.readValue(json, Todo.class);
+        writes.add(new TodoChanges.Change(sequence, new String(id, StandardCharsets.UTF_8), -1, todo,
+          json.length == 0 ? null : json));
+      }
+      last = sequence;
+      position = start + length;
+    }
+    return position;
+  }
+
+  /**
+   * Load the todos as they were when the log was last written to: the base
+   * the log applies to, with the writes in the log replayed on top. This is
+   * done once, straight after the log is opened.
+   *
+   * @param todoDataFile where to find the todos if there hasn't been a
+   *                     checkpoint yet (see `TodoDatabase(String)`)
+   * @return the todos
+   * @throws IOException if the base can't be loaded
+   */
+  synchronized TodoDatabase recover(String todoDataFile) throws IOException {
+    Path snapshot = snapshotOf(file);
+    TodoDatabase base = new TodoDatabase(Files.exists(snapshot) ? snapshot.toString() : todoDataFile);
+    List<TodoChanges.Change> replayed = new ArrayList<>();
+    for (TodoChanges.Change write : recovered) {
+      // The ones before the base was written are already in it
+      if (write.sequence() > base.sequence()) {
+        replayed.add(write);
+      }
+    }
+    recovered = List.of();
+    TodoDatabase todos = replayed.isEmpty() ? base : base.apply(replayed);
+    appended = todos.sequence();
+    durable = todos.sequence();
+    return todos;
+  }
+
+  /**
+   * Add some writes to the end of the log. They aren't necessarily on the
+   * disk until `sync` says so.
+   *
+   * @param writes the writes, in the order they were made (which must also
+   *               be the order their numbers are in)
+   */
+  synchronized void append(List<TodoChanges.Change> writes) {
+    for (TodoChanges.Change write : writes) {
+      pending.add(encode(write));
+      appended = write.sequence();
+    }
+  }
+
+  private static ByteBuffer encode(TodoChanges.Change write) {
+    byte[] id = write.id().getBytes(StandardCharsets.UTF_8);
+    byte[] json = write.json() == null ? new byte[0] : write.json();
+    int length = WRITE_BYTES + id.length + json.length;
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length).order(ByteOrder.LITTLE_ENDIAN);
+    record.putInt(length).putInt(0).putLong(write.sequence()).putInt(id.length).put(id).put(json);
+    CRC32C checksum = new CRC32C();
+    checksum.update(record.array(), RECORD_HEADER_BYTES, length);
+    return record.putInt(Integer.BYTES, (int) checksum.getValue()).flip();
+  }
+
+  /**
+   * Check, before making any writes, that they can still be saved.
+   *
+   * @throws IOException if the log has already failed to be written to, after
+   *                     which it never is again
+   */
+  synchronized void checkWritable() throws IOException {
+    if (failure != null) {
+      throw new IOException("The todo log can't be written to", failure);
+    }
+  }
+
+  /**
+   * Wait until a write (and every one before it) is on the disk, syncing
+   * the log if nobody else already is.
+   *
+   * @param sequence the number of the write
+   * @throws IOException if the log can't be written to
+   */
+  void sync(long sequence) throws IOException {
+    List<ByteBuffer> batch;
+    long through;
+    synchronized (this) {
+      while (true) {
+        if (failure != null) {
+          throw new IOException("The todo log can't be written to", failure);
+        }
+        if (durable >= Math.min(sequence, appended)) {
+          return;
+        }
+        if (!syncing) {
+          break;
+        }
+        await();
+      }
+      // This thread writes everything appended so far, for everyone
+      batch = pending;
+      pending = new ArrayList<>();
+      through = appended;
+      syncing = true;
+    }
+    try {
+      writeAll(channel, batch);
+      channel.force(false);
+    } catch (IOException e) {
+      synchronized (this) {
+        failure = e;
+        syncing = false;
+        notifyAll();
+      }
+      throw e;
+    }
+    synchronized (this) {
+      durable = through;
+      syncs++;
+      syncing = false;
+      notifyAll();
+    }
+  }
+
+  // Only called while holding the lock
+  private void await() throws InterruptedIOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the todo log");
+    }
+  }
+
+  private static void writeAll(FileChannel channel, List<ByteBuffer> buffers) throws IOException {
+    ByteBuffer[] all = buffers.toArray(new ByteBuffer[0]);
+    long remaining = buffers.stream().mapToLong(ByteBuffer::remaining).sum();
+    while (remaining > 0) {
+      remaining -= channel.write(all);
+    }
+  }
+
+  /**
+   * @return how many times the log has been synced, which (thanks to
+   *         writers sharing syncs) can be far fewer than the number of writes
+   */
+  synchronized long syncs() {
+    return syncs;
+  }
+
+  /**
+   * Fold the log into a new base: write a compacted database out as the
+   * snapshot the log applies to, then drop the writes in it from the log.
+   * Writers can carry on appending while the snapshot is written, and only
+   * wait for their syncs while the (by then short) log is rewritten.
+   *
+   * @param compacted a database with no changes, compacted from one that
+   *                  was written to through this log
+   * @throws IOException if the snapshot or the log can't be written
+   */
+  void checkpoint(TodoDatabase compacted) throws IOException {
+    compacted.writeSnapshot(snapshotOf(file));
+    synchronized (this) {
+      while (syncing) {
+        await();
+      }
+      if (failure != null) {
+        throw new IOException("The todo log can't be written to", failure);
+      }
+      syncing = true;
+    }
+    try {
+      // Everything in the file has been synced, and it's in order, so the
+      // records to keep are just the ones after the last that's in the snapshot
+      ByteBuffer contents = read(channel, file);
+      int end = scan(contents, null);
+      int keep = firstAfter(contents, compacted.sequence(), end);
+
+      Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+      try (FileChannel rewritten = FileChannel.open(temporary,
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        writeAll(rewritten, List.of(contents.slice(0, HEADER_BYTES), contents.slice(keep, end - keep)));
+        rewritten.force(false);
+      }
+      try {
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+      } catch (IOException e) {
+        // The channel may be closed by now, or still be on the old file,
+        // which is gone, so nothing more can safely be written to the log
+        synchronized (this) {
+          failure = e;
+        }
+        throw e;
+      }
+    } finally {
+      synchronized (this) {
+        syncing = false;
+        notifyAll();
+      }
+    }
+  }
+
+  // The position of the first record after the given write, or `end` if there isn't one
+  private static int firstAfter(ByteBuffer contents, long sequence, int end) {
+    int position = HEADER_BYTES;
+    while (position < end && contents.getLong(position + RECORD_HEADER_BYTES) <= sequence) {
+      position += RECORD_HEADER_BYTES + contents.getInt(position);
+    }
+    return position;
+  }
+
+  /**
+   * Sync whatever has been appended, and close the file.
+   *
+   * @throws IOException if the log can't be written to
+   */
+  @Override
+  public void close() throws IOException {
+    long last;
+    synchronized (this) {
+      last = appended;
+    }
+    try {
+      sync(last);
+    } finally {
+      channel.close();
+    }
+  }
+}
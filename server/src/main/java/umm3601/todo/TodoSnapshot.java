@@ -0,0 +1,265 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import umm3601.JsonFragments;
+
+/**
+ * A compact binary snapshot of a `TodoDatabase`, which can be opened far
+ * faster than the JSON it came from can be parsed.
+ * <p>
+ * The file is just the raw contents of each of the column buffers of
+ * `TodoColumns`, plus the ID hash table, the `orderBy` sort orders, the
+ * JSON of every todo (see `JsonFragments`), and the version of the todos
+ * (see `ETags`), one after another. Opening it maps the file with `FileChannel.map` and hands
+ * the columns views of the mapping, so none of the column data is copied
+ * onto the Java heap; the operating system pages it in as it is used.
+ * <p>
+ * The layout (all numbers little-endian) is:
+ *
+ * - a header: the `MAGIC` number (8 bytes), the `VERSION` (4 bytes), the
+ *   number of todos (4 bytes), and the number of the last write folded
+ *   into them (8 bytes; see `TodoLog`), then
+ * - a sequence of sections, each being its length in bytes (8 bytes), that
+ *   many bytes of data, and then padding up to a multiple of 8 bytes, so
+ *   that every section starts suitably aligned for `int`s and `long`s.
+ *
+ * The sections are, in order: the ID column (arena, offsets, nulls), the
+ * owner and category columns (each a dictionary, stored like a text column,
+ * and then the codes), the complete and incomplete bitsets, the body column,
+ * the ID hash table, the status, owner, category, and body sort orders, the
+ * JSON of the todos (arena, offsets), and the version (in UTF-8). The
+ * indexes that take a pass over the bodies to build aren't kept; they're
+ * built when they're first used (see `TodoDatabase`).
+ */
+final class TodoSnapshot {
+  // File names of snapshots end with this
+  static final String EXTENSION = ".snapshot";
+  // "TODOSNAP" in ASCII
+  static final long MAGIC = 0x50414E534F444F54L;
+  static final int VERSION = 4;
+
+  private static final int HEADER_BYTES = 24;
+  private static final int ALIGNMENT = Long.BYTES;
+  private static final List<String> ORDERINGS = List.of("status", "owner", "category", "body");
+
+  private final TodoColumns columns;
+  private final JsonFragments json;
+  private final Map<String, int[]> sortOrders;
+  private final long sequence;
+  private final String version;
+
+  private TodoSnapshot(TodoColumns columns, JsonFragments json, Map<String, int[]> sortOrders, long sequence,
+      String version) {
+    this.columns = columns;
+    this.json = json;
+    this.sortOrders = sortOrders;
+    this.sequence = sequence;
+    this.version = version;
+  }
+
+  TodoColumns columns() {
+    return columns;
+  }
+
+  JsonFragments json() {
+    return json;
+  }
+
+  Map<String, int[]> sortOrders() {
+    return sortOrders;
+  }
+
+  long sequence() {
+    return sequence;
+  }
+
+  String version() {
+    return version;
+  }
+
+  /**
+   * Write a snapshot of the given columns and sort orders. The snapshot is
+   * written to a temporary file first and then moved into place, so anyone
+   * opening the file never sees half of it.
+   *
+   * @param file       where to write the snapshot
+   * @param columns    the todos
+   * @param json       the JSON of each of them
+   * @param sortOrders the sort order for each `orderBy` attribute
+   * @param sequence   the number of the last write already in the columns
+   * @param version    the version of the todos (see `TodoDatabase.version`)
+   * @throws IOException if the file can't be written
+   */
+  static void write(Path file, TodoColumns columns, JsonFragments json, Map<String, int[]> sortOrders,
+      long sequence, String version) throws IOException {
+    List<ByteBuffer> sections = new ArrayList<>();
+    addText(sections, columns.ids());
+    addDictionary(sections, columns.owners());
+    addDictionary(sections, columns.categories());
+    sections.add(bytesOf(columns.complete()));
+    sections.add(bytesOf(columns.incomplete()));
+    addText(sections, columns.bodies());
+    sections.add(bytesOf(columns.idSlots()));
+    for (String ordering : ORDERINGS) {
+      sections.add(bytesOf(IntBuffer.wrap(sortOrders.get(ordering))));
+    }
+    sections.add(json.arena());
+    sections.add(bytesOf(json.offsets()));
+    sections.add(ByteBuffer.wrap(version.getBytes(StandardCharsets.UTF_8)));
+
+    List<ByteBuffer> out = new ArrayList<>();
+    out.add(ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+      .putLong(MAGIC).putInt(VERSION).putInt(columns.size()).putLong(sequence).flip());
+    for (ByteBuffer section : sections) {
+      int length = section.remaining();
+      out.add(ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(length).flip());
+      out.add(section);
+      out.add(ByteBuffer.allocate(padding(length)));
+    }
+
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer[] buffers = out.toArray(new ByteBuffer[0]);
+      long remaining = out.stream().mapToLong(ByteBuffer::remaining).sum();
+      while (remaining > 0) {
+        remaining -= channel.write(buffers);
+      }
+      channel.force(false);
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void addText(List<ByteBuffer> sections, TextColumn column) {
+    sections.add(column.arena());
+    sections.add(bytesOf(column.offsets()));
+    sections.add(bytesOf(column.nulls()));
+  }
+
+  private static void addDictionary(List<ByteBuffer> sections, DictionaryColumn column) {
+    TextColumn.Builder values = new TextColumn.Builder();
+    for (String value : column.values()) {
+      values.add(value);
+    }
+    addText(sections, values.build());
+    sections.add(bytesOf(column.codes()));
+  }
+
+  private static ByteBuffer bytesOf(IntBuffer ints) {
+    ByteBuffer bytes = ByteBuffer.allocate(ints.remaining() * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    bytes.asIntBuffer().put(ints);
+    return bytes;
+  }
+
+  private static ByteBuffer bytesOf(LongBuffer longs) {
+    ByteBuffer bytes = ByteBuffer.allocate(longs.remaining() * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    bytes.asLongBuffer().put(longs);
+    return bytes;
+  }
+
+  private static int padding(long length) {
+    return (int) ((ALIGNMENT - length % ALIGNMENT) % ALIGNMENT);
+  }
+
+  /**
+   * Open a snapshot file.
+   *
+   * @param file the snapshot to open
+   * @return the todos, their JSON, sort orders, sequence number, and version
+   *         in the snapshot, with the todos and JSON backed by a mapping of the file
+   * @throws IOException if the file can't be read, or isn't a snapshot
+   */
+  static TodoSnapshot open(Path file) throws IOException {
+    MappedByteBuffer mapped;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is too large to map");
+      }
+      // The mapping stays valid after the channel is closed
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    mapped.order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      if (mapped.getLong(0) != MAGIC || mapped.getInt(Long.BYTES) != VERSION) {
+        throw new IOException(file + " is not a version " + VERSION + " todo snapshot");
+      }
+      Sections sections = new Sections(mapped, HEADER_BYTES);
+      TextColumn ids = sections.text();
+      if (ids.size() != mapped.getInt(Long.BYTES + Integer.BYTES)) {
+        throw new IOException(file + " is corrupt");
+      }
+      DictionaryColumn owners = sections.dictionary();
+      DictionaryColumn categories = sections.dictionary();
+      LongBuffer complete = sections.next().asLongBuffer();
+      LongBuffer incomplete = sections.next().asLongBuffer();
+      TextColumn bodies = sections.text();
+      IntBuffer idSlots = sections.next().asIntBuffer();
+      // The sort orders are copied, since the query code indexes them as arrays
+      Map<String, int[]> sortOrders = new HashMap<>();
+      for (String ordering : ORDERINGS) {
+        IntBuffer order = sections.next().asIntBuffer();
+        int[] rows = new int[order.remaining()];
+        order.get(rows);
+        sortOrders.put(ordering, rows);
+      }
+      JsonFragments json = new JsonFragments(sections.next(), sections.next().asIntBuffer());
+      if (json.size() != ids.size()) {
+        throw new IOException(file + " is corrupt");
+      }
+      String version = StandardCharsets.UTF_8.decode(sections.next()).toString();
+      return new TodoSnapshot(new TodoColumns(ids, owners, categories, complete, incomplete, bodies, idSlots),
+        json, sortOrders, mapped.getLong(Long.BYTES + 2 * Integer.BYTES), version);
+    } catch (IndexOutOfBoundsException | IllegalArgumentException | ArithmeticException e) {
+      throw new IOException(file + " is truncated or corrupt", e);
+    }
+  }
+
+  // Walks through the sections of a mapped snapshot, in order
+  private static final class Sections {
+    private final ByteBuffer file;
+    private int position;
+
+    Sections(ByteBuffer file, int position) {
+      this.file = file;
+      this.position = position;
+    }
+
+    // The next section, as a little-endian view of the mapping
+    ByteBuffer next() {
+      long length = file.getLong(position);
+      position += Long.BYTES;
+      ByteBuffer section = file.slice(position, Math.toIntExact(length)).order(ByteOrder.LITTLE_ENDIAN);
+      position = Math.toIntExact(position + length + padding(length));
+      return section;
+    }
+
+    TextColumn text() {
+      return new TextColumn(next(), next().asIntBuffer(), next().asLongBuffer());
+    }
+
+    DictionaryColumn dictionary() {
+      TextColumn column = text();
+      String[] values = new String[column.size()];
+      for (int code = 0; code < values.length; code++) {
+        values[code] = column.get(code);
+      }
+      return new DictionaryColumn(values, next().asIntBuffer());
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Counts of todos grouped by owner, category, and/or status, worked out
+ * straight from the columns (see `TodoColumns`) without making any `Todo`s.
+ * <p>
+ * Each attribute being grouped by is boiled down to a small `int` per row:
+ * the dictionary code of the owner or category, or 0, 1, or 2 for no
+ * status, incomplete, or complete. Those are renumbered so that they sort
+ * the same way as the values themselves, then packed together (like the
+ * digits of a number, the first attribute being the most significant) into
+ * one key per row, and the rows with each key are counted. Keys in order are
+ * groups in order, so the groups come out sorted with no further work.
+ * <p>
+ * The renumbering only needs the (small) dictionaries sorted, which is done
+ * once, when the summary is built at load time.
+ * <p>
+ * Todos written since then (see `TodoChanges`) can have values that aren't
+ * in the dictionaries at all, so they're counted by value instead, and
+ * merged into the counts of the rest.
+ */
+final class TodoSummary {
+  // The response field holding the number of todos in each group
+  static final String COUNT = "count";
+  // Up to this many possible groups are counted in a plain array (4MB at
+  // most); beyond that, only the groups that actually turn up are kept
+  private static final long MAX_DENSE_GROUPS = 1 << 20;
+  private static final Boolean[] STATUSES = {null, Boolean.FALSE, Boolean.TRUE};
+  // The order of the values of every attribute: strings and booleans in
+  // their natural order, with nulls first (which is also how `orderBy` orders them)
+  static final Comparator<Object> VALUE_ORDER = Comparator.nullsFirst(TodoSummary::compareValues);
+
+  /**
+   * One attribute that can be grouped by.
+   *
+   * @param name   the attribute
+   * @param values its values, in sorted order
+   * @param ranks  the position in `values` of each row's value
+   * @param value  the value a todo has for the attribute
+   */
+  private record Dimension(String name, Object[] values, IntUnaryOperator ranks, Function<Todo, Object> value) {
+  }
+
+  private final int size;
+  private final Map<String, Dimension> dimensions = new LinkedHashMap<>();
+
+  TodoSummary(TodoColumns columns) {
+    size = columns.size();
+    add(dictionary("owner", columns.owners(), todo -> todo.owner));
+    add(dictionary("category", columns.categories(), todo -> todo.category));
+    // Already in order: no status, then incomplete, then complete
+    add(new Dimension("status", STATUSES, columns::statusCode, todo -> todo.status));
+  }
+
+  private void add(Dimension dimension) {
+    dimensions.put(dimension.name(), dimension);
+  }
+
+  private static Dimension dictionary(String attribute, DictionaryColumn column, Function<Todo, Object> value) {
+    String[] values = column.values();
+    Integer[] byValue = new Integer[values.length];
+    for (int code = 0; code < byValue.length; code++) {
+      byValue[code] = code;
+    }
+    Arrays.sort(byValue, Comparator.comparing(code -> values[code], Comparator.nullsFirst(Comparator.naturalOrder())));
+    Object[] sorted = new Object[values.length];
+    int[] rankOfCode = new int[values.length];
+    for (int rank = 0; rank < byValue.length; rank++) {
+      sorted[rank] = values[byValue[rank]];
+      rankOfCode[byValue[rank]] = rank;
+    }
+    return new Dimension(attribute, sorted, row -> rankOfCode[column.code(row)], value);
+  }
+
+  /**
+   * @param attribute the name of an attribute
+   * @return whether todos can be grouped by it
+   */
+  boolean canGroupBy(String attribute) {
+    return dimensions.containsKey(attribute);
+  }
+
+  /**
+   * @param groupBy the attributes to group by (see `canGroupBy`), in order;
+   *                if there aren't any, everything is one group
+   * @param rows    the rows to count, or null to count every row
+   * @param others  more todos to count, that aren't in the rows
+   * @return one map per group with at least one todo in it, holding the
+   *         group's value for each attribute and then its `count`, with
+   *         the groups in order by those values
+   */
+  List<Map<String, Object>> count(List<String> groupBy, int[] rows, List<Todo> others) {
+    Dimension[] grouping = new Dimension[groupBy.size()];
+    long groups = 1;
+    for (int d = 0; d < grouping.length; d++) {
+      grouping[d] = dimensions.get(groupBy.get(d));
+      groups *= Math.max(1, grouping[d].values().length);
+    }
+    int total = rows == null ? size : rows.length;
+
+    List<Map<String, Object>> summary = new ArrayList<>();
+    if (groups <= MAX_DENSE_GROUPS) {
+      int[] counts = new int[(int) groups];
+      for (int i = 0; i < total; i++) {
+        counts[(int) key(grouping, rows == null ? i : rows[i])]++;
+      }
+      for (int key = 0; key < counts.length; key++) {
+        if (counts[key] > 0) {
+          summary.add(group(grouping, key, counts[key]));
+        }
+      }
+    } else {
+      TreeMap<Long, int[]> counts = new TreeMap<>();
+      for (int i = 0; i < total; i++) {
+        counts.computeIfAbsent(key(grouping, rows == null ? i : rows[i]), k -> new int[1])[0]++;
+      }
+      for (Map.Entry<Long, int[]> count : counts.entrySet()) {
+        summary.add(group(grouping, count.getKey(), count.getValue()[0]));
+      }
+    }
+    return others.isEmpty() ? summary : merge(grouping, summary, others);
+  }
+
+  // Add the counts of todos that aren't in the columns to those of the ones that are
+  private static List<Map<String, Object>> merge(Dimension[] grouping, List<Map<String, Object>> summary,
+      List<Todo> others) {
+    Comparator<List<Object>> byValues = (a, b) -> {
+      for (int d = 0; d < a.size(); d++) {
+        int order = VALUE_ORDER.compare(a.get(d), b.get(d));
+        if (order != 0) {
+          return order;
+        }
+      }
+      return 0;
+    };
+    Map<List<Object>, Integer> counts = new TreeMap<>(byValues);
+    for (Map<String, Object> group : summary) {
+      List<Object> values = new ArrayList<>();
+      for (Dimension dimension : grouping) {
+        values.add(group.get(dimension.name()));
+      }
+      counts.put(values, (Integer) group.get(COUNT));
+    }
+    for (Todo todo : others) {
+      List<Object> values = new ArrayList<>();
+      for (Dimension dimension : grouping) {
+        values.add(dimension.value().apply(todo));
+      }
+      counts.merge(values, 1, Integer::sum);
+    }
+    List<Map<String, Object>> merged = new ArrayList<>();
+    for (Map.Entry<List<Object>, Integer> count : counts.entrySet()) {
+      Map<String, Object> group = new LinkedHashMap<>();
+      for (int d = 0; d < grouping.length; d++) {
+        group.put(grouping[d].name(), count.getKey().get(d));
+      }
+      group.put(COUNT, count.getValue());
+      merged.add(group);
+    }
+    return merged;
+  }
+
+  // Every attribute's values are all strings or all booleans
+  @SuppressWarnings("unchecked")
+  private static int compareValues(Object a, Object b) {
+    return ((Comparable<Object>) a).compareTo(b);
+  }
+
+  private static long key(Dimension[] grouping, int row) {
+    long key = 0;
+    for (Dimension dimension : grouping) {
+      key = key * dimension.values().length + dimension.ranks().applyAsInt(row);
+    }
+    return key;
+  }
+
+  // Unpack a key back into the values of its group, last attribute first
+  private static Map<String, Object> group(Dimension[] grouping, long key, int count) {
+    Object[] values = new Object[grouping.length];
+    long rest = key;
+    for (int d = grouping.length - 1; d >= 0; d--) {
+      int length = grouping[d].values().length;
+      values[d] = grouping[d].values()[(int) (rest % length)];
+      rest /= length;
+    }
+    Map<String, Object> group = new LinkedHashMap<>();
+    for (int d = 0; d < grouping.length; d++) {
+      group.put(grouping[d].name(), values[d]);
+    }
+    group.put(COUNT, count);
+    return group;
+  }
+}
@@ -1,19 +1,51 @@
 package umm3601.user;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 import umm3601.Controller;
+import umm3601.ETags;
+import umm3601.Gzip;
+import umm3601.JsonFragments;
+import umm3601.Reloadable;
+import umm3601.ResponseCache;
 
 /**
  * Controller that manages requests for info about users.
  */
 public class UserController implements Controller {
 
-  private UserDatabase userDatabase;
+  // The response header holding the cursor for the next page of users
+  public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+  // Responses with more users than this are streamed rather than being
+  // turned into one big JSON string first
+  public static final int STREAMING_THRESHOLD = 1000;
+  // The most users a batch request can ask for at once
+  public static final int MAX_BATCH_IDS = 1000;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  // The users, which can be swapped for a new version at any time (see
+  // `Reloadable`), so each request gets the current `UserDatabase` once
+  // and sticks with it
+  private Reloadable<UserDatabase> database;
+  private int streamingThreshold;
+  // Finished responses to `getUsers`, or null to build every response from scratch
+  private ResponseCache cache;
+  // Done once the whole list of the latest users has been pinned in the
+  // cache (see `keepWholeList`)
+  private volatile CompletableFuture<Void> wholeListKept = CompletableFuture.completedFuture(null);
 
   /**
    * Construct a controller for users.
@@ -25,7 +57,98 @@ public class UserController implements Controller {
    * @param database the `Database` containing user data
    */
   public UserController(UserDatabase userDatabase) {
-    this.userDatabase = userDatabase;
+    this(userDatabase, STREAMING_THRESHOLD);
+  }
+
+  /**
+   * Construct a controller for users that streams any list of users
+   * longer than the given threshold.
+   *
+   * @param userDatabase       the `Database` containing user data
+   * @param streamingThreshold the largest list of users to send with `ctx.json()`
+   */
+  public UserController(UserDatabase userDatabase, int streamingThreshold) {
+    this(userDatabase, streamingThreshold, null);
+  }
+
+  /**
+   * Construct a controller for users that also keeps its responses to
+   * `getUsers` in the given cache, so that repeated queries don't have to
+   * be answered from scratch.
+   *
+   * @param userDatabase       the `Database` containing user data
+   * @param streamingThreshold the largest list of users to send with `ctx.json()`
+   * @param cache              where to keep responses, or null to not cache them
+   */
+  public UserController(UserDatabase userDatabase, int streamingThreshold, ResponseCache cache) {
+    this(new Reloadable<>(userDatabase, null), streamingThreshold, cache);
+  }
+
+  /**
+   * Construct a controller for users that can be reloaded while the server
+   * is running. Every time they are, the cache is emptied.
+   *
+   * @param database           the users
+   * @param streamingThreshold the largest list of users to send with `ctx.json()`
+   * @param cache              where to keep responses, or null to not cache them
+   */
+  public UserController(Reloadable<UserDatabase> database, int streamingThreshold, ResponseCache cache) {
+    this.database = database;
+    this.streamingThreshold = streamingThreshold;
+    this.cache = cache;
+    if (cache != null) {
+      database.onPublish(userDatabase -> {
+        cache.clear();
+        keepWholeList(userDatabase);
+      });
+      keepWholeList(database.get());
+    }
+  }
+
+  /**
+   * The whole unfiltered list is asked for all the time, so it's built and
+   * gzipped once for each version of the users, in the background rather
+   * than on a request's thread, and pinned in the cache if there's room for
+   * it. Until then, or if there isn't room, it's streamed like any other
+   * big response.
+   *
+   * @param userDatabase a version of the users that has just been published
+   */
+  private void keepWholeList(UserDatabase userDatabase) {
+    // One at a time, carrying on after one that failed, which just leaves
+    // that version streamed
+    wholeListKept = wholeListKept.exceptionally(e -> null).thenRunAsync(() -> pinWholeList(userDatabase));
+  }
+
+  private void pinWholeList(UserDatabase userDatabase) {
+    if (database.get() != userDatabase) {
+      // There are newer users already
+      return;
+    }
+    Map<String, List<String>> everything = Map.of();
+    User[] users = userDatabase.listUsers(everything);
+    int[] rows = userDatabase.rowsOf(users);
+    if (userDatabase.json().length(rows) > cache.maxPinnedBytes()) {
+      return;
+    }
+    ResponseCache.Response response = new ResponseCache.Response(userDatabase.json().toBytes(rows),
+      userDatabase.nextCursor(everything, users));
+    // The cache is emptied after newer users are published, so checking
+    // they still haven't been (while no one else can use the cache) means
+    // it can't be kept around for users that are gone
+    synchronized (cache) {
+      if (database.get() == userDatabase) {
+        cache.pin(userDatabase.version() + "?" + ResponseCache.key(everything), response);
+      }
+    }
+  }
+
+  /**
+   * @return done once the whole list of the latest users has been pinned,
+   *         or turned out not to fit
+   */
+  CompletableFuture<Void> wholeListKept() {
+    return wholeListKept;
   }
 
   /***
@@ -36,26 +159,37 @@ public class UserController implements Controller {
    * reading from the JSON "database" file. If that happens we'll print out an
    * error message exit the program.
    *
+   * If the file is in the filesystem (rather than the classpath), the users
+   * are reloaded whenever it changes.
+   *
    * @throws IOException
    */
   public static UserController buildUserController(String userDataFile) throws IOException {
     UserController userController = null;
 
     UserDatabase userDatabase = new UserDatabase(userDataFile);
-    userController = new UserController(userDatabase);
+    Reloadable<UserDatabase> users = new Reloadable<>(userDatabase, () -> new UserDatabase(userDataFile));
+    userController = new UserController(users.watch(userDataFile), STREAMING_THRESHOLD,
+      new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES));
 
     return userController;
   }
 
   /**
    * Get the single user specified by the `id` parameter in the request.
+   * A client that already has that user (according to `If-None-Match`)
+   * gets a 304 (Not Modified) instead.
    *
    * @param ctx a Javalin HTTP context
    */
   public void getUser(Context ctx) {
+    UserDatabase userDatabase = database.get();
     String id = ctx.pathParam("id");
     User user = userDatabase.getUser(id);
     if (user != null) {
+      if (ETags.notModified(ctx, ETags.of(userDatabase.version(), "id=" + id))) {
+        return;
+      }
       ctx.json(user);
       ctx.status(HttpStatus.OK);
     } else {
@@ -63,25 +197,144 @@ public class UserController implements Controller {
     }
   }
 
+  /**
+   * Get the users with each of the IDs in the request body (a JSON array
+   * of them), in one request rather than one each. The users are sent as
+   * a JSON array in the same order as the IDs, streamed straight into the
+   * response, with `{"_id": ID, "missing": true}` in place of each one
+   * that doesn't exist.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUsersBatch(Context ctx) {
+    List<String> ids = parseIds(ctx);
+    UserDatabase userDatabase = database.get();
+    int[] rows = userDatabase.rowsOfIds(ids);
+    ctx.status(HttpStatus.OK);
+    userDatabase.json().write(ctx, rows, i -> JsonFragments.missing(ids.get(i)));
+  }
+
+  // The JSON array of IDs in the request body
+  private static List<String> parseIds(Context ctx) {
+    List<String> ids;
+    try {
+      ids = MAPPER.readValue(ctx.body(), new TypeReference<List<String>>() { });
+    } catch (JsonProcessingException e) {
+      throw new BadRequestResponse("The request body must be a JSON array of user ids");
+    }
+    if (ids == null || ids.contains(null)) {
+      throw new BadRequestResponse("The request body must be a JSON array of user ids");
+    }
+    if (ids.size() > MAX_BATCH_IDS) {
+      throw new BadRequestResponse("A batch can have at most " + MAX_BATCH_IDS + " ids, not " + ids.size());
+    }
+    return ids;
+  }
+
   /**
    * Get a JSON response with a list of all the users in the "database".
+   * If the request had a `limit` and there may be more users after this
+   * page, the cursor for the next page is put in the `X-Next-Cursor`
+   * response header. Large lists are streamed straight into the response.
+   * <p>
+   * If this controller has a cache, the serialized response is kept in it
+   * (unless it was big enough to stream, although the whole unfiltered list
+   * is kept if there's room, see `keepWholeList`), and a later request with the same query gets those
+   * bytes back without any filtering or serialization; the `X-Cache` header
+   * says which happened. Cached responses are also kept gzipped, and sent
+   * that way to clients whose `Accept-Encoding` allows it.
+   * <p>
+   * Every response has an `ETag`, which depends only on the query and the
+   * version of the data, so a client that sends it back in `If-None-Match`
+   * gets a 304 (Not Modified) before any of that work is done.
    *
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
+    UserDatabase userDatabase = database.get();
+    String key = ResponseCache.key(ctx.queryParamMap());
+    if (ETags.notModified(ctx, ETags.of(userDatabase.version(), key))) {
+      return;
+    }
+    // Cached responses are kept by version too, so one built from old users
+    // (by a request that was still going when they were reloaded) is never sent
+    String cacheKey = userDatabase.version() + "?" + key;
+    ResponseCache.Response cached = cache == null ? null : cache.get(cacheKey);
+    if (cached != null) {
+      send(ctx, cached, "HIT");
+      return;
+    }
     User[] users = userDatabase.listUsers(ctx.queryParamMap());
-    ctx.json(users);
+    String nextCursor = userDatabase.nextCursor(ctx.queryParamMap(), users);
+    // The JSON of each user was worked out when they were loaded (see
+    // `JsonFragments`), so the response is just put together from that
+    if (users.length > streamingThreshold) {
+      // Too big to keep around, so not cached, and gzipped (if the client
+      // allows) by Javalin as it's streamed
+      setNextCursor(ctx, nextCursor);
+      userDatabase.json().write(ctx, userDatabase.rowsOf(users));
+    } else if (cache != null) {
+      byte[] body = userDatabase.json().toBytes(userDatabase.rowsOf(users));
+      ResponseCache.Response response = new ResponseCache.Response(body, nextCursor);
+      cache.put(cacheKey, response);
+      send(ctx, response, "MISS");
+    } else {
+      setNextCursor(ctx, nextCursor);
+      ctx.json(users);
+    }
+  }
+
+  private static void setNextCursor(Context ctx, String nextCursor) {
+    if (nextCursor != null) {
+      ctx.header(NEXT_CURSOR_HEADER, nextCursor);
+    }
+  }
+
+  // Send an already serialized list of users, gzipped if the client accepts that
+  private static void send(Context ctx, ResponseCache.Response response, String cacheStatus) {
+    setNextCursor(ctx, response.nextCursor());
+    ctx.header(ResponseCache.CACHE_HEADER, cacheStatus);
+    ctx.contentType("application/json");
+    Gzip.send(ctx, response.body(), response.gzipped());
+  }
+
+  /**
+   * Load the users again in the background, and switch over to them once
+   * they're ready. Requests carry on with the old users until then (and
+   * keep them if the new ones can't be loaded).
+   *
+   * @return the new users, once they're in place
+   */
+  public CompletableFuture<UserDatabase> reload() {
+    return database.reload();
+  }
+
+  /**
+   * Ask for the users to be reloaded (see `reload`). The response (202,
+   * Accepted) doesn't wait for that to finish.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void reloadUsers(Context ctx) {
+    reload();
+    ctx.status(HttpStatus.ACCEPTED);
   }
 
   /**
    * Setup routes for the `user` collection endpoints.
    *
    * These endpoints are:
-   * - `GET /api/users?age=NUMBER&company=STRING&name=STRING`
+   * - `GET /api/users?age=NUMBER&company=STRING&name=STRING&limit=NUMBER&after=CURSOR`
    * - List users, filtered using query parameters
    * - `age`, `company`, and `name` are optional query parameters
+   * - `minAge` and `maxAge` (also optional) filter by a range of ages, inclusive
+   * - `limit` and `after` page through the results; see `X-Next-Cursor`
    * - `GET /api/users/:id`
    * - Get the specified user
+   * - `POST /api/users/batch`
+   * - Get the users with each of the IDs in the request body, in order
+   * - `POST /api/users/reload`
+   * - Reload the users from their data file, in the background
    *
    * GROUPS SHOULD CREATE THEIR OWN CONTROLLER FOR TODOS THAT
    * IMPLEMENTS THE `Controller` INTERFACE.
@@ -99,5 +352,11 @@ public class UserController implements Controller {
 
     // List users, filtered using query parameters
     server.get("/api/users", this::getUsers);
+
+    // Get many users by ID at once
+    server.post("/api/users/batch", this::getUsersBatch);
+
+    // Reload the users
+    server.post("/api/users/reload", this::reloadUsers);
   }
 }
@@ -1,15 +1,21 @@
 package umm3601.user;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Set;
 
 import io.javalin.http.BadRequestResponse;
+import umm3601.CaseFoldedDictionary;
+import umm3601.ETags;
+import umm3601.JsonFragments;
+import umm3601.PageCursor;
+import umm3601.RecordLoader;
 
 /**
  * A fake "database" of user info
@@ -22,28 +28,135 @@ import io.javalin.http.BadRequestResponse;
 public class UserDatabase {
 
   private User[] allUsers;
+  // Index from `_id` to the user's row (position in `allUsers`), built once
+  // when the data is loaded so that `getUser` is a constant-time lookup
+  // rather than a scan.
+  private Map<String, Integer> rowsById;
+  // The row of each user, by the user itself rather than its `_id` (which
+  // might not be unique), for looking up its JSON in `json` and its place
+  // in the order the users are paged through in
+  private Map<User, Integer> rowsByUser;
+  // The JSON of every user, by row, serialized as the users are loaded
+  private JsonFragments json;
+  // Secondary indexes from age and company to the users with that value,
+  // in their original order. These are only used when filtering the whole
+  // "database"; filtering an already filtered array still scans it.
+  private Map<Integer, User[]> usersByAge;
+  private Map<String, User[]> usersByCompany;
+  // The distinct ages, in ascending order, and the rows of the users with
+  // each of them, in their original order, so the users in an age range
+  // are the rows of a contiguous run of ages that two binary searches can
+  // find.
+  private int[] distinctAges;
+  private int[][] rowsWithAge;
+  // A digest of all the users, which only changes if they do (see `ETags`)
+  private String version;
+  // The companies, case-folded and sorted, for case-insensitive and prefix
+  // matching of `company`
+  private CaseFoldedDictionary companyNames;
 
   public UserDatabase(String userDataFile) throws IOException {
-    // The `.getResourceAsStream` method searches for the given resource in
-    // the classpath, and returns `null` if it isn't found. We want to throw
-    // an IOException if the data file isn't found, so we need to check for
-    // `null` ourselves, and throw an IOException if necessary.
-    InputStream resourceAsStream = getClass().getResourceAsStream(userDataFile);
-    if (resourceAsStream == null) {
-      throw new IOException("Could not find " + userDataFile);
-    }
-    InputStreamReader reader = new InputStreamReader(resourceAsStream);
-    // A Jackson JSON mapper knows how to parse JSON into sensible 'User'
-    // objects.
-    ObjectMapper objectMapper = new ObjectMapper();
-    // Read our user data file into an array of User objects.
-    allUsers = objectMapper.readValue(reader, User[].class);
+    // `RecordLoader` looks for the data file in the classpath first, then in
+    // the filesystem, and throws an IOException if it isn't in either.
+    // Read the users one at a time (see `RecordLoader`), adding each to
+    // the indexes as soon as it has been parsed.
+    List<User> users = new ArrayList<>();
+    Map<Integer, List<User>> ages = new HashMap<>();
+    Map<String, List<User>> companies = new HashMap<>();
+    rowsById = new HashMap<>();
+    rowsByUser = new IdentityHashMap<>();
+    JsonFragments.Builder fragments = new JsonFragments.Builder();
+    RecordLoader.load(userDataFile, User.class, user -> {
+      // If the data file somehow contains duplicate IDs, the first user
+      // with that ID wins, which matches what the old linear scan returned.
+      rowsById.putIfAbsent(user._id, users.size());
+      rowsByUser.put(user, users.size());
+      fragments.add(user);
+      users.add(user);
+      ages.computeIfAbsent(user.age, k -> new ArrayList<>()).add(user);
+      companies.computeIfAbsent(user.company, k -> new ArrayList<>()).add(user);
+    });
+    allUsers = users.toArray(new User[0]);
+    json = fragments.build();
+    usersByAge = toPostings(ages);
+    usersByCompany = toPostings(companies);
+    companyNames = new CaseFoldedDictionary(usersByCompany.keySet());
+    distinctAges = ages.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+    rowsWithAge = Arrays.stream(distinctAges)
+      .mapToObj(age -> ages.get(age).stream().mapToInt(rowsByUser::get).toArray())
+      .toArray(int[][]::new);
+    ETags.Version digest = new ETags.Version();
+    for (User user : allUsers) {
+      digest.add(user._id).add(user.name).add(String.valueOf(user.age)).add(user.company).add(user.email);
+    }
+    version = digest.finish();
+  }
+
+  /**
+   * Turn the groups of users built while loading into the arrays that
+   * the filters hand back.
+   *
+   * @param <K>    the type of the attribute the users were grouped by
+   * @param groups a map from each distinct value to the users having that value
+   * @return the same map, with arrays instead of lists; the filters hand
+   *         back copies of these, never the arrays themselves
+   */
+  private static <K> Map<K, User[]> toPostings(Map<K, List<User>> groups) {
+    Map<K, User[]> postings = new HashMap<>();
+    for (Map.Entry<K, List<User>> group : groups.entrySet()) {
+      postings.put(group.getKey(), group.getValue().toArray(new User[0]));
+    }
+    return postings;
   }
 
   public int size() {
     return allUsers.length;
   }
 
+  /**
+   * @return the version of the users in this database, which only changes
+   *         if the users do
+   */
+  public String version() {
+    return version;
+  }
+
+  /**
+   * @return the JSON of every user, by row, serialized when the users were
+   *         loaded; see `rowsOf`
+   */
+  public JsonFragments json() {
+    return json;
+  }
+
+  /**
+   * @param users some of the users from this database, e.g., from `listUsers`
+   * @return the row of each of them, for looking up their JSON in `json()`
+   */
+  public int[] rowsOf(User[] users) {
+    int[] rows = new int[users.length];
+    for (int i = 0; i < users.length; i++) {
+      rows[i] = rowsByUser.get(users[i]);
+    }
+    return rows;
+  }
+
+  /**
+   * Find many users at once, e.g., for a batch request.
+   *
+   * @param ids the IDs of the users
+   * @return the row of the user with each ID, in the same order, or -1 for
+   *         each ID that no user has; see `json()`
+   */
+  public int[] rowsOfIds(List<String> ids) {
+    int[] rows = new int[ids.size()];
+    for (int i = 0; i < rows.length; i++) {
+      Integer row = rowsById.get(ids.get(i));
+      rows[i] = row == null ? -1 : row;
+    }
+    return rows;
+  }
+
   /**
    * Get the single user specified by the given ID. Return `null` if there is no
    * user with that ID.
@@ -52,7 +165,8 @@ public class UserDatabase {
    * @return the user with the given ID, or null if there is no user with that ID
    */
   public User getUser(String id) {
-    return Arrays.stream(allUsers).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+    Integer row = rowsById.get(id);
+    return row == null ? null : allUsers[row];
   }
 
   /**
@@ -74,6 +188,12 @@ public class UserDatabase {
         throw new BadRequestResponse("Specified age '" + ageParam + "' can't be parsed to an integer");
       }
     }
+    // Filter by a range of ages if either end is defined
+    if (queryParams.containsKey("minAge") || queryParams.containsKey("maxAge")) {
+      int minAge = parseAge(queryParams, "minAge", Integer.MIN_VALUE);
+      int maxAge = parseAge(queryParams, "maxAge", Integer.MAX_VALUE);
+      filteredUsers = filterUsersByAgeRange(filteredUsers, minAge, maxAge);
+    }
     // Filter company if defined
     if (queryParams.containsKey("company")) {
       String targetCompany = queryParams.get("company").get(0);
@@ -81,9 +201,87 @@ public class UserDatabase {
     }
     // Process other query parameters here...
 
+    // Page through the results if `after` or `limit` is defined
+    if (queryParams.containsKey("after") || queryParams.containsKey("limit")) {
+      filteredUsers = pageOfUsers(filteredUsers, queryParams);
+    }
     return filteredUsers;
   }
 
+  /**
+   * Get the page of the given users that starts after the `after` cursor
+   * (or at the beginning if there isn't one), and has at most `limit` users
+   * in it (or all the rest of them if there's no limit).
+   * <p>
+   * Users always come back in the order they are in the data file, so a
+   * cursor is just the row of the last user the client has already seen.
+   * We can jump straight to the row after it in the unfiltered users, and
+   * binary search for it in a filtered array.
+   *
+   * @param users       the (possibly filtered) users to page through, in row order
+   * @param queryParams map of key-value pairs for the query
+   * @return the requested page of users
+   */
+  private User[] pageOfUsers(User[] users, Map<String, List<String>> queryParams) {
+    int after = -1;
+    if (queryParams.containsKey("after")) {
+      after = PageCursor.decode(queryParams.get("after").get(0), version, "");
+    }
+    int from;
+    if (users == allUsers) {
+      from = Math.min(after + 1, users.length);
+    } else {
+      int low = 0;
+      int high = users.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (rowsByUser.get(users[mid]) <= after) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      from = low;
+    }
+    Integer limit = parseLimit(queryParams);
+    int to = limit == null ? users.length : (int) Math.min(users.length, (long) from + limit);
+    return Arrays.copyOfRange(users, from, to);
+  }
+
+  /**
+   * Get the cursor for the page of users after the given one. There's only
+   * a next page if the client asked for a `limit` and got a full page back.
+   *
+   * @param queryParams map of key-value pairs for the query that produced the page
+   * @param page        the users returned for that query
+   * @return the cursor to pass as `after` to get the next page, or null if
+   *         that was the last page
+   */
+  public String nextCursor(Map<String, List<String>> queryParams, User[] page) {
+    Integer limit = parseLimit(queryParams);
+    if (limit == null || page.length == 0 || page.length < limit) {
+      return null;
+    }
+    return PageCursor.encode(version, "", rowsByUser.get(page[page.length - 1]));
+  }
+
+  // The `limit` from the query, or null if there isn't one
+  private static Integer parseLimit(Map<String, List<String>> queryParams) {
+    if (!queryParams.containsKey("limit")) {
+      return null;
+    }
+    String limitParam = queryParams.get("limit").get(0);
+    try {
+      int limit = Integer.parseInt(limitParam);
+      if (limit >= 0) {
+        return limit;
+      }
+    } catch (NumberFormatException e) {
+      // handled below, along with negative limits
+    }
+    throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be parsed to a non-negative integer");
+  }
+
   /**
    * Get an array of all the users having the target age.
    *
@@ -93,19 +291,149 @@ public class UserDatabase {
    *         age
    */
   public User[] filterUsersByAge(User[] users, int targetAge) {
+    if (users == allUsers) {
+      // A copy, so that nothing the caller does to it can change the index
+      return usersByAge.getOrDefault(targetAge, new User[0]).clone();
+    }
     return Arrays.stream(users).filter(x -> x.age == targetAge).toArray(User[]::new);
   }
 
+  // The age in the given query parameter, or `missing` if there isn't one
+  private static int parseAge(Map<String, List<String>> queryParams, String param, int missing) {
+    if (!queryParams.containsKey(param)) {
+      return missing;
+    }
+    String ageParam = queryParams.get(param).get(0);
+    try {
+      return Integer.parseInt(ageParam);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified " + param + " '" + ageParam + "' can't be parsed to an integer");
+    }
+  }
+
   /**
-   * Get an array of all the users having the target company.
+   * Get an array of all the users whose age is in the given range.
+   * <p>
+   * For the whole "database" this finds where the range starts and ends in
+   * `distinctAges` with two binary searches, and then merges the rows of
+   * the users with each of the ages in between, which are each already in
+   * their original order. So it only looks at the users in the range, and
+   * each costs O(log a), where a is the number of distinct ages in the
+   * range (which can't be more than a hundred or so), rather than
+   * O(log k) for sorting all k of them.
+   *
+   * @param users  the list of users to filter by age
+   * @param minAge the youngest age to include
+   * @param maxAge the oldest age to include
+   * @return an array of all the users from the given list whose age is
+   *         between `minAge` and `maxAge` (inclusive), in their original order
+   */
+  public User[] filterUsersByAgeRange(User[] users, int minAge, int maxAge) {
+    if (users != allUsers) {
+      return Arrays.stream(users).filter(x -> x.age >= minAge && x.age <= maxAge).toArray(User[]::new);
+    }
+    if (minAge > maxAge) {
+      return new User[0];
+    }
+    int from = firstAgeAtLeast(minAge);
+    int to = maxAge == Integer.MAX_VALUE ? distinctAges.length : firstAgeAtLeast(maxAge + 1);
+    return Arrays.stream(mergeRows(rowsWithAge, from, to)).mapToObj(row -> allUsers[row]).toArray(User[]::new);
+  }
+
+  // The position in `distinctAges` of the first age that is at least `age`
+  private int firstAgeAtLeast(int age) {
+    int low = 0;
+    int high = distinctAges.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (distinctAges[mid] < age) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Merge some runs of rows, each in ascending order, into one, with a
+   * min-heap of the runs keyed by the next row in each.
+   *
+   * @param runs the runs of rows
+   * @param from the first run to merge
+   * @param to   one past the last run to merge
+   * @return all the rows in `runs[from]` up to `runs[to - 1]`, in ascending order
+   */
+  private static int[] mergeRows(int[][] runs, int from, int to) {
+    int total = 0;
+    for (int run = from; run < to; run++) {
+      total += runs[run].length;
+    }
+    int[] merged = new int[total];
+    // Where each run is up to, and the heap of the runs with rows left
+    int[] next = new int[runs.length];
+    int[] heap = new int[to - from];
+    int size = 0;
+    for (int run = from; run < to; run++) {
+      if (runs[run].length > 0) {
+        heap[size++] = run;
+      }
+    }
+    for (int i = size / 2 - 1; i >= 0; i--) {
+      siftDown(heap, size, i, runs, next);
+    }
+    for (int count = 0; count < total; count++) {
+      int run = heap[0];
+      merged[count] = runs[run][next[run]++];
+      if (next[run] == runs[run].length) {
+        heap[0] = heap[--size];
+      }
+      siftDown(heap, size, 0, runs, next);
+    }
+    return merged;
+  }
+
+  private static void siftDown(int[] heap, int size, int parent, int[][] runs, int[] next) {
+    int run = heap[parent];
+    while (2 * parent + 1 < size) {
+      int child = 2 * parent + 1;
+      if (child + 1 < size && runs[heap[child + 1]][next[heap[child + 1]]] < runs[heap[child]][next[heap[child]]]) {
+        child++;
+      }
+      if (runs[run][next[run]] <= runs[heap[child]][next[heap[child]]]) {
+        break;
+      }
+      heap[parent] = heap[child];
+      parent = child;
+    }
+    heap[parent] = run;
+  }
+
+  /**
+   * Get an array of all the users having the target company, ignoring case.
+   * A target ending in `*` is a prefix, so `ohm*` matches "OHMNET".
+   * <p>
+   * The companies that match are found in `companyNames`, so nothing is
+   * lower-cased per user; after that it's the same exact lookup (or scan)
+   * as for any other filter.
    *
    * @param users         the list of users to filter by company
-   * @param targetCompany the target company to look for
+   * @param targetCompany the target company (or prefix followed by `*`) to look for
    * @return an array of all the users from the given list that have the target
-   *         company
+   *         company, in their original order
    */
   public User[] filterUsersByCompany(User[] users, String targetCompany) {
-    return Arrays.stream(users).filter(x -> x.company.equals(targetCompany)).toArray(User[]::new);
+    Set<String> companies = companyNames.matching(targetCompany);
+    if (users != allUsers) {
+      return Arrays.stream(users).filter(x -> companies.contains(x.company)).toArray(User[]::new);
+    }
+    if (companies.size() == 1) {
+      return usersByCompany.get(companies.iterator().next()).clone();
+    }
+    return companies.stream()
+      .flatMap(company -> Arrays.stream(usersByCompany.get(company)))
+      .sorted(Comparator.comparingInt(user -> rowsByUser.get(user)))
+      .toArray(User[]::new);
   }
 
 }
@@ -0,0 +1,89 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests for `ETags`: versions, tags, and how `If-None-Match` is checked.
+ */
+public class ETagsSpec {
+
+  @Mock
+  private Context ctx;
+
+  @BeforeEach
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+  }
+
+  @Test
+  public void versionsDependOnEveryValue() {
+    String version = new ETags.Version().add("ab").add("c").finish();
+    assertEquals(version, new ETags.Version().add("ab").add("c").finish());
+    assertNotEquals(version, new ETags.Version().add("a").add("bc").finish());
+    assertNotEquals(
+      new ETags.Version().add(null).finish(),
+      new ETags.Version().add("").finish());
+  }
+
+  @Test
+  public void tagsDependOnTheVersionAndTheRequest() {
+    String tag = ETags.of("v1", "owner=Blanche");
+    assertTrue(tag.startsWith("W/\"v1-") && tag.endsWith("\""));
+    assertEquals(tag, ETags.of("v1", "owner=Blanche"));
+    assertNotEquals(tag, ETags.of("v2", "owner=Blanche"));
+    assertNotEquals(tag, ETags.of("v1", "owner=Fry"));
+  }
+
+  @Test
+  public void anUnconditionalRequestIsNotANotModified() {
+    String tag = ETags.of("v1", "");
+    assertFalse(ETags.notModified(ctx, tag));
+    verify(ctx).header(ETags.ETAG_HEADER, tag);
+    verify(ctx, never()).status(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  public void matchesAnyOfTheTagsInIfNoneMatch() {
+    String tag = ETags.of("v1", "");
+    String strong = tag.substring("W/".length());
+    String[] matching = {tag, "\"other\", " + tag, strong, "\"other\", " + strong, "*"};
+    for (String ifNoneMatch : matching) {
+      MockitoAnnotations.openMocks(this);
+      when(ctx.header(ETags.IF_NONE_MATCH_HEADER)).thenReturn(ifNoneMatch);
+      assertTrue(ETags.notModified(ctx, tag), ifNoneMatch);
+      verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    }
+    when(ctx.header(ETags.IF_NONE_MATCH_HEADER)).thenReturn(ETags.of("v2", ""));
+    assertFalse(ETags.notModified(ctx, tag));
+  }
+
+  @Test
+  public void theTagIsWeakForEveryEncoding() {
+    //the body might be gzipped or not, so the tag can't claim it's the same bytes either way
+    for (String acceptEncoding : new String[] {"gzip", "identity", null}) {
+      MockitoAnnotations.openMocks(this);
+      when(ctx.header(Gzip.ACCEPT_ENCODING_HEADER)).thenReturn(acceptEncoding);
+      String tag = ETags.of("v1", "owner=Blanche");
+      assertFalse(ETags.notModified(ctx, tag));
+      verify(ctx).header(ETags.ETAG_HEADER, tag);
+      assertTrue(tag.startsWith("W/"), acceptEncoding);
+      //and a client that got either one can revalidate it
+      when(ctx.header(ETags.IF_NONE_MATCH_HEADER)).thenReturn(tag);
+      assertTrue(ETags.notModified(ctx, tag), acceptEncoding);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.http.Context;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for `Gzip`: compressing bodies, reading `Accept-Encoding`, and
+ * which bytes get sent.
+ */
+public class GzipSpec {
+
+  @Mock
+  private Context ctx;
+
+  @Mock
+  private HttpServletResponse res;
+
+  @Mock
+  private ServletOutputStream out;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    MockitoAnnotations.openMocks(this);
+    when(ctx.res()).thenReturn(res);
+    when(res.getOutputStream()).thenReturn(out);
+  }
+
+  private static byte[] body() {
+    return "[{\"owner\":\"Blanche\"}]".repeat(Gzip.MIN_BYTES).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void compressesBigEnoughBodies() throws IOException {
+    byte[] body = body();
+    byte[] gzipped = Gzip.compress(body);
+    assertTrue(gzipped.length < body.length);
+    assertArrayEquals(body, new GZIPInputStream(new ByteArrayInputStream(gzipped)).readAllBytes());
+    assertNull(Gzip.compress(new byte[Gzip.MIN_BYTES - 1]));
+  }
+
+  @Test
+  public void readsAcceptEncoding() {
+    String[] accepting = {"gzip", "deflate, gzip;q=1.0, *;q=0.5", "*", "br;q=1, *;q=0.1", "GZIP; Q=0.5"};
+    for (String acceptEncoding : accepting) {
+      assertTrue(Gzip.accepted(acceptEncoding), acceptEncoding);
+    }
+    String[] refusing = {null, "", "identity", "gzip;q=0", "*, gzip;q=0", "br", "gzip;q=nope"};
+    for (String acceptEncoding : refusing) {
+      assertFalse(Gzip.accepted(acceptEncoding), acceptEncoding);
+    }
+  }
+
+  @Test
+  public void sendsTheGzippedBytesWhenAccepted() throws IOException {
+    byte[] body = body();
+    byte[] gzipped = Gzip.compress(body);
+    when(ctx.header(Gzip.ACCEPT_ENCODING_HEADER)).thenReturn("gzip");
+    Gzip.send(ctx, body, gzipped);
+    verify(out).write(gzipped);
+    verify(res).setContentLength(gzipped.length);
+    verify(ctx).header(Gzip.CONTENT_ENCODING_HEADER, "gzip");
+    verify(ctx).header(Gzip.VARY_HEADER, Gzip.ACCEPT_ENCODING_HEADER);
+    verify(ctx, never()).result(body);
+  }
+
+  @Test
+  public void sendsThePlainBytesOtherwise() throws IOException {
+    byte[] body = body();
+    Gzip.send(ctx, body, Gzip.compress(body));
+    verify(ctx).result(body);
+    verify(ctx).header(Gzip.VARY_HEADER, Gzip.ACCEPT_ENCODING_HEADER);
+    verify(ctx, never()).header(Gzip.CONTENT_ENCODING_HEADER, "gzip");
+
+    // Without gzipped bytes there's nothing else to send
+    when(ctx.header(Gzip.ACCEPT_ENCODING_HEADER)).thenReturn("gzip");
+    Gzip.send(ctx, body, null);
+    verify(ctx, never()).res();
+  }
+}
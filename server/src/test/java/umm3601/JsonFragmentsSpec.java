@@ -0,0 +1,177 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.todo.Todo;
+import umm3601.todo.TodoDatabase;
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests for `JsonFragments`: putting arrays together from the fragments
+ * has to give exactly the bytes Jackson would have.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class JsonFragmentsSpec {
+
+  // Strings that need (or don't need) escaping in all the ways Jackson does it
+  private static final String[] STRINGS = {
+    "\u00dcn\u00efcode \"quoted\"", "back\\slash/", "tab\tnew\nline\r\b\f", "\u0001\u001f\u007f",
+    "\ud83d\ude00", "", null,
+  };
+
+  private static JsonFragments stringFragments() {
+    JsonFragments.Builder builder = new JsonFragments.Builder();
+    for (String value : STRINGS) {
+      builder.add(value);
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void givesTheSameBytesAsJackson() throws IOException {
+    JsonFragments json = stringFragments();
+    assertEquals(STRINGS.length, json.size());
+
+    ObjectMapper mapper = new ObjectMapper();
+    int[] rows = {6, 0, 1, 2, 3, 4, 5, 0};
+    String[] expected = Arrays.stream(rows).mapToObj(row -> STRINGS[row]).toArray(String[]::new);
+    assertArrayEquals(mapper.writeValueAsBytes(expected), json.toBytes(rows));
+    assertEquals("[]", new String(json.toBytes(new int[0]), StandardCharsets.UTF_8));
+    for (int row = 0; row < STRINGS.length; row++) {
+      assertArrayEquals(mapper.writeValueAsBytes(STRINGS[row]), json.fragment(row));
+    }
+
+    // Streaming gives the same bytes too
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    json.write(out, rows);
+    assertArrayEquals(json.toBytes(rows), out.toByteArray());
+  }
+
+  @Test
+  public void canReplaceTheFragmentsForSomeRows() throws IOException {
+    JsonFragments json = stringFragments();
+    int added = STRINGS.length;
+    JsonFragments replaced = json.with(new int[] {1, added},
+      new byte[][] {JsonFragments.serialize("changed"), JsonFragments.serialize(List.of("added"))});
+
+    ObjectMapper mapper = new ObjectMapper();
+    assertArrayEquals(mapper.writeValueAsBytes(List.of(List.of("added"), STRINGS[0], "changed")),
+      replaced.toBytes(new int[] {added, 0, 1}));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    replaced.write(out, new int[] {added, 0, 1});
+    assertArrayEquals(replaced.toBytes(new int[] {added, 0, 1}), out.toByteArray());
+    // The original fragments are just as they were
+    assertArrayEquals(mapper.writeValueAsBytes(new String[] {STRINGS[0], STRINGS[1]}), json.toBytes(new int[] {0, 1}));
+  }
+
+  @Test
+  public void matchesJacksonForTheWholeDatabase() throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    TodoDatabase todos = new TodoDatabase(Main.TODO_DATA_FILE);
+    Map<String, List<String>> query = new HashMap<>();
+    query.put("orderBy", List.of("body"));
+    byte[] expected = mapper.writeValueAsBytes(todos.listTodos(query));
+    assertArrayEquals(expected, todos.json().toBytes(todos.listTodoRows(query)));
+
+    // Streamed, the whole list is written a piece at a time
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    todos.json().write(out, todos.listTodoRows(query));
+    assertArrayEquals(expected, out.toByteArray());
+
+    UserDatabase users = new UserDatabase(Main.USER_DATA_FILE);
+    User[] allUsers = users.listUsers(new HashMap<>());
+    assertArrayEquals(mapper.writeValueAsBytes(allUsers), users.json().toBytes(users.rowsOf(allUsers)));
+  }
+
+  @Test
+  public void matchesJacksonForAwkwardTodos(@TempDir Path directory) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    List<Todo> awkward = new ArrayList<>();
+    for (int i = 0; i < STRINGS.length; i++) {
+      Todo todo = new Todo();
+      todo._id = STRINGS[i];
+      todo.owner = STRINGS[(i + 1) % STRINGS.length];
+      todo.status = i % 3 == 0 ? null : i % 3 == 1;
+      todo.body = STRINGS[(i + 2) % STRINGS.length];
+      todo.category = STRINGS[(i + 3) % STRINGS.length];
+      awkward.add(todo);
+    }
+    Path file = directory.resolve("todos.json");
+    mapper.writeValue(file.toFile(), awkward);
+    TodoDatabase todos = new TodoDatabase(file.toString());
+    // A snapshot's columns are read straight out of the mapped file
+    Path snapshot = directory.resolve("todos.snapshot");
+    todos.writeSnapshot(snapshot);
+    for (TodoDatabase database : new TodoDatabase[] {todos, new TodoDatabase(snapshot.toString())}) {
+      int[] rows = IntStream.range(0, awkward.size()).toArray();
+      assertArrayEquals(mapper.writeValueAsBytes(awkward), database.json().toBytes(rows));
+    }
+  }
+
+  @Test
+  public void everyRecordIsSerializedTheWayJacksonWouldOnItsOwn(@TempDir Path directory) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    List<Todo> todos = new ArrayList<>();
+    List<User> users = new ArrayList<>();
+    for (int i = 0; i < STRINGS.length; i++) {
+      Todo todo = new Todo();
+      todo._id = STRINGS[i];
+      todo.owner = STRINGS[(i + 1) % STRINGS.length];
+      todo.status = i % 3 == 0 ? null : i % 3 == 1;
+      todo.body = STRINGS[(i + 2) % STRINGS.length];
+      todo.category = STRINGS[(i + 3) % STRINGS.length];
+      todos.add(todo);
+      User user = new User();
+      user._id = STRINGS[i];
+      user.name = STRINGS[(i + 1) % STRINGS.length];
+      user.age = i - 3;
+      user.company = STRINGS[(i + 2) % STRINGS.length];
+      user.email = STRINGS[(i + 3) % STRINGS.length];
+      users.add(user);
+    }
+    Path todoFile = directory.resolve("todos.json");
+    mapper.writeValue(todoFile.toFile(), todos);
+    Path userFile = directory.resolve("users.json");
+    mapper.writeValue(userFile.toFile(), users);
+    Path snapshot = directory.resolve("todos.snapshot");
+    new TodoDatabase(todoFile.toString()).writeSnapshot(snapshot);
+
+    // Each todo's fragment is what `GET /api/todos/{id}` would send for it
+    for (String file : new String[] {Main.TODO_DATA_FILE, todoFile.toString(), snapshot.toString()}) {
+      TodoDatabase database = new TodoDatabase(file);
+      Todo[] all = database.listTodos(new HashMap<>());
+      int[] rows = database.listTodoRows(new HashMap<>());
+      for (int i = 0; i < all.length; i++) {
+        assertEquals(new String(mapper.writeValueAsBytes(all[i]), StandardCharsets.UTF_8),
+          new String(database.json().fragment(rows[i]), StandardCharsets.UTF_8), file + " " + i);
+      }
+    }
+    for (String file : new String[] {Main.USER_DATA_FILE, userFile.toString()}) {
+      UserDatabase database = new UserDatabase(file);
+      User[] all = database.listUsers(new HashMap<>());
+      int[] rows = database.rowsOf(all);
+      for (int i = 0; i < all.length; i++) {
+        assertEquals(new String(mapper.writeValueAsBytes(all[i]), StandardCharsets.UTF_8),
+          new String(database.json().fragment(rows[i]), StandardCharsets.UTF_8), file + " " + i);
+      }
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import umm3601.todo.Todo;
+
+/**
+ * Tests for `RecordLoader`, using both the regular todo data file and a
+ * newline-delimited copy of it from the test resources. The filesystem
+ * tests copy those into a temporary directory.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class RecordLoaderSpec {
+
+  private static List<Todo> loadResource(String resource) throws IOException {
+    List<Todo> todos = new ArrayList<>();
+    InputStream in = RecordLoaderSpec.class.getResourceAsStream(resource);
+    int count = RecordLoader.load(resource, in, Todo.class, todos::add);
+    assertEquals(count, todos.size());
+    return todos;
+  }
+
+  private static InputStream streamOf(String text) {
+    return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void readsAJsonArrayInOrder() throws IOException {
+    List<Todo> todos = loadResource(Main.TODO_DATA_FILE);
+    assertEquals(300, todos.size());
+    assertEquals("58895985a22c04e761776d54", todos.get(0)._id);
+  }
+
+  @Test
+  public void readsNewlineDelimitedJsonInOrder() throws IOException {
+    List<Todo> fromArray = loadResource(Main.TODO_DATA_FILE);
+    List<Todo> fromLines = loadResource("/todos.ndjson");
+    assertEquals(fromArray.size(), fromLines.size());
+    for (int i = 0; i < fromArray.size(); i++) {
+      assertEquals(fromArray.get(i)._id, fromLines.get(i)._id);
+    }
+  }
+
+  @Test
+  public void parallelChunksKeepTheRecordsInOrder() throws IOException {
+    // Tiny chunks, so that the lines get spread across lots of tasks
+    byte[] lines = RecordLoaderSpec.class.getResourceAsStream("/todos.ndjson").readAllBytes();
+    List<Todo> todos = new ArrayList<>();
+    RecordLoader.loadLines("todos.ndjson", ByteBuffer.wrap(lines), Todo.class, todos::add, 100);
+    List<Todo> expected = loadResource(Main.TODO_DATA_FILE);
+    assertEquals(expected.size(), todos.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i)._id, todos.get(i)._id);
+    }
+  }
+
+  @Test
+  public void splitsOnlyAtLineBreaks() {
+    ByteBuffer buffer = ByteBuffer.wrap("aaaa\nbb\ncccccc\nd".getBytes(StandardCharsets.UTF_8));
+    List<ByteBuffer> chunks = RecordLoader.splitAtLineBreaks(buffer, 3);
+    assertEquals(4, chunks.size());
+    for (ByteBuffer chunk : chunks.subList(0, 3)) {
+      assertEquals('\n', chunk.get(chunk.limit() - 1));
+    }
+    assertEquals(1, chunks.get(3).remaining());
+  }
+
+  @Test
+  public void skipsLeadingWhitespaceAndByteOrderMark() throws IOException {
+    List<Todo> todos = new ArrayList<>();
+    RecordLoader.load("bom", streamOf("\uFEFF\n  [{\"_id\": \"a\"}, {\"_id\": \"b\"}]"), Todo.class, todos::add);
+    assertEquals(2, todos.size());
+    assertEquals("b", todos.get(1)._id);
+    // Far more whitespace than fits in a buffer, before newline-delimited records
+    todos.clear();
+    RecordLoader.load("padded", streamOf(" \n".repeat(1 << 16) + "{\"_id\": \"c\"}\n{\"_id\": \"d\"}\n"), Todo.class,
+      todos::add);
+    assertEquals(List.of("c", "d"), todos.stream().map(todo -> todo._id).toList());
+  }
+
+  @Test
+  public void rejectsMalformedInput() {
+    assertThrows(IOException.class,
+      () -> RecordLoader.load("numbers", streamOf("[1, 2]"), Todo.class, todo -> { }));
+    assertThrows(IOException.class,
+      () -> RecordLoader.load("broken", streamOf("{\"_id\": \"a\"}\n{\"_id\""), Todo.class, todo -> { }));
+    IOException e = assertThrows(IOException.class,
+      () -> RecordLoader.load("object", streamOf("  \"not records\""), Todo.class, todo -> { }));
+    assertTrue(e.getMessage() != null);
+  }
+
+  private static void assertSameIds(List<Todo> expected, List<Todo> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i)._id, actual.get(i)._id);
+    }
+  }
+
+  private static byte[] resourceBytes(String resource) throws IOException {
+    return RecordLoaderSpec.class.getResourceAsStream(resource).readAllBytes();
+  }
+
+  @Test
+  public void readsAFileFromTheFilesystem(@TempDir Path directory) throws IOException {
+    Path file = Files.write(directory.resolve("todos.json"), resourceBytes(Main.TODO_DATA_FILE));
+    List<Todo> todos = new ArrayList<>();
+    RecordLoader.load(file.toString(), Todo.class, todos::add);
+    assertSameIds(loadResource(Main.TODO_DATA_FILE), todos);
+  }
+
+  @Test
+  public void readsShardsInFileNameOrder(@TempDir Path directory) throws IOException {
+    // The second shard is newline-delimited, and the first is a JSON array;
+    // anything that isn't a data file is ignored
+    Files.write(directory.resolve("2-todos.ndjson"), resourceBytes("/todos.ndjson"));
+    Files.write(directory.resolve("1-todos.json"), resourceBytes(Main.TODO_DATA_FILE));
+    Files.writeString(directory.resolve("README.md"), "not data");
+    Files.createDirectory(directory.resolve("old.json"));
+
+    List<Todo> todos = new ArrayList<>();
+    int count = RecordLoader.load(directory.toString(), Todo.class, todos::add);
+
+    List<Todo> expected = new ArrayList<>(loadResource(Main.TODO_DATA_FILE));
+    expected.addAll(loadResource("/todos.ndjson"));
+    assertEquals(600, count);
+    assertSameIds(expected, todos);
+  }
+
+  @Test
+  public void handsOverRecordsFromAFileAsTheyAreRead(@TempDir Path directory) throws IOException {
+    // The records before the mistake are handed over before it's found
+    Path file = Files.writeString(directory.resolve("todos.json"), "[{\"_id\": \"a\"}, {\"_id\": \"b\"}, 3]");
+    List<Todo> todos = new ArrayList<>();
+    assertThrows(IOException.class, () -> RecordLoader.load(file.toString(), Todo.class, todos::add));
+    assertEquals(2, todos.size());
+  }
+
+  @Test
+  public void readsManyShardsInFileNameOrder(@TempDir Path directory) throws IOException {
+    // More shards than are ever read at once
+    List<Todo> expected = loadResource(Main.TODO_DATA_FILE);
+    for (int i = 0; i < expected.size(); i += 3) {
+      StringBuilder shard = new StringBuilder();
+      for (Todo todo : expected.subList(i, Math.min(i + 3, expected.size()))) {
+        shard.append("{\"_id\": \"").append(todo._id).append("\"}\n");
+      }
+      Files.writeString(directory.resolve(String.format("todos-%03d.ndjson", i)), shard);
+    }
+
+    List<Todo> todos = new ArrayList<>();
+    RecordLoader.load(directory.toString(), Todo.class, todos::add);
+    assertSameIds(expected, todos);
+  }
+
+  @Test
+  public void reportsMissingAndMalformedFiles(@TempDir Path directory) throws IOException {
+    IOException missing = assertThrows(IOException.class,
+      () -> RecordLoader.load(directory.resolve("nope.json").toString(), Todo.class, todo -> { }));
+    assertTrue(missing.getMessage().startsWith("Could not find"));
+
+    Files.writeString(directory.resolve("good.json"), "[{\"_id\": \"a\"}]");
+    Files.writeString(directory.resolve("bad.ndjson"), "{\"_id\": ");
+    assertThrows(IOException.class, () -> RecordLoader.load(directory.toString(), Todo.class, todo -> { }));
+  }
+}
@@ -0,0 +1,140 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for `Reloadable`: publishing new versions, keeping the old one when
+ * a reload fails, writing and rebuilding, and watching files for changes.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class ReloadableSpec {
+
+  @Test
+  public void publishesEachNewVersionAndTellsTheListeners() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    List<Integer> heard = new ArrayList<>();
+    try (Reloadable<Integer> data = new Reloadable<>(0, loads::incrementAndGet)) {
+      data.onPublish(heard::add);
+      assertEquals(0, data.get());
+
+      Integer first = data.reload().get(10, TimeUnit.SECONDS);
+      assertEquals(1, first);
+      assertSame(first, data.get());
+      data.reload().get(10, TimeUnit.SECONDS);
+      assertEquals(2, data.get());
+      assertEquals(List.of(1, 2), heard);
+    }
+  }
+
+  @Test
+  public void keepsTheOldVersionIfAReloadFails() throws Exception {
+    try (Reloadable<String> data = new Reloadable<>("old", () -> {
+      throw new IOException("half written");
+    })) {
+      ExecutionException failure = assertThrows(ExecutionException.class,
+        () -> data.reload().get(10, TimeUnit.SECONDS));
+      assertInstanceOf(IOException.class, failure.getCause());
+      assertEquals("old", data.get());
+    }
+  }
+
+  @Test
+  public void cantReloadWithoutALoader() throws IOException {
+    try (Reloadable<String> data = new Reloadable<>("fixed", null)) {
+      assertThrows(ExecutionException.class, () -> data.reload().get());
+      assertEquals("fixed", data.get());
+    }
+  }
+
+  @Test
+  public void makesWritesOneAtATime() throws Exception {
+    List<Integer> heard = new ArrayList<>();
+    try (Reloadable<Integer> data = new Reloadable<>(0, null)) {
+      data.onPublish(heard::add);
+      List<Thread> writers = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        Thread writer = new Thread(() -> {
+          for (int j = 0; j < 1000; j++) {
+            data.update(count -> count + 1);
+          }
+        });
+        writer.start();
+        writers.add(writer);
+      }
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      // No write was lost, and each version was published in turn
+      assertEquals(4000, data.get());
+      assertEquals(4000, heard.size());
+      assertEquals(4000, heard.get(3999));
+    }
+  }
+
+  @Test
+  public void rebuildsCatchUpWithWritesMadeMeanwhile() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch written = new CountDownLatch(1);
+    try (Reloadable<String> data = new Reloadable<>("a", null)) {
+      CompletableFuture<String> rebuilt = data.rebuild(old -> {
+        started.countDown();
+        try {
+          written.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return old.toUpperCase();
+      }, (rebuiltVersion, latest) -> rebuiltVersion + latest.substring(1));
+      // Write while the rebuild is under way
+      started.await(10, TimeUnit.SECONDS);
+      data.update(old -> old + "b");
+      written.countDown();
+      assertEquals("Ab", rebuilt.get(10, TimeUnit.SECONDS));
+      assertEquals("Ab", data.get());
+    }
+  }
+
+  @Test
+  public void reloadsWhenAWatchedFileChanges(@TempDir Path directory) throws Exception {
+    Path file = Files.writeString(directory.resolve("data.txt"), "first");
+    try (Reloadable<String> data = new Reloadable<>(Files.readString(file), () -> Files.readString(file))) {
+      data.watch(file.toString());
+      // Changes to other files in the same directory don't count
+      Files.writeString(directory.resolve("other.txt"), "ignored");
+      Files.writeString(file, "second");
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (!data.get().equals("second") && System.currentTimeMillis() < deadline) {
+        Thread.sleep(Reloadable.QUIET_MILLIS / 4);
+      }
+      assertEquals("second", data.get());
+    }
+  }
+
+  @Test
+  public void doesntWatchClasspathResources() throws IOException {
+    try (Reloadable<String> data = new Reloadable<>("bundled", null)) {
+      // Nothing to watch, and nothing goes wrong
+      assertSame(data, data.watch(Main.TODO_DATA_FILE));
+      assertSame(data, data.watch("/no/such/file.json"));
+      assertTrue(data.reload().isCompletedExceptionally());
+    }
+  }
+}
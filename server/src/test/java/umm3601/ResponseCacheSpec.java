@@ -0,0 +1,139 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for `ResponseCache`: how queries become keys, and how entries are
+ * counted and evicted.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class ResponseCacheSpec {
+
+  private static ResponseCache.Response responseOf(int bytes) {
+    return new ResponseCache.Response(new byte[bytes], null);
+  }
+
+  @Test
+  public void keysIgnoreTheOrderOfParameters() {
+    Map<String, List<String>> first = new LinkedHashMap<>();
+    first.put("owner", List.of("Blanche"));
+    first.put("status", List.of("complete"));
+    Map<String, List<String>> second = new LinkedHashMap<>();
+    second.put("status", List.of("complete"));
+    second.put("owner", List.of("Blanche"));
+    assertEquals(ResponseCache.key(first), ResponseCache.key(second));
+    assertEquals("", ResponseCache.key(Map.of()));
+  }
+
+  @Test
+  public void keysDontConfuseDifferentQueries() {
+    // Without encoding, both of these would be "owner=a&b=c"
+    assertNotEquals(
+      ResponseCache.key(Map.of("owner", List.of("a&b=c"))),
+      ResponseCache.key(Map.of("owner", List.of("a"), "b", List.of("c"))));
+    assertNotEquals(
+      ResponseCache.key(Map.of("owner", Arrays.asList("a", "b"))),
+      ResponseCache.key(Map.of("owner", Arrays.asList("b", "a"))));
+  }
+
+  @Test
+  public void countsHitsAndMisses() {
+    ResponseCache cache = new ResponseCache(100);
+    ResponseCache.Response response = responseOf(10);
+    assertNull(cache.get("a"));
+    cache.put("a", response);
+    assertSame(response, cache.get("a"));
+    assertSame(response, cache.get("a"));
+    assertEquals(2, cache.hits());
+    assertEquals(1, cache.misses());
+
+    cache.clear();
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.bytes());
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedToStayUnderItsSize() {
+    ResponseCache cache = new ResponseCache(100);
+    cache.put("a", responseOf(40));
+    cache.put("b", responseOf(40));
+    // Using `a` makes `b` the least recently used
+    cache.get("a");
+    cache.put("c", responseOf(40));
+    assertNull(cache.get("b"));
+    assertEquals(40, cache.get("a").body().length);
+    assertEquals(40, cache.get("c").body().length);
+    assertEquals(80, cache.bytes());
+    assertEquals(1, cache.evictions());
+
+    // Replacing an entry only counts its new size
+    cache.put("a", responseOf(10));
+    assertEquals(50, cache.bytes());
+
+    // Anything bigger than the whole cache isn't kept at all
+    cache.put("d", responseOf(101));
+    assertNull(cache.get("d"));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void countsTheGzippedBytesToo() {
+    ResponseCache.Response small = responseOf(Gzip.MIN_BYTES - 1);
+    assertNull(small.gzipped());
+    assertEquals(Gzip.MIN_BYTES - 1, small.size());
+
+    ResponseCache.Response big = responseOf(Gzip.MIN_BYTES);
+    assertEquals(Gzip.MIN_BYTES + big.gzipped().length, big.size());
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    cache.put("a", big);
+    assertEquals(big.size(), cache.bytes());
+  }
+
+  @Test
+  public void keepsPinnedResponsesUntilCleared() {
+    ResponseCache cache = new ResponseCache(100);
+    ResponseCache.Response pinned = responseOf(40);
+    assertTrue(cache.pin("", pinned));
+    // Making room for others never evicts a pinned response
+    cache.put("a", responseOf(50));
+    cache.put("b", responseOf(50));
+    assertSame(pinned, cache.get(""));
+    assertEquals(1, cache.size());
+    assertEquals(90, cache.bytes());
+    assertEquals(1, cache.evictions());
+
+    cache.clear();
+    assertNull(cache.get(""));
+    assertEquals(0, cache.bytes());
+  }
+
+  @Test
+  public void pinnedResponsesCountAgainstTheSize() {
+    ResponseCache cache = new ResponseCache(100);
+    cache.put("a", responseOf(60));
+    // Pinning evicts others to make room
+    assertTrue(cache.pin("", responseOf(50)));
+    assertNull(cache.get("a"));
+    assertEquals(50, cache.bytes());
+    // But pinned responses can only take up half the cache between them
+    assertFalse(cache.pin("b", responseOf(1)));
+    assertNull(cache.get("b"));
+    // And nothing bigger than the room they leave is cached at all
+    cache.put("c", responseOf(51));
+    assertNull(cache.get("c"));
+    assertEquals(50, cache.bytes());
+  }
+}
@@ -1,8 +1,8 @@
 package umm3601.todo;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 //import static org.junit.jupiter.api.Assertions.assertArrayEquals;
-//import static org.junit.jupiter.api.Assertions.assertArrayEquals;
-// import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 //import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 // import static org.mockito.ArgumentMatchers.any;
@@ -121,4 +121,46 @@ public class AttributeSpecTests {
     "Body " + todos[i].body + " should be <= body " + todos[i + 1].body + " at position " + i);
     }
   }
+
+  @Test
+  public void canOrderFilteredTodos() {
+    // a small filtered set (one owner) and a large one (one status)
+    // take different paths through the sort order, so check both
+    String[][] filters = {{"owner", "Fry"}, {"status", "complete"}};
+    for (String[] filter : filters) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      queryParams.put(filter[0], Arrays.asList(new String[] {filter[1]}));
+      queryParams.put("orderBy", Arrays.asList(new String[] {"category"}));
+      Todo[] todos = db.listTodos(queryParams);
+      queryParams.remove("orderBy");
+      assertEquals(db.listTodos(queryParams).length, todos.length);
+      for (int i = 0; i < todos.length - 1; i++) {
+        assertTrue(todos[i].category.compareTo(todos[i + 1].category) <= 0,
+        "Category " + todos[i].category + " should be <= category " + todos[i + 1].category + " at position " + i);
+      }
+    }
+  }
+
+  @Test
+  public void orderingDoesNotChangeTheUnorderedTodos() {
+    Todo[] before = db.listTodos(new HashMap<>()).clone();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"body"}));
+    db.listTodos(queryParams);
+    // the unordered todos should come back in their original order
+    assertArrayEquals(before, db.listTodos(new HashMap<>()));
+  }
+
+  @Test
+  public void limitKeepsTheFirstOrderedTodos() {
+    // the limited query should be exactly the start of the full ordered one
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", Arrays.asList(new String[] {"incomplete"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"owner"}));
+    Todo[] ordered = db.listTodos(queryParams);
+    for (int limit : new int[] {0, 1, 10, ordered.length}) {
+      queryParams.put("limit", Arrays.asList(new String[] {Integer.toString(limit)}));
+      assertArrayEquals(Arrays.copyOf(ordered, limit), db.listTodos(queryParams), "limit " + limit);
+    }
+  }
 }
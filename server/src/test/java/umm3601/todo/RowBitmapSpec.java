@@ -0,0 +1,105 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for `RowBitmap`, checked against `java.util.BitSet`.
+ *
+ * The todo data file is far too small to ever fill a chunk densely
+ * enough to need a bitmap container, so these tests build their own
+ * (large) sets of rows.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class RowBitmapSpec {
+
+  // Every third row in [0, size), except for the second chunk, which is sparse
+  private static BitSet mixedDensity(int size, int step) {
+    BitSet rows = new BitSet(size);
+    for (int i = 0; i < size; i += step) {
+      if (i >>> 16 != 1 || i % (step * 1000) == 0) {
+        rows.set(i);
+      }
+    }
+    return rows;
+  }
+
+  @Test
+  public void emptyBitmapHasNothingInIt() {
+    assertEquals(0, RowBitmap.of(new int[0]).cardinality());
+    assertFalse(RowBitmap.EMPTY.contains(0));
+    assertFalse(RowBitmap.of(new int[] {1, 2}).contains(-1));
+    assertEquals(0, RowBitmap.of(new int[] {3}).and(RowBitmap.EMPTY).toArray().length);
+  }
+
+  @Test
+  public void holdsExactlyTheGivenRows() {
+    BitSet expected = mixedDensity(200_000, 3);
+    RowBitmap bitmap = RowBitmap.of(expected.stream().toArray());
+
+    assertEquals(expected.cardinality(), bitmap.cardinality());
+    assertArrayEquals(expected.stream().toArray(), bitmap.toArray());
+    for (int row = 0; row < 270_000; row += 7) {
+      assertEquals(expected.get(row), bitmap.contains(row), "row " + row);
+    }
+  }
+
+  @Test
+  public void intersectsEveryKindOfContainer() {
+    // Dense chunks in both, dense against sparse, and sparse against sparse
+    BitSet a = mixedDensity(300_000, 2);
+    BitSet b = mixedDensity(300_000, 3);
+    BitSet expected = (BitSet) a.clone();
+    expected.and(b);
+
+    RowBitmap both = RowBitmap.of(a.stream().toArray()).and(RowBitmap.of(b.stream().toArray()));
+
+    assertEquals(expected.cardinality(), both.cardinality());
+    assertArrayEquals(expected.stream().toArray(), both.toArray());
+  }
+
+  @Test
+  public void denseIntersectionCanBecomeSparse() {
+    // Two dense sets that barely overlap: the result should still be right
+    // after it is turned back into an array container.
+    BitSet evens = new BitSet();
+    BitSet odds = new BitSet();
+    for (int i = 0; i < 65_536; i++) {
+      (i % 2 == 0 ? evens : odds).set(i);
+    }
+    odds.set(100);
+    RowBitmap both = RowBitmap.of(evens.stream().toArray()).and(RowBitmap.of(odds.stream().toArray()));
+    assertArrayEquals(new int[] {100}, both.toArray());
+    assertTrue(both.contains(100));
+  }
+
+  @Test
+  public void matchesBitSetOnRandomSets() {
+    Random random = new Random(3601);
+    for (int trial = 0; trial < 20; trial++) {
+      BitSet a = new BitSet();
+      BitSet b = new BitSet();
+      double densityA = random.nextDouble() / 2;
+      double densityB = random.nextDouble() / 2;
+      for (int i = 0; i < 150_000; i++) {
+        if (random.nextDouble() < densityA) {
+          a.set(i);
+        }
+        if (random.nextDouble() < densityB) {
+          b.set(i);
+        }
+      }
+      BitSet expected = (BitSet) a.clone();
+      expected.and(b);
+      RowBitmap both = RowBitmap.of(a.stream().toArray()).and(RowBitmap.of(b.stream().toArray()));
+      assertArrayEquals(expected.stream().toArray(), both.toArray(), "trial " + trial);
+    }
+  }
+}
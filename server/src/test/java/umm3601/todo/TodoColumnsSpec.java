@@ -0,0 +1,112 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the column store behind `TodoDatabase`.
+ *
+ * The todo data file has no missing fields, duplicate IDs, or non-ASCII
+ * text, so these tests build their own small sets of todos.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class TodoColumnsSpec {
+
+  private static Todo todo(String id, String owner, Boolean status, String body, String category) {
+    Todo todo = new Todo();
+    todo._id = id;
+    todo.owner = owner;
+    todo.status = status;
+    todo.body = body;
+    todo.category = category;
+    return todo;
+  }
+
+  private static byte[] utf8(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static TodoColumns columnsOf(Todo... todos) {
+    TodoColumns.Builder builder = new TodoColumns.Builder();
+    for (Todo todo : todos) {
+      builder.add(todo);
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void givesBackEqualTodos() {
+    Todo[] todos = new Todo[200];
+    for (int i = 0; i < todos.length; i++) {
+      todos[i] = todo("id" + i, "owner" + (i % 7), i % 3 == 0, "body " + i, "category" + (i % 4));
+    }
+    TodoColumns columns = columnsOf(todos);
+
+    assertEquals(200, columns.size());
+    for (int i = 0; i < todos.length; i++) {
+      assertEquals(todos[i], columns.get(i));
+      assertEquals(todos[i].hashCode(), columns.get(i).hashCode());
+      assertEquals(i, columns.rowOf("id" + i));
+    }
+    assertEquals(-1, columns.rowOf("id200"));
+    assertEquals(-1, columns.rowOf(null));
+  }
+
+  @Test
+  public void keepsMissingFields() {
+    TodoColumns columns = columnsOf(todo(null, null, null, null, null), todo("b", "Fry", false, "", "x"));
+
+    Todo empty = columns.get(0);
+    assertNull(empty._id);
+    assertNull(empty.owner);
+    assertNull(empty.status);
+    assertNull(empty.body);
+    assertNull(empty.category);
+    assertFalse(columns.bodyContains(0, utf8("")));
+    assertTrue(columns.bodyContains(1, utf8("")));
+    assertEquals(Boolean.FALSE, columns.status(1));
+    assertNotEquals(columns.get(0), columns.get(1));
+    assertArrayEquals(new int[] {0, 1}, columns.statusOrder());
+    assertArrayEquals(new int[] {0, 1}, columns.ownerOrder());
+    assertArrayEquals(new int[] {0, 1}, columns.bodyOrder());
+  }
+
+  @Test
+  public void firstOfADuplicateIdWins() {
+    TodoColumns columns = columnsOf(todo("a", "Fry", true, "first", "x"), todo("a", "Fry", true, "second", "x"));
+    assertEquals(0, columns.rowOf("a"));
+    assertEquals("second", columns.get(1).body);
+  }
+
+  @Test
+  public void searchesNonAsciiBodies() {
+    TodoColumns columns = columnsOf(todo("a", "Zoë", true, "café crème 🍰", "x"));
+    assertEquals("café crème 🍰", columns.get(0).body);
+    assertEquals("Zoë", columns.owner(0));
+    assertTrue(columns.bodyContains(0, utf8("é cr")));
+    assertTrue(columns.bodyContains(0, utf8("🍰")));
+    assertFalse(columns.bodyContains(0, utf8("e cr")));
+    assertFalse(columns.bodyContains(0, utf8("café crème 🍰!")));
+  }
+
+  @Test
+  public void sortsStablyByEachColumn() {
+    TodoColumns columns = columnsOf(
+      todo("0", "b", true, "y", "x"),
+      todo("1", "a", false, "x", "y"),
+      todo("2", "b", false, "x", "x"),
+      todo("3", "a", true, "z", "x"));
+    assertArrayEquals(new int[] {1, 3, 0, 2}, columns.ownerOrder());
+    assertArrayEquals(new int[] {0, 2, 3, 1}, columns.categoryOrder());
+    assertArrayEquals(new int[] {1, 2, 0, 3}, columns.statusOrder());
+    assertArrayEquals(new int[] {1, 2, 0, 3}, columns.bodyOrder());
+  }
+}
@@ -9,39 +9,61 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 // import java.util.Arrays;
 // import java.util.HashMap;
 // import java.util.List;
 // import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.javalin.Javalin;
-//import io.javalin.http.BadRequestResponse;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
 //import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
+import io.javalin.http.InternalServerErrorResponse;
 import io.javalin.http.NotFoundResponse;
 //import io.javalin.http.NotFoundResponse;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletResponse;
+import umm3601.ETags;
+import umm3601.Gzip;
 import umm3601.Main;
+import umm3601.Reloadable;
+import umm3601.ResponseCache;
 //import umm3601.todo.TodoDatabase;
 
 @SuppressWarnings({"MagicNumber"})
 public class TodoControllerSpec {
   private TodoController todoController;
   private static TodoDatabase db;
+  private final ObjectMapper mapper = new ObjectMapper();
   @Mock
   private Context ctx;
   @Captor
@@ -70,6 +92,16 @@ public class TodoControllerSpec {
     });
   }
 
+  @Test
+  public void canLoadNewlineDelimitedTodos() throws IOException {
+    //todos.ndjson (in the test resources) has the same todos, one per line
+    TodoDatabase lineDb = new TodoDatabase("/todos.ndjson");
+    assertEquals(db.size(), lineDb.size());
+    assertEquals(db.filterTodosByOwner("Blanche").length, lineDb.filterTodosByOwner("Blanche").length);
+    assertEquals(db.getTodosByID("58895985a22c04e761776d54").body,
+      lineDb.getTodosByID("58895985a22c04e761776d54").body);
+  }
+
   @Test
   public void canGetAllTodos() throws IOException {
     todoController.getTodos(ctx);
@@ -122,6 +154,14 @@ public class TodoControllerSpec {
     verify(ctx).status(HttpStatus.OK); //makes sure status isn't bad
   }
   @Test
+  public void canFindEveryTodoById() throws IOException {
+    // every todo in the database should be reachable through the id index
+    for (Todo todo : db.listTodos(new HashMap<>())) {
+      assertEquals(todo, db.getTodosByID(todo._id));
+    }
+    assertEquals(null, db.getTodosByID("not a real id"));
+  }
+  @Test
   public void respondsAppropriatelyToRequestForNonexistentId() throws IOException {
     when(ctx.pathParam("id")).thenReturn(null); //gives di witch is null
     //pulls error message to use in assertEquals
@@ -139,10 +179,10 @@ public class TodoControllerSpec {
     queryParams.put("limit", Arrays.asList(new String[] {"!@"})); //maps parameters and gives an unparsable limit
     when(ctx.queryParamMap()).thenReturn(queryParams);
 
-    Throwable exception = Assertions.assertThrows(NumberFormatException.class, () -> { //pulls error for AssertEquals
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> { //pulls error for AssertEquals
       todoController.getTodos(ctx);
     });
-    assertEquals("For input string: \"!@\"", exception.getMessage()); //checks message is right
+    assertEquals("Specified limit '!@' can't be parsed to a non-negative integer", exception.getMessage());
   }
   @Test
   public void canGetTodosWithLimitAbove() throws IOException {
@@ -181,6 +221,695 @@ public class TodoControllerSpec {
   }
 
 
+  //STREAMING TESTS
+  @Test
+  public void streamsLargeResponses() throws IOException {
+    //with a threshold of 0 every non-empty response gets streamed
+    TodoController streamingController = new TodoController(db, 0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(out);
+
+    streamingController.getTodos(ctx);
+
+    verify(ctx, Mockito.never()).json(any());
+    verify(ctx).contentType("application/json");
+    Todo[] streamed = mapper.readValue(out.toByteArray(), Todo[].class);
+    assertEquals(db.size(), streamed.length);
+    for (int i = 0; i < streamed.length; i++) {
+      assertEquals(db.listTodos(new HashMap<>())[i]._id, streamed[i]._id);
+    }
+  }
+
+  //ETAG TESTS
+  @Test
+  public void answersRepeatRequestsWithNotModified() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Blanche"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    todoController.getTodos(ctx);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(ETags.ETAG_HEADER), etag.capture());
+
+    //sending the tag back gets a 304, without the todos ever being looked up
+    Context again = Mockito.mock(Context.class);
+    when(again.queryParamMap()).thenReturn(queryParams);
+    when(again.header(ETags.IF_NONE_MATCH_HEADER)).thenReturn(etag.getValue());
+    todoController.getTodos(again);
+    verify(again).status(HttpStatus.NOT_MODIFIED);
+    verify(again, Mockito.never()).json(any());
+
+    //a different query has a different tag, so it gets the todos
+    Context other = Mockito.mock(Context.class);
+    when(other.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry")));
+    when(other.header(ETags.IF_NONE_MATCH_HEADER)).thenReturn(etag.getValue());
+    todoController.getTodos(other);
+    verify(other, Mockito.never()).status(HttpStatus.NOT_MODIFIED);
+    verify(other).json(any());
+  }
+  @Test
+  public void tagsGzippedAndPlainResponsesWeakly() {
+    //the same todos go out gzipped or not, so the tag only says they mean the same
+    Set<String> tags = new HashSet<>();
+    for (String acceptEncoding : new String[] {"gzip", null}) {
+      Context request = Mockito.mock(Context.class);
+      when(request.queryParamMap()).thenReturn(Map.of("owner", List.of("Blanche")));
+      when(request.header(Gzip.ACCEPT_ENCODING_HEADER)).thenReturn(acceptEncoding);
+      todoController.getTodos(request);
+      ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+      verify(request).header(Mockito.eq(ETags.ETAG_HEADER), etag.capture());
+      assertTrue(etag.getValue().startsWith("W/\""), acceptEncoding);
+      tags.add(etag.getValue());
+    }
+    assertEquals(1, tags.size());
+  }
+  @Test
+  public void answersRepeatRequestsForATodoWithNotModified() {
+    String id = "58895985a22c04e761776d54";
+    when(ctx.pathParam("id")).thenReturn(id);
+    todoController.getTodo(ctx);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(ETags.ETAG_HEADER), etag.capture());
+
+    Context again = Mockito.mock(Context.class);
+    when(again.pathParam("id")).thenReturn(id);
+    when(again.header(ETags.IF_NONE_MATCH_HEADER)).thenReturn(etag.getValue());
+    todoController.getTodo(again);
+    verify(again).status(HttpStatus.NOT_MODIFIED);
+    verify(again, Mockito.never()).json(any());
+  }
+  @Test
+  public void versionOnlyDependsOnTheTodos() throws IOException {
+    assertEquals(db.version(), new TodoDatabase("/todos.ndjson").version());
+    assertEquals(db.version(), new TodoDatabase(Main.TODO_DATA_FILE).version());
+  }
+
+  //CACHE TESTS
+  @Test
+  public void cachesResponsesByQuery() throws IOException {
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    TodoController cachingController = new TodoController(db, TodoController.STREAMING_THRESHOLD, cache);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Blanche"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    cachingController.getTodos(ctx);
+    cachingController.getTodos(ctx);
+
+    //the second response is the same bytes, straight from the cache
+    ArgumentCaptor<byte[]> bodies = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodies.capture());
+    Assertions.assertSame(bodies.getAllValues().get(0), bodies.getAllValues().get(1));
+    verify(ctx).header(ResponseCache.CACHE_HEADER, "MISS");
+    verify(ctx).header(ResponseCache.CACHE_HEADER, "HIT");
+    verify(ctx, Mockito.times(2)).header(TodoController.NEXT_CURSOR_HEADER, db.nextCursor(queryParams,
+      db.listTodos(queryParams)));
+    verify(ctx, Mockito.never()).json(any());
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+
+    Todo[] cached = mapper
+      .readValue(bodies.getValue(), Todo[].class);
+    Assertions.assertArrayEquals(db.listTodos(queryParams), cached);
+  }
+
+  @Test
+  public void keepsTheWholeListGzipped() throws Exception {
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    //the whole list is kept even though it's more than enough todos to be streamed,
+    //and it's built in the background, before anyone asks for it
+    TodoController cachingController = new TodoController(db, 10, cache);
+    cachingController.wholeListKept().get(10, TimeUnit.SECONDS);
+    HttpServletResponse res = Mockito.mock(HttpServletResponse.class);
+    ServletOutputStream out = Mockito.mock(ServletOutputStream.class);
+    when(res.getOutputStream()).thenReturn(out);
+    when(ctx.res()).thenReturn(res);
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+    when(ctx.header(Gzip.ACCEPT_ENCODING_HEADER)).thenReturn("gzip, deflate, br");
+
+    cachingController.getTodos(ctx);
+    cachingController.getTodos(ctx);
+
+    //both times the gzipped bytes go straight out of the cache
+    ArgumentCaptor<byte[]> bodies = ArgumentCaptor.forClass(byte[].class);
+    verify(out, Mockito.times(2)).write(bodies.capture());
+    Assertions.assertSame(bodies.getAllValues().get(0), bodies.getAllValues().get(1));
+    verify(ctx, Mockito.times(2)).header(Gzip.CONTENT_ENCODING_HEADER, "gzip");
+    verify(ctx, Mockito.never()).result(any(byte[].class));
+    verify(ctx, Mockito.never()).outputStream();
+    assertEquals(2, cache.hits());
+    assertEquals(0, cache.misses());
+
+    byte[] body = new GZIPInputStream(new ByteArrayInputStream(bodies.getValue()))
+      .readAllBytes();
+    Assertions.assertArrayEquals(db.json().toBytes(db.listTodoRows(new HashMap<>())), body);
+  }
+
+  @Test
+  public void streamsTheWholeListIfThereIsNoRoomToKeepIt() throws Exception {
+    //the whole list is bigger than half of this
+    ResponseCache cache = new ResponseCache(Gzip.MIN_BYTES);
+    TodoController cachingController = new TodoController(db, 10, cache);
+    cachingController.wholeListKept().get(10, TimeUnit.SECONDS);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(out);
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+
+    cachingController.getTodos(ctx);
+
+    assertEquals(0, cache.bytes());
+    verify(ctx, Mockito.never()).result(any(byte[].class));
+    Assertions.assertArrayEquals(db.json().toBytes(db.listTodoRows(new HashMap<>())), out.toByteArray());
+  }
+
+  //RELOAD TESTS
+  @Test
+  public void reloadingSwapsInTheNewTodosAndEmptiesTheCache(@TempDir Path directory) throws Exception {
+    Path file = directory.resolve("todos.json");
+    Files.write(file, TodoControllerSpec.class.getResourceAsStream(Main.TODO_DATA_FILE).readAllBytes());
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    TodoDatabase original = new TodoDatabase(file.toString());
+    TodoController reloadingController = new TodoController(
+      new Reloadable<>(original, () -> new TodoDatabase(file.toString())), 10, cache);
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+    reloadingController.wholeListKept().get(10, TimeUnit.SECONDS);
+    reloadingController.getTodos(ctx);
+    assertEquals(1, cache.hits());
+
+    //replace the todos with just the first one
+    Files.writeString(file, "[" + mapper
+      .writeValueAsString(original.listTodos(new HashMap<>())[0]) + "]");
+    reloadingController.reloadTodos(ctx);
+    verify(ctx).status(HttpStatus.ACCEPTED);
+    TodoDatabase reloaded = reloadingController.reload().get(10, TimeUnit.SECONDS);
+    assertEquals(1, reloaded.size());
+
+    //the cached response to the old todos is gone, and the new one comes from the new todos
+    reloadingController.wholeListKept().get(10, TimeUnit.SECONDS);
+    reloadingController.getTodos(ctx);
+    assertEquals(2, cache.hits());
+    ArgumentCaptor<byte[]> bodies = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodies.capture());
+    Todo[] sent = mapper.readValue(bodies.getValue(), Todo[].class);
+    Assertions.assertArrayEquals(reloaded.listTodos(new HashMap<>()), sent);
+  }
+
+  @Test
+  public void todosThatCantBeReloadedAreNotReloaded(@TempDir Path directory) throws IOException {
+    //there's nothing to reload these from
+    Assertions.assertThrows(ConflictResponse.class, () -> todoController.reloadTodos(ctx));
+
+    //and reloading todos kept in a log would lose the writes that are only in the log
+    try (TodoLog log = TodoLog.open(directory.resolve("todos.log"))) {
+      TodoController loggingController = new TodoController(
+        new Reloadable<>(log.recover(Main.TODO_DATA_FILE), () -> new TodoDatabase(Main.TODO_DATA_FILE)),
+        TodoController.STREAMING_THRESHOLD, null, log);
+      Assertions.assertThrows(ConflictResponse.class, () -> loggingController.reloadTodos(ctx));
+    }
+    verify(ctx, Mockito.never()).status(HttpStatus.ACCEPTED);
+  }
+
+  //WRITE TESTS
+  @Test
+  public void canAddNewTodo() throws IOException {
+    Reloadable<TodoDatabase> data = new Reloadable<>(db, null);
+    TodoController writingController = new TodoController(data, TodoController.STREAMING_THRESHOLD, null);
+    when(ctx.body()).thenReturn("{\"owner\": \"Zelda\", \"category\": \"quests\", "
+      + "\"body\": \"Find the triforce\", \"status\": false}");
+
+    writingController.addNewTodo(ctx);
+    verify(ctx).status(HttpStatus.CREATED);
+    ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+    verify(ctx).json(response.capture());
+    String id = (String) ((Map<?, ?>) response.getValue()).get("id");
+    assertEquals(24, id.length());
+
+    //the new todo is in the current version, which the old one isn't affected by
+    TodoDatabase updated = data.get();
+    assertEquals(db.size() + 1, updated.size());
+    assertEquals(null, db.getTodosByID(id));
+    Todo added = updated.getTodosByID(id);
+    assertEquals("Zelda", added.owner);
+    assertEquals("quests", added.category);
+    assertEquals(false, added.status);
+    //and every query can find it, even though it isn't in the indexes
+    assertEquals(1, updated.filterTodosByOwner("zel*").length);
+    assertEquals(1, updated.filterTodosByCategory("quests").length);
+    assertEquals(db.filterTodosByStatus(false).length + 1, updated.filterTodosByStatus(false).length);
+    assertEquals(1, updated.filterTodosByBody("triforce").length);
+    assertEquals(added, updated.searchTodos(Map.of("q", List.of("triforce")))[0]);
+    Todo[] all = updated.listTodos(new HashMap<>());
+    assertEquals(added, all[all.length - 1]);
+    Assertions.assertNotEquals(db.version(), updated.version());
+  }
+
+  @Test
+  public void respondsAppropriatelyToBadNewTodos() {
+    String[] bodies = {
+      "{\"owner\": \"Zelda\", \"category\": \"quests\", \"body\": \"Find the triforce\"}",
+      "{\"owner\": \"Zelda\", \"category\": \"quests\", \"body\": \"Find it\", \"status\": \"yes\"}",
+      "{\"owner\": \" \", \"category\": \"quests\", \"body\": \"Find it\", \"status\": true}",
+      "{\"owner\": \"Zelda\", \"category\": \"quests\", \"body\": \"Find it\", \"status\": true, \"_id\": \"x\"}",
+      "[\"not\", \"an\", \"object\"]",
+      "not JSON at all",
+    };
+    String[] messages = {
+      "A new todo needs a 'status'",
+      "Specified status 'yes' must be true or false",
+      "Specified owner ' ' must be a non-empty string",
+      "Specified attribute '_id' is not one a todo can be given",
+      "The request body must be a JSON object of todo attributes",
+      "The request body must be a JSON object of todo attributes",
+    };
+    for (int i = 0; i < bodies.length; i++) {
+      when(ctx.body()).thenReturn(bodies[i]);
+      Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+        todoController.addNewTodo(ctx);
+      });
+      assertEquals(messages[i], exception.getMessage());
+    }
+  }
+
+  @Test
+  public void canUpdateTodo() throws IOException {
+    Reloadable<TodoDatabase> data = new Reloadable<>(db, null);
+    TodoController writingController = new TodoController(data, TodoController.STREAMING_THRESHOLD, null);
+    Todo before = db.filterTodosByStatus(true)[0];
+    when(ctx.pathParam("id")).thenReturn(before._id);
+    when(ctx.body()).thenReturn("{\"status\": false, \"owner\": \"Zelda\"}");
+
+    writingController.updateTodo(ctx);
+    Todo after = data.get().getTodosByID(before._id);
+    verify(ctx).json(after);
+    verify(ctx).status(HttpStatus.OK);
+    //only the given attributes change
+    assertEquals(false, after.status);
+    assertEquals("Zelda", after.owner);
+    assertEquals(before.body, after.body);
+    assertEquals(before.category, after.category);
+
+    //the todo stays where it was, but moves between groups
+    TodoDatabase updated = data.get();
+    assertEquals(db.size(), updated.size());
+    Assertions.assertArrayEquals(db.listTodoRows(new HashMap<>()), updated.listTodoRows(new HashMap<>()));
+    assertEquals(db.filterTodosByStatus(true).length - 1, updated.filterTodosByStatus(true).length);
+    assertTrue(Arrays.stream(updated.filterTodosByOwner(before.owner)).noneMatch(x -> x._id.equals(before._id)));
+    Map<String, List<String>> byOwner = new HashMap<>();
+    byOwner.put("orderBy", List.of("owner"));
+    Todo[] ordered = updated.listTodos(byOwner);
+    assertEquals(after, ordered[ordered.length - 1]);
+  }
+
+  @Test
+  public void respondsAppropriatelyToUpdatingNonexistentTodo() {
+    Reloadable<TodoDatabase> data = new Reloadable<>(db, null);
+    TodoController writingController = new TodoController(data, TodoController.STREAMING_THRESHOLD, null);
+    when(ctx.pathParam("id")).thenReturn("not a real id");
+    when(ctx.body()).thenReturn("{\"status\": false}");
+
+    Throwable exception = Assertions.assertThrows(NotFoundResponse.class, () -> {
+      writingController.updateTodo(ctx);
+    });
+    assertEquals("No todo with id not a real id was found.", exception.getMessage());
+    //nothing was published
+    Assertions.assertSame(db, data.get());
+  }
+
+  @Test
+  public void canDeleteTodo() throws IOException {
+    Reloadable<TodoDatabase> data = new Reloadable<>(db, null);
+    TodoController writingController = new TodoController(data, TodoController.STREAMING_THRESHOLD, null);
+    Todo doomed = db.listTodos(new HashMap<>())[5];
+    when(ctx.pathParam("id")).thenReturn(doomed._id);
+
+    writingController.deleteTodo(ctx);
+    verify(ctx).status(HttpStatus.OK);
+    TodoDatabase updated = data.get();
+    assertEquals(db.size() - 1, updated.size());
+    assertEquals(null, updated.getTodosByID(doomed._id));
+    assertEquals(db.filterTodosByOwner(doomed.owner).length - 1, updated.filterTodosByOwner(doomed.owner).length);
+    assertEquals(db.size() - 1, updated.summarizeTodos(new HashMap<>()).get(0).get("count"));
+
+    //it can't be deleted twice
+    Throwable exception = Assertions.assertThrows(NotFoundResponse.class, () -> {
+      writingController.deleteTodo(ctx);
+    });
+    assertEquals("No todo with id " + doomed._id + " was found.", exception.getMessage());
+  }
+
+  @Test
+  public void aWrittenDatabaseAnswersLikeACompactedOne() throws IOException {
+    //add, change, and delete todos, then check that every kind of query gets
+    //the same answer as it would from new indexes with those writes folded in
+    TodoDatabase written = db;
+    Todo[] all = db.listTodos(new HashMap<>());
+    String[] owners = {"Blanche", "Zelda", "barry", "Fry"};
+    for (int i = 0; i < 60; i++) {
+      Todo todo = new Todo();
+      todo._id = written.newId();
+      todo.owner = owners[i % owners.length];
+      todo.category = i % 3 == 0 ? "quests" : "homework";
+      todo.body = "Lorem ipsum " + i;
+      todo.status = i % 2 == 0;
+      written = written.withTodo(todo);
+      Todo changed = written.getTodosByID(all[i * 3]._id);
+      changed.status = !changed.status;
+      changed.owner = owners[(i + 1) % owners.length];
+      written = written.withTodo(changed).withoutTodo(all[i * 3 + 1]._id);
+    }
+    TodoDatabase compacted = written.compacted();
+    Assertions.assertFalse(compacted.hasChanges());
+    assertEquals(written.size(), compacted.size());
+
+    String[][] filters = {{}, {"owner", "b*"}, {"category", "quests"}, {"status", "complete"}, {"contains", "ipsum"},
+      {"owner", "zelda", "status", "incomplete"}};
+    for (String[] filter : filters) {
+      for (String orderBy : new String[] {null, "owner", "status", "body", "category"}) {
+        Map<String, List<String>> query = new HashMap<>();
+        for (int i = 0; i < filter.length; i += 2) {
+          query.put(filter[i], List.of(filter[i + 1]));
+        }
+        if (orderBy != null) {
+          query.put("orderBy", List.of(orderBy));
+        }
+        Assertions.assertArrayEquals(compacted.listTodos(query), written.listTodos(query));
+        Assertions.assertArrayEquals(mapper.writeValueAsBytes(written.listTodos(query)),
+          written.json().toBytes(written.listTodoRows(query)));
+
+        //paging through with cursors gets every todo, once
+        List<Todo> paged = new ArrayList<>();
+        Map<String, List<String>> page = new HashMap<>(query);
+        page.put("limit", List.of("25"));
+        String next = "";
+        while (next != null) {
+          Todo[] todos = written.listTodos(page);
+          paged.addAll(Arrays.asList(todos));
+          next = written.nextCursor(page, todos);
+          page.put("after", List.of(String.valueOf(next)));
+        }
+        assertEquals(Arrays.asList(compacted.listTodos(query)), paged);
+
+        query.remove("orderBy");
+        query.put("groupBy", List.of("owner,status"));
+        assertEquals(compacted.summarizeTodos(query), written.summarizeTodos(query));
+      }
+    }
+  }
+
+  @Test
+  public void compactionCatchesUpWithWritesMadeSinceItStarted() throws IOException {
+    TodoDatabase started = db;
+    for (int i = 0; i < 10; i++) {
+      Todo todo = db.listTodos(new HashMap<>())[i];
+      todo.body = "Changed before compacting";
+      started = started.withTodo(todo);
+    }
+    TodoDatabase compacted = started.compacted();
+
+    //meanwhile, more todos are written to
+    TodoDatabase latest = started;
+    for (int i = 5; i < 15; i++) {
+      Todo todo = db.listTodos(new HashMap<>())[i];
+      todo.body = "Changed while compacting";
+      latest = latest.withTodo(todo).withoutTodo(db.listTodos(new HashMap<>())[i + 100]._id);
+    }
+    Todo added = new Todo();
+    added._id = latest.newId();
+    added.owner = "Zelda";
+    latest = latest.withTodo(added);
+
+    TodoDatabase caughtUp = latest.rebasedOnto(compacted);
+    assertEquals(latest.sequence(), caughtUp.sequence());
+    Assertions.assertArrayEquals(latest.listTodos(new HashMap<>()), caughtUp.listTodos(new HashMap<>()));
+    assertEquals("Changed before compacting", caughtUp.listTodos(new HashMap<>())[0].body);
+    assertEquals("Changed while compacting", caughtUp.listTodos(new HashMap<>())[5].body);
+  }
+
+  @Test
+  public void compactsInTheBackgroundAfterEnoughWrites() throws Exception {
+    Reloadable<TodoDatabase> data = new Reloadable<>(db, null);
+    TodoController writingController = new TodoController(data, TodoController.STREAMING_THRESHOLD, null);
+    Todo todo = db.listTodos(new HashMap<>())[0];
+    when(ctx.pathParam("id")).thenReturn(todo._id);
+    for (int i = 0; i < TodoDatabase.COMPACTION_CHANGES; i++) {
+      when(ctx.body()).thenReturn("{\"body\": \"Version " + i + "\"}");
+      writingController.updateTodo(ctx);
+    }
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (data.get().hasChanges() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assertions.assertFalse(data.get().hasChanges());
+    assertEquals(db.size(), data.get().size());
+    assertEquals("Version " + (TodoDatabase.COMPACTION_CHANGES - 1), data.get().getTodosByID(todo._id).body);
+    data.close();
+  }
+
+  @Test
+  public void writesSucceedEvenIfCompactingFails(@TempDir Path directory) throws Exception {
+    Path file = directory.resolve("todos.log");
+    try (TodoLog log = TodoLog.open(file)) {
+      Reloadable<TodoDatabase> data = new Reloadable<>(log.recover(Main.TODO_DATA_FILE), null);
+      //the snapshot can't be written where a (non-empty) directory is in the way
+      Files.createDirectories(TodoLog.snapshotOf(file).resolve("in the way"));
+      TodoController loggingController = new TodoController(data, TodoController.STREAMING_THRESHOLD, null, log);
+      Todo todo = db.listTodos(new HashMap<>())[0];
+      when(ctx.pathParam("id")).thenReturn(todo._id);
+      //enough writes that the writers have to wait for the compactions, which all fail
+      int writes = TodoDatabase.COMPACTION_BACKLOG * TodoDatabase.COMPACTION_CHANGES + 1;
+      for (int i = 0; i < writes; i++) {
+        when(ctx.body()).thenReturn("{\"body\": \"Version " + i + "\"}");
+        loggingController.updateTodo(ctx);
+      }
+      assertTrue(data.get().isBehindOnCompaction());
+      assertEquals("Version " + (writes - 1), data.get().getTodosByID(todo._id).body);
+      data.close();
+    }
+  }
+
+  @Test
+  public void writesAreKeptInTheLog(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("todos.log");
+    TodoLog log = TodoLog.open(file);
+    Reloadable<TodoDatabase> data = new Reloadable<>(log.recover(Main.TODO_DATA_FILE), null);
+    TodoController loggingController = new TodoController(data, TodoController.STREAMING_THRESHOLD, null, log);
+    Todo doomed = db.listTodos(new HashMap<>())[3];
+    when(ctx.pathParam("id")).thenReturn(doomed._id);
+    loggingController.deleteTodo(ctx);
+    when(ctx.body()).thenReturn("{\"owner\": \"Zelda\", \"category\": \"quests\", "
+      + "\"body\": \"Find the triforce\", \"status\": false}");
+    loggingController.addNewTodo(ctx);
+    log.close();
+
+    //as if the server had been restarted
+    try (TodoLog reopened = TodoLog.open(file)) {
+      TodoDatabase recovered = reopened.recover(Main.TODO_DATA_FILE);
+      assertEquals(null, recovered.getTodosByID(doomed._id));
+      assertEquals(1, recovered.filterTodosByOwner("Zelda").length);
+      Assertions.assertArrayEquals(data.get().listTodos(new HashMap<>()), recovered.listTodos(new HashMap<>()));
+    }
+  }
+
+  @Test
+  public void aWriteThatCantBeSavedIsNeverSeen(@TempDir Path directory) throws IOException {
+    TodoLog log = TodoLog.open(directory.resolve("todos.log"));
+    Reloadable<TodoDatabase> data = new Reloadable<>(log.recover(Main.TODO_DATA_FILE), null);
+    TodoController loggingController = new TodoController(data, TodoController.STREAMING_THRESHOLD, null, log);
+    TodoDatabase before = data.get();
+    //nothing can be written to the log once it's closed
+    log.close();
+
+    when(ctx.body()).thenReturn("{\"owner\": \"Zelda\", \"category\": \"quests\", "
+      + "\"body\": \"Find the triforce\", \"status\": false}");
+    Assertions.assertThrows(InternalServerErrorResponse.class, () -> loggingController.addNewTodo(ctx));
+    assertEquals(before, data.get());
+    assertEquals(0, data.get().filterTodosByOwner("Zelda").length);
+
+    //and after that, writes are turned away before they're made
+    Todo doomed = before.listTodos(new HashMap<>())[3];
+    when(ctx.pathParam("id")).thenReturn(doomed._id);
+    Assertions.assertThrows(InternalServerErrorResponse.class, () -> loggingController.deleteTodo(ctx));
+    assertEquals(before, data.get());
+    assertEquals(doomed, data.get().getTodosByID(doomed._id));
+    verify(ctx, Mockito.never()).status(any());
+  }
+
+  //BATCH TESTS
+  @Test
+  public void canGetTodosInBatches() throws IOException {
+    Todo[] todos = db.listTodos(new HashMap<>());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(out);
+    when(ctx.body()).thenReturn("[\"" + todos[42]._id + "\", \"nothing\", \"" + todos[7]._id + "\", \""
+      + todos[42]._id + "\"]");
+
+    todoController.getTodosBatch(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).contentType("application/json");
+    List<Map<String, Object>> batch = mapper.readValue(out.toByteArray(),
+      new TypeReference<List<Map<String, Object>>>() { });
+    assertEquals(4, batch.size());
+    //found todos are just as `getTodo` would send them, in the order they were asked for
+    assertEquals(mapper.convertValue(todos[42], Map.class), batch.get(0));
+    assertEquals(Map.of("_id", "nothing", "missing", true), batch.get(1));
+    assertEquals(mapper.convertValue(todos[7], Map.class), batch.get(2));
+    assertEquals(batch.get(0), batch.get(3));
+  }
+
+  @Test
+  public void batchesSeeWrittenTodos() throws IOException {
+    Todo[] todos = db.listTodos(new HashMap<>());
+    Todo changed = todos[1];
+    changed.owner = "Zelda";
+    TodoDatabase written = db.withTodo(changed).withoutTodo(todos[2]._id);
+    TodoController writtenController = new TodoController(written);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(out);
+    when(ctx.body()).thenReturn("[\"" + todos[1]._id + "\", \"" + todos[2]._id + "\"]");
+
+    writtenController.getTodosBatch(ctx);
+
+    List<Map<String, Object>> batch = mapper.readValue(out.toByteArray(),
+      new TypeReference<List<Map<String, Object>>>() { });
+    assertEquals(mapper.convertValue(changed, Map.class), batch.get(0));
+    assertEquals(Map.of("_id", todos[2]._id, "missing", true), batch.get(1));
+  }
+
+  @Test
+  public void respondsAppropriatelyToBadBatches() {
+    String tooMany = "[" + "\"x\",".repeat(TodoController.MAX_BATCH_IDS) + "\"x\"]";
+    String[] bodies = {"{\"ids\": []}", "[\"a\", null]", "[[\"a\"]]", "ids", tooMany};
+    String[] messages = {
+      "The request body must be a JSON array of todo ids",
+      "The request body must be a JSON array of todo ids",
+      "The request body must be a JSON array of todo ids",
+      "The request body must be a JSON array of todo ids",
+      "A batch can have at most 1000 ids, not 1001",
+    };
+    for (int i = 0; i < bodies.length; i++) {
+      when(ctx.body()).thenReturn(bodies[i]);
+      Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+        todoController.getTodosBatch(ctx);
+      });
+      assertEquals(messages[i], exception.getMessage());
+    }
+    verify(ctx, Mockito.never()).outputStream();
+  }
+
+  //PAGING TESTS
+  @Test
+  public void canPageThroughTodosWithCursors() throws IOException {
+    String[] orderings = {null, "owner", "body"};
+    for (String orderBy : orderings) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+      if (orderBy != null) {
+        queryParams.put("orderBy", Arrays.asList(new String[] {orderBy}));
+      }
+      Todo[] everything = db.listTodos(queryParams);
+      //walk through the same query 7 at a time, following the cursors
+      queryParams.put("limit", Arrays.asList(new String[] {"7"}));
+      List<Todo> paged = new ArrayList<>();
+      String cursor = "";
+      while (cursor != null) {
+        Todo[] page = db.listTodos(queryParams);
+        paged.addAll(Arrays.asList(page));
+        cursor = db.nextCursor(queryParams, page);
+        queryParams.put("after", Arrays.asList(new String[] {cursor}));
+      }
+      assertEquals(Arrays.asList(everything), paged, "ordered by " + orderBy);
+    }
+  }
+  @Test
+  public void controllerSendsNextCursorHeader() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayCaptor.capture());
+    verify(ctx).header(TodoController.NEXT_CURSOR_HEADER, db.nextCursor(queryParams, todoArrayCaptor.getValue()));
+    //the next page starts right after the first one
+    queryParams.put("after", Arrays.asList(new String[] {db.nextCursor(queryParams, todoArrayCaptor.getValue())}));
+    assertEquals(db.listTodos(new HashMap<>())[5], db.listTodos(queryParams)[0]);
+  }
+  @Test
+  public void respondsAppropriatelyToBadCursors() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    Todo[] page = db.listTodos(queryParams);
+    //a cursor from the unordered todos can't be used when ordering by owner
+    queryParams.put("after", Arrays.asList(new String[] {db.nextCursor(queryParams, page)}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"owner"}));
+    Assertions.assertThrows(BadRequestResponse.class, () -> db.listTodos(queryParams));
+    queryParams.put("after", Arrays.asList(new String[] {"not a cursor!"}));
+    Assertions.assertThrows(BadRequestResponse.class, () -> db.listTodos(queryParams));
+  }
+  @Test
+  public void orderedCursorsKeepTheirPlaceAcrossWrites() throws IOException {
+    for (String orderBy : new String[] {"owner", "status", "body", "category"}) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      queryParams.put("orderBy", Arrays.asList(new String[] {orderBy}));
+      queryParams.put("limit", Arrays.asList(new String[] {"7"}));
+      Todo[] page = db.listTodos(queryParams);
+      queryParams.put("after", Arrays.asList(new String[] {db.nextCursor(queryParams, page)}));
+      //add todos that go before the cursor, and one that goes after it
+      TodoDatabase written = db;
+      for (String text : new String[] {"", "A", "Zzzz"}) {
+        Todo todo = new Todo();
+        todo._id = written.newId();
+        todo.owner = text;
+        todo.category = text;
+        todo.body = text;
+        todo.status = text.equals("Zzzz");
+        written = written.withTodo(todo);
+      }
+      //the next page picks up right after the last todo already seen
+      Map<String, List<String>> everything = new HashMap<>(Map.of("orderBy", List.of(orderBy)));
+      List<Todo> all = Arrays.asList(written.listTodos(everything));
+      int seen = all.indexOf(page[page.length - 1]);
+      assertEquals(all.subList(seen + 1, seen + 8), Arrays.asList(written.listTodos(queryParams)), orderBy);
+      //even if that todo has since been deleted
+      TodoDatabase deleted = written.withoutTodo(page[page.length - 1]._id);
+      assertEquals(all.subList(seen + 1, seen + 8), Arrays.asList(deleted.listTodos(queryParams)), orderBy);
+      //or filtered on
+      queryParams.put("category", Arrays.asList(new String[] {"homework"}));
+      Todo[] filtered = Arrays.stream(all.subList(seen + 1, all.size()).toArray(new Todo[0]))
+        .filter(todo -> "homework".equals(todo.category)).limit(7).toArray(Todo[]::new);
+      Assertions.assertArrayEquals(filtered, written.listTodos(queryParams), orderBy);
+    }
+  }
+  @Test
+  public void cursorsOnlyWorkUntilTheTodosAreCompacted() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    Todo[] page = db.listTodos(queryParams);
+    queryParams.put("after", Arrays.asList(new String[] {db.nextCursor(queryParams, page)}));
+    //writing keeps every row where it is, so the cursor still works
+    TodoDatabase written = db.withoutTodo(page[0]._id);
+    assertEquals(db.listTodos(queryParams)[0], written.listTodos(queryParams)[0]);
+    //but compacting moves the rows up, so the cursor would skip a todo
+    TodoDatabase compacted = written.compacted();
+    BadRequestResponse exception = Assertions.assertThrows(BadRequestResponse.class,
+      () -> compacted.listTodos(queryParams));
+    assertTrue(exception.getMessage().contains("out of date"));
+    //as long as the todos are the same, so are their rows
+    assertEquals(db.listTodos(queryParams)[0], db.compacted().listTodos(queryParams)[0]);
+  }
+  @Test
+  public void respondsAppropriatelyToNegativeLimit() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"-1"}));
+    Assertions.assertThrows(BadRequestResponse.class, () -> db.listTodos(queryParams));
+  }
+  @Test
+  public void respondsAppropriatelyToOutOfRangeLimit() throws IOException {
+    Assertions.assertThrows(BadRequestResponse.class, () -> db.searchTodos(Map.of("q", List.of("lorem"),
+      "limit", List.of("9999999999"))));
+  }
+
   //TESTS FOR OWNER
   @Test
   public void canFilterTodosByOwner() throws IOException {
@@ -206,6 +935,25 @@ public class TodoControllerSpec {
     assertEquals(todoArrayCaptor.getValue().length, 0); //check that length of todos returned are zero
   }
 
+  @Test
+  public void ownerIgnoresCaseAndTakesPrefixes() {
+    Todo[] allTodos = db.listTodos(new HashMap<>());
+    Todo[] blanches = db.filterTodosByOwner("Blanche");
+    Assertions.assertArrayEquals(blanches, db.filterTodosByOwner("bLANCHE"));
+    Assertions.assertArrayEquals(blanches, db.filterTodosByOwner("blan*"));
+    assertEquals(0, db.filterTodosByOwner("blan").length);
+    //a prefix can match several owners; they still come back in file order
+    Todo[] bs = Arrays.stream(allTodos).filter(x -> x.owner.toLowerCase().startsWith("b")).toArray(Todo[]::new);
+    Assertions.assertArrayEquals(bs, db.filterTodosByOwner("B*"));
+    Assertions.assertArrayEquals(allTodos, db.filterTodosByOwner("*"));
+
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"b*"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    Todo[] todos = db.listTodos(queryParams);
+    Assertions.assertArrayEquals(Arrays.stream(bs).filter(x -> x.status).toArray(Todo[]::new), todos);
+  }
+
   //Tests for Body
   @Test
   public void canGetTodosByBody() throws IOException {
@@ -232,6 +980,190 @@ public class TodoControllerSpec {
     assertEquals(todoArrayCaptor.getValue().length, 0);
   }
 
+  //INDEX TESTS
+  @Test
+  public void statusIndexCoversEveryTodo() {
+    // complete and incomplete todos together should be the whole database
+    assertEquals(db.size(), db.filterTodosByStatus(true).length + db.filterTodosByStatus(false).length);
+  }
+  @Test
+  public void ownerAndCategoryIndexesMatchAScan() {
+    Todo[] allTodos = db.listTodos(new HashMap<>());
+    long blanches = Arrays.stream(allTodos).filter(x -> x.owner.equals("Blanche")).count();
+    long homework = Arrays.stream(allTodos).filter(x -> x.category.equals("homework")).count();
+    assertEquals(blanches, db.filterTodosByOwner("Blanche").length);
+    assertEquals(homework, db.filterTodosByCategory("homework").length);
+    assertEquals(0, db.filterTodosByCategory("not a category").length);
+  }
+  @Test
+  public void bodyIndexMatchesAScan() {
+    Todo[] allTodos = db.listTodos(new HashMap<>());
+    // Short needles can't use the trigram index; longer ones can, and some
+    // have all their trigrams in a body but not in the right order
+    List<String> needles = new ArrayList<>(List.of("", "a", "qu", "sunt", "Lorem ipsum", "tempor.", "xyzzy"));
+    for (int i = 0; i < allTodos.length; i += 7) {
+      String body = allTodos[i].body;
+      needles.add(body.substring(i % body.length()));
+      needles.add(body.substring(0, Math.min(body.length(), 3 + i % 10)));
+      needles.add(body.substring(body.length() - 5) + " " + body.substring(0, 4));
+    }
+    for (String needle : needles) {
+      Todo[] scanned = Arrays.stream(allTodos).filter(x -> x.body.contains(needle)).toArray(Todo[]::new);
+      Assertions.assertArrayEquals(scanned, db.filterTodosByBody(needle), needle);
+    }
+  }
+
+  //SEARCH TESTS
+  @Test
+  public void canSearchTodos() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("q", Arrays.asList(new String[] {"Video GAMES"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"10"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.searchTodos(ctx);
+    verify(ctx).json(todoArrayCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    Todo[] results = todoArrayCaptor.getValue();
+    assertEquals(10, results.length);
+    //the words are both in the category, so those todos should come first
+    for (Todo todo : results) {
+      assertEquals("video games", todo.category);
+    }
+  }
+  @Test
+  public void searchOnlyFindsTodosWithTheWords() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("q", Arrays.asList(new String[] {"nostrud"}));
+    Todo[] results = db.searchTodos(queryParams);
+    long expected = Arrays.stream(db.listTodos(new HashMap<>()))
+      .filter(x -> x.body.toLowerCase().contains("nostrud")).count();
+    assertEquals(Math.min(expected, TodoDatabase.DEFAULT_SEARCH_LIMIT), results.length);
+    for (Todo todo : results) {
+      assertTrue(todo.body.toLowerCase().contains("nostrud"));
+    }
+    queryParams.put("q", Arrays.asList(new String[] {"xyzzy"}));
+    assertEquals(0, db.searchTodos(queryParams).length);
+  }
+  @Test
+  public void searchNeedsAQuery() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    Assertions.assertThrows(BadRequestResponse.class, () -> db.searchTodos(queryParams));
+    queryParams.put("q", Arrays.asList(new String[] {"  "}));
+    Assertions.assertThrows(BadRequestResponse.class, () -> db.searchTodos(queryParams));
+  }
+
+  //SUMMARY TESTS
+  @Test
+  public void canSummarizeTodosByOwnerAndCategory() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("groupBy", Arrays.asList(new String[] {"owner,category"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.summarizeTodos(ctx);
+    verify(ctx).json(db.summarizeTodos(queryParams));
+    verify(ctx).status(HttpStatus.OK);
+
+    //every group's count should match counting the listed todos by hand
+    List<Map<String, Object>> summary = db.summarizeTodos(queryParams);
+    queryParams.remove("groupBy");
+    Todo[] complete = db.listTodos(queryParams);
+    int total = 0;
+    String previous = "";
+    for (Map<String, Object> group : summary) {
+      long expected = Arrays.stream(complete)
+        .filter(x -> x.owner.equals(group.get("owner")) && x.category.equals(group.get("category"))).count();
+      assertEquals(expected, ((Integer) group.get("count")).longValue());
+      //groups come in order
+      String current = group.get("owner") + "/" + group.get("category");
+      assertTrue(previous.compareTo(current) < 0);
+      previous = current;
+      total += (Integer) group.get("count");
+    }
+    assertEquals(complete.length, total);
+  }
+
+  @Test
+  public void canSummarizeTodosByStatus() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    List<Map<String, Object>> everything = db.summarizeTodos(queryParams);
+    assertEquals(1, everything.size());
+    assertEquals(db.size(), everything.get(0).get("count"));
+
+    queryParams.put("groupBy", Arrays.asList(new String[] {"status"}));
+    queryParams.put("owner", Arrays.asList(new String[] {"blanche"}));
+    List<Map<String, Object>> byStatus = db.summarizeTodos(queryParams);
+    assertEquals(2, byStatus.size());
+    assertEquals(false, byStatus.get(0).get("status"));
+    assertEquals(true, byStatus.get(1).get("status"));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    queryParams.remove("groupBy");
+    assertEquals(db.listTodos(queryParams).length, byStatus.get(1).get("count"));
+  }
+
+  @Test
+  public void respondsAppropriatelyToBadGroupBy() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("groupBy", Arrays.asList(new String[] {"owner,body"}));
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> db.summarizeTodos(queryParams));
+    assertEquals("Specified groupBy 'body' is not a todo attribute to group by", exception.getMessage());
+  }
+
+  //COMBINED FILTER TESTS
+  @Test
+  public void canFilterTodosByOwnerAndCategory() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Blanche"}));
+    queryParams.put("category", Arrays.asList(new String[] {"groceries"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayCaptor.capture());
+    //both filters have to hold, not just the last one applied
+    assertEquals(8, todoArrayCaptor.getValue().length);
+    for (Todo todo : todoArrayCaptor.getValue()) {
+      assertEquals("Blanche", todo.owner);
+      assertEquals("groceries", todo.category);
+    }
+  }
+  @Test
+  public void canCombineEveryFilterWithOrderAndLimit() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Blanche"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    queryParams.put("contains", Arrays.asList(new String[] {"qui"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"body"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"3"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayCaptor.capture());
+    Todo[] todos = todoArrayCaptor.getValue();
+    assertEquals(3, todos.length);
+    for (int i = 0; i < todos.length; i++) {
+      assertEquals("Blanche", todos[i].owner);
+      assertEquals(true, todos[i].status);
+      assertTrue(todos[i].body.contains("qui"));
+      if (i > 0) {
+        assertTrue(todos[i - 1].body.compareTo(todos[i].body) <= 0);
+      }
+    }
+  }
+  @Test
+  public void respondsAppropriatelyToBadOrderBy() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"_id"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified orderBy '_id' is not a todo attribute", exception.getMessage());
+  }
+
   // CATEGORY TEST
   @Test
   public void canFilterTodosByCategory() throws IOException {
@@ -0,0 +1,221 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import umm3601.Main;
+import umm3601.Reloadable;
+
+/**
+ * Tests for `TodoLog`: writes survive a restart, however the server
+ * stopped, and checkpoints fold them into a new snapshot.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class TodoLogSpec {
+
+  // Make some writes through the log, the way `TodoController` does
+  private static TodoDatabase write(TodoLog log, TodoDatabase todos, int count) throws IOException {
+    Todo[] all = todos.listTodos(new HashMap<>());
+    for (int i = 0; i < count; i++) {
+      TodoDatabase next;
+      if (i % 3 == 0) {
+        Todo todo = new Todo();
+        todo._id = todos.newId();
+        todo.owner = "Zelda";
+        todo.category = "quests";
+        todo.body = "Quest " + i;
+        todo.status = false;
+        next = todos.withTodo(todo);
+      } else if (i % 3 == 1) {
+        Todo todo = all[i];
+        todo.status = !todo.status;
+        next = todos.withTodo(todo);
+      } else {
+        next = todos.withoutTodo(all[i]._id);
+      }
+      log.append(next.writesSince(todos));
+      todos = next;
+    }
+    log.sync(todos.sequence());
+    return todos;
+  }
+
+  @Test
+  public void writesSurviveARestart(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("todos.log");
+    TodoDatabase written;
+    try (TodoLog log = TodoLog.open(file)) {
+      TodoDatabase todos = log.recover(Main.TODO_DATA_FILE);
+      assertFalse(todos.hasChanges());
+      written = write(log, todos, 30);
+    }
+
+    try (TodoLog log = TodoLog.open(file)) {
+      TodoDatabase recovered = log.recover(Main.TODO_DATA_FILE);
+      assertEquals(written.sequence(), recovered.sequence());
+      assertArrayEquals(written.listTodos(new HashMap<>()), recovered.listTodos(new HashMap<>()));
+      // The next write carries on from where the log left off
+      TodoDatabase more = write(log, recovered, 1);
+      assertEquals(written.sequence() + 1, more.sequence());
+    }
+  }
+
+  @Test
+  public void writersShareSyncs(@TempDir Path directory) throws IOException {
+    try (TodoLog log = TodoLog.open(directory.resolve("todos.log"))) {
+      TodoDatabase todos = log.recover(Main.TODO_DATA_FILE);
+      // Writes appended while nobody was syncing all go to the disk together
+      Todo[] all = todos.listTodos(new HashMap<>());
+      TodoDatabase next = todos;
+      for (int i = 0; i < 10; i++) {
+        TodoDatabase before = next;
+        next = next.withoutTodo(all[i]._id);
+        log.append(next.writesSince(before));
+      }
+      log.sync(next.sequence());
+      assertEquals(1, log.syncs());
+      // Anything already synced doesn't need another
+      log.sync(next.sequence() - 5);
+      assertEquals(1, log.syncs());
+    }
+  }
+
+  @Test
+  public void concurrentWritesAreAllKept(@TempDir Path directory) throws Exception {
+    Path file = directory.resolve("todos.log");
+    Reloadable<TodoDatabase> data;
+    try (TodoLog log = TodoLog.open(file)) {
+      data = new Reloadable<>(log.recover(Main.TODO_DATA_FILE), null);
+      List<Thread> writers = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        Thread writer = new Thread(() -> {
+          for (int j = 0; j < 50; j++) {
+            Todo todo = new Todo();
+            todo.owner = Thread.currentThread().getName();
+            TodoDatabase updated = data.update(todos -> {
+              todo._id = todos.newId();
+              TodoDatabase next = todos.withTodo(todo);
+              log.append(next.writesSince(todos));
+              return next;
+            });
+            try {
+              log.sync(updated.sequence());
+            } catch (IOException e) {
+              throw new IllegalStateException(e);
+            }
+          }
+        });
+        writer.start();
+        writers.add(writer);
+      }
+      for (Thread writer : writers) {
+        writer.join();
+      }
+    }
+
+    try (TodoLog log = TodoLog.open(file)) {
+      TodoDatabase recovered = log.recover(Main.TODO_DATA_FILE);
+      assertEquals(data.get().size(), recovered.size());
+      assertArrayEquals(data.get().listTodos(new HashMap<>()), recovered.listTodos(new HashMap<>()));
+    }
+  }
+
+  @Test
+  public void dropsAPartlyWrittenRecord(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("todos.log");
+    TodoDatabase written;
+    try (TodoLog log = TodoLog.open(file)) {
+      written = write(log, log.recover(Main.TODO_DATA_FILE), 10);
+    }
+    byte[] whole = Files.readAllBytes(file);
+    try (TodoLog log = TodoLog.open(file)) {
+      write(log, log.recover(Main.TODO_DATA_FILE), 1);
+    }
+    byte[] next = Files.readAllBytes(file);
+
+    // The server stopped part way through appending the last record
+    for (int cut = whole.length + 1; cut < next.length; cut += 7) {
+      Files.write(file, Arrays.copyOf(next, cut));
+      try (TodoLog log = TodoLog.open(file)) {
+        TodoDatabase recovered = log.recover(Main.TODO_DATA_FILE);
+        assertArrayEquals(written.listTodos(new HashMap<>()), recovered.listTodos(new HashMap<>()));
+      }
+      // and the log has been cut back to the last whole record, ready for more
+      assertArrayEquals(whole, Files.readAllBytes(file));
+    }
+
+    // A record that's all there, but has been corrupted, is dropped too
+    next[next.length - 3] ^= 1;
+    Files.write(file, next);
+    try (TodoLog log = TodoLog.open(file)) {
+      assertEquals(written.sequence(), log.recover(Main.TODO_DATA_FILE).sequence());
+    }
+  }
+
+  @Test
+  public void rejectsFilesThatAreNotLogs(@TempDir Path directory) throws IOException {
+    Path notALog = Files.writeString(directory.resolve("todos.json"), "[]");
+    assertThrows(IOException.class, () -> TodoLog.open(notALog));
+  }
+
+  @Test
+  public void checkpointsFoldTheLogIntoASnapshot(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("todos.log");
+    TodoDatabase latest;
+    long sizeBefore;
+    try (TodoLog log = TodoLog.open(file)) {
+      TodoDatabase todos = write(log, log.recover(Main.TODO_DATA_FILE), 30);
+      sizeBefore = Files.size(file);
+      TodoDatabase compacted = todos.compacted();
+      // Writes made while the compaction was going on stay in the log
+      latest = write(log, todos, 5);
+      log.checkpoint(compacted);
+      assertEquals(compacted.sequence(), new TodoDatabase(TodoLog.snapshotOf(file).toString()).sequence());
+      assertTrue(Files.size(file) < sizeBefore);
+      // and so do writes after it
+      latest = write(log, latest.rebasedOnto(compacted), 5);
+    }
+
+    try (TodoLog log = TodoLog.open(file)) {
+      // The data file isn't needed any more
+      TodoDatabase recovered = log.recover("/no/such/file.json");
+      assertEquals(latest.sequence(), recovered.sequence());
+      assertArrayEquals(latest.listTodos(new HashMap<>()), recovered.listTodos(new HashMap<>()));
+    }
+  }
+
+  @Test
+  public void replaysOnlyWhatTheSnapshotHasnt(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("todos.log");
+    TodoDatabase todos;
+    byte[] beforeCheckpoint;
+    try (TodoLog log = TodoLog.open(file)) {
+      todos = write(log, log.recover(Main.TODO_DATA_FILE), 20);
+      beforeCheckpoint = Files.readAllBytes(file);
+      log.checkpoint(todos.compacted());
+    }
+    // As if the server stopped after writing the snapshot, but before
+    // dropping the writes in it from the log
+    Files.write(file, beforeCheckpoint, StandardOpenOption.TRUNCATE_EXISTING);
+    try (TodoLog log = TodoLog.open(file)) {
+      TodoDatabase recovered = log.recover(Main.TODO_DATA_FILE);
+      assertFalse(recovered.hasChanges());
+      assertArrayEquals(todos.listTodos(new HashMap<>()), recovered.listTodos(new HashMap<>()));
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import umm3601.Main;
+
+/**
+ * Tests that a `TodoDatabase` opened from a snapshot behaves exactly like
+ * the one the snapshot was written from.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class TodoSnapshotSpec {
+
+  @TempDir
+  static Path directory;
+
+  private static TodoDatabase db;
+  private static Path snapshotFile;
+  private static TodoDatabase fromSnapshot;
+
+  @BeforeAll
+  public static void writeSnapshot() throws IOException {
+    db = new TodoDatabase(Main.TODO_DATA_FILE);
+    snapshotFile = directory.resolve("todos" + TodoSnapshot.EXTENSION);
+    db.writeSnapshot(snapshotFile);
+    fromSnapshot = new TodoDatabase(snapshotFile.toString());
+  }
+
+  @Test
+  public void hasEveryTodo() {
+    assertEquals(db.size(), fromSnapshot.size());
+    for (Todo todo : db.listTodos(new HashMap<>())) {
+      assertEquals(todo, fromSnapshot.getTodosByID(todo._id));
+    }
+    assertNull(fromSnapshot.getTodosByID("not a real id"));
+  }
+
+  @Test
+  public void answersQueriesTheSameWay() {
+    List<Map<String, List<String>>> queries = List.of(
+      Map.of("owner", List.of("Blanche")),
+      Map.of("category", List.of("homework"), "status", List.of("complete")),
+      Map.of("contains", List.of("sunt"), "orderBy", List.of("owner")),
+      Map.of("orderBy", List.of("body"), "limit", List.of("7")),
+      Map.of("status", List.of("incomplete"), "orderBy", List.of("category"), "limit", List.of("20")));
+    for (Map<String, List<String>> query : queries) {
+      assertArrayEquals(db.listTodos(query), fromSnapshot.listTodos(query), query.toString());
+    }
+  }
+
+  @Test
+  public void searchesAndCountsTheSameWay() {
+    //these use the indexes a snapshot only builds when they're first needed
+    assertEquals(db.version(), fromSnapshot.version());
+    Map<String, List<String>> search = Map.of("q", List.of("sunt esse"), "limit", List.of("10"));
+    assertArrayEquals(db.searchTodos(search), fromSnapshot.searchTodos(search));
+    Map<String, List<String>> summary = Map.of("groupBy", List.of("owner,status"), "contains", List.of("ipsum"));
+    assertEquals(db.summarizeTodos(summary), fromSnapshot.summarizeTodos(summary));
+    //and so do the versions written to after opening it
+    Todo todo = fromSnapshot.getTodosByID(db.listTodos(new HashMap<>())[0]._id);
+    todo.body = "sunt sunt sunt esse";
+    TodoDatabase written = fromSnapshot.withTodo(todo);
+    assertEquals(todo, written.searchTodos(search)[0]);
+    assertEquals(db.withTodo(todo).summarizeTodos(summary), written.summarizeTodos(summary));
+  }
+
+  @Test
+  public void rejectsFilesThatAreNotSnapshots() throws IOException {
+    Path notASnapshot = Files.writeString(directory.resolve("json" + TodoSnapshot.EXTENSION), "[]");
+    assertThrows(IOException.class, () -> new TodoDatabase(notASnapshot.toString()));
+
+    byte[] whole = Files.readAllBytes(snapshotFile);
+    Path truncated = Files.write(directory.resolve("half" + TodoSnapshot.EXTENSION),
+      Arrays.copyOf(whole, whole.length / 2));
+    assertThrows(IOException.class, () -> new TodoDatabase(truncated.toString()));
+  }
+}
@@ -5,27 +5,40 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 // import io.javalin.http.NotFoundResponse;
+import umm3601.ETags;
 import umm3601.Main;
+import umm3601.ResponseCache;
 
 /**
  * Tests the logic of the UserController
@@ -48,6 +61,7 @@ public class UserControllerSpec {
   // An instance of our database "layer" that is prepared in
   // `setupEach()`, and then used in the tests below.
   private static UserDatabase db;
+  private final ObjectMapper mapper = new ObjectMapper();
 
   // A "fake" version of Javalin's `Context` object that we can
   // use to test with.
@@ -190,6 +204,62 @@ public class UserControllerSpec {
     assertEquals("Specified age '" + "abc" + "' can't be parsed to an integer", exception.getMessage());
   }
 
+  /**
+   * Confirm that we can get all the users with ages from 25 to 33,
+   * in their original order.
+   */
+  @Test
+  public void canGetUsersInAnAgeRange() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("minAge", Arrays.asList(new String[] {"25"}));
+    queryParams.put("maxAge", Arrays.asList(new String[] {"33"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayCaptor.capture());
+    User[] allUsers = db.listUsers(new HashMap<>());
+    User[] scanned = Arrays.stream(allUsers).filter(x -> x.age >= 25 && x.age <= 33).toArray(User[]::new);
+    assertEquals(6, scanned.length);
+    Assertions.assertArrayEquals(scanned, userArrayCaptor.getValue());
+  }
+
+  /**
+   * Confirm that either end of an age range can be left off, that an
+   * empty range finds nobody, and that the index agrees with scanning an
+   * already filtered array.
+   */
+  @Test
+  public void ageRangesMatchAScan() {
+    User[] allUsers = db.listUsers(new HashMap<>());
+    int[][] ranges = {{38, Integer.MAX_VALUE}, {Integer.MIN_VALUE, 25}, {27, 27}, {30, 20}, {41, 50},
+      {Integer.MIN_VALUE, Integer.MAX_VALUE}};
+    for (int[] range : ranges) {
+      User[] scanned = Arrays.stream(allUsers)
+        .filter(x -> x.age >= range[0] && x.age <= range[1])
+        .toArray(User[]::new);
+      Assertions.assertArrayEquals(scanned, db.filterUsersByAgeRange(allUsers, range[0], range[1]));
+      Assertions.assertArrayEquals(scanned, db.filterUsersByAgeRange(allUsers.clone(), range[0], range[1]));
+    }
+
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("maxAge", Arrays.asList(new String[] {"25"}));
+    assertEquals(3, db.listUsers(queryParams).length);
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    assertEquals(2, db.listUsers(queryParams).length);
+  }
+
+  /**
+   * Confirm that an age range that isn't made of numbers is a bad request.
+   */
+  @Test
+  public void respondsAppropriatelyToIllegalAgeRange() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("minAge", Arrays.asList(new String[] {"twenty"}));
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> db.listUsers(queryParams));
+    assertEquals("Specified minAge 'twenty' can't be parsed to an integer", exception.getMessage());
+  }
+
   /**
    * Confirm that we can get all the users with company OHMNET.
    *
@@ -256,6 +326,305 @@ public class UserControllerSpec {
     verify(ctx).status(HttpStatus.OK);
   }
 
+  /**
+   * Confirm that every user in the "database" can be found through
+   * the ID index, and that unknown IDs come back as `null`.
+   */
+  @Test
+  public void canFindEveryUserById() {
+    for (User user : db.listUsers(new HashMap<>())) {
+      assertEquals(user, db.getUser(user._id));
+    }
+    assertEquals(null, db.getUser("not a real id"));
+  }
+
+  /**
+   * Confirm that the age and company indexes agree with scanning
+   * the users directly, both for the whole "database" and for an
+   * already filtered array.
+   */
+  @Test
+  public void ageAndCompanyIndexesMatchAScan() {
+    User[] allUsers = db.listUsers(new HashMap<>());
+    User[] scanned = Arrays.stream(allUsers).filter(x -> x.age == 25).toArray(User[]::new);
+    assertEquals(scanned.length, db.filterUsersByAge(allUsers, 25).length);
+    assertEquals(0, db.filterUsersByAge(allUsers, 1000).length);
+    assertEquals(1, db.filterUsersByCompany(scanned, "OHMNET").length);
+    assertEquals(0, db.filterUsersByCompany(allUsers, "Not A Company").length);
+  }
+
+  /**
+   * Confirm that changing the array a filter returns doesn't change what
+   * the same filter returns next time.
+   */
+  @Test
+  public void indexedFiltersReturnCopies() {
+    User[] allUsers = db.listUsers(new HashMap<>());
+    User[] byAge = db.filterUsersByAge(allUsers, 25);
+    User[] byCompany = db.filterUsersByCompany(allUsers, "OHMNET");
+    User[] expectedByAge = byAge.clone();
+    User[] expectedByCompany = byCompany.clone();
+    Arrays.fill(byAge, null);
+    Arrays.fill(byCompany, null);
+    Assertions.assertArrayEquals(expectedByAge, db.filterUsersByAge(allUsers, 25));
+    Assertions.assertArrayEquals(expectedByCompany, db.filterUsersByCompany(allUsers, "OHMNET"));
+  }
+
+  /**
+   * Confirm that `company` ignores case, and that a trailing `*` matches
+   * every company with that prefix, keeping the users in their original
+   * order.
+   */
+  @Test
+  public void companyIgnoresCaseAndTakesPrefixes() {
+    User[] allUsers = db.listUsers(new HashMap<>());
+    User[] ohmnet = db.filterUsersByCompany(allUsers, "OHMNET");
+    assertEquals(2, ohmnet.length);
+    Assertions.assertArrayEquals(ohmnet, db.filterUsersByCompany(allUsers, "ohmNet"));
+    Assertions.assertArrayEquals(ohmnet, db.filterUsersByCompany(allUsers, "ohm*"));
+    Assertions.assertArrayEquals(ohmnet, db.filterUsersByCompany(Arrays.copyOf(allUsers, allUsers.length), "Ohm*"));
+    Assertions.assertArrayEquals(allUsers, db.filterUsersByCompany(allUsers, "*"));
+    assertEquals(0, db.filterUsersByCompany(allUsers, "ohm").length);
+
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"ohmnet"}));
+    queryParams.put("age", Arrays.asList(new String[] {"25"}));
+    assertEquals(1, db.listUsers(queryParams).length);
+  }
+
+  /**
+   * Confirm that following the `X-Next-Cursor` header one page at a
+   * time gets us every user, in order, for both filtered and unfiltered
+   * requests.
+   */
+  @Test
+  public void canPageThroughUsersWithCursors() {
+    String[] companies = {null, "OHMNET"};
+    for (String company : companies) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      if (company != null) {
+        queryParams.put("company", Arrays.asList(new String[] {company}));
+      }
+      User[] everything = db.listUsers(queryParams);
+      queryParams.put("limit", Arrays.asList(new String[] {"1"}));
+      List<User> paged = new ArrayList<>();
+      String cursor = "";
+      while (cursor != null) {
+        when(ctx.queryParamMap()).thenReturn(queryParams);
+        userController.getUsers(ctx);
+        verify(ctx, Mockito.atLeastOnce()).json(userArrayCaptor.capture());
+        User[] page = userArrayCaptor.getValue();
+        paged.addAll(Arrays.asList(page));
+        cursor = db.nextCursor(queryParams, page);
+        queryParams.put("after", Arrays.asList(new String[] {cursor}));
+      }
+      assertEquals(Arrays.asList(everything), paged);
+    }
+  }
+
+  /**
+   * Confirm that paging still gets every user exactly once when two of
+   * them have the same `_id`.
+   *
+   * @throws IOException if the data file can't be written or read
+   */
+  @Test
+  public void canPageThroughUsersWithDuplicateIds(@TempDir Path directory) throws IOException {
+    Path file = Files.writeString(directory.resolve("users.json"), "["
+      + "{\"_id\": \"a\", \"name\": \"Ann\", \"age\": 30, \"company\": \"OHMNET\"},"
+      + "{\"_id\": \"b\", \"name\": \"Bob\", \"age\": 30, \"company\": \"NIQUENT\"},"
+      + "{\"_id\": \"a\", \"name\": \"Cy\", \"age\": 30, \"company\": \"OHMNET\"},"
+      + "{\"_id\": \"c\", \"name\": \"Di\", \"age\": 30, \"company\": \"OHMNET\"}]");
+    UserDatabase duplicates = new UserDatabase(file.toString());
+    String[] companies = {null, "OHMNET", "ohm*"};
+    for (String company : companies) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      if (company != null) {
+        queryParams.put("company", Arrays.asList(new String[] {company}));
+      }
+      User[] everything = duplicates.listUsers(queryParams);
+      queryParams.put("limit", Arrays.asList(new String[] {"1"}));
+      List<User> paged = new ArrayList<>();
+      String cursor = "";
+      // A cursor that repeats users would otherwise never reach the end
+      while (cursor != null && paged.size() <= everything.length) {
+        User[] page = duplicates.listUsers(queryParams);
+        paged.addAll(Arrays.asList(page));
+        cursor = duplicates.nextCursor(queryParams, page);
+        queryParams.put("after", Arrays.asList(new String[] {cursor}));
+      }
+      assertEquals(Arrays.asList(everything), paged);
+    }
+    // A cursor from different users can't be used to page through these
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"1"}));
+    queryParams.put("after", Arrays.asList(new String[] {db.nextCursor(queryParams, db.listUsers(queryParams))}));
+    Assertions.assertThrows(BadRequestResponse.class, () -> duplicates.listUsers(queryParams));
+  }
+
+  /**
+   * Confirm that a controller that streams its responses sends the
+   * same users that `ctx.json()` would have.
+   *
+   * @throws IOException if the streamed response can't be parsed
+   */
+  @Test
+  public void streamsLargeResponses() throws IOException {
+    UserController streamingController = new UserController(db, 0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(out);
+
+    streamingController.getUsers(ctx);
+
+    verify(ctx, Mockito.never()).json(any());
+    User[] streamed = mapper.readValue(out.toByteArray(), User[].class);
+    assertEquals(db.size(), streamed.length);
+    assertEquals(db.listUsers(new HashMap<>())[0]._id, streamed[0]._id);
+  }
+
+  /**
+   * Confirm that sending back the `ETag` of a response gets a 304
+   * (Not Modified) without the users being looked up again, as long
+   * as the query is the same.
+   */
+  @Test
+  public void answersRepeatRequestsWithNotModified() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    userController.getUsers(ctx);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(ETags.ETAG_HEADER), etag.capture());
+
+    Context again = Mockito.mock(Context.class);
+    when(again.queryParamMap()).thenReturn(queryParams);
+    when(again.header(ETags.IF_NONE_MATCH_HEADER)).thenReturn(etag.getValue());
+    userController.getUsers(again);
+    verify(again).status(HttpStatus.NOT_MODIFIED);
+    verify(again, Mockito.never()).json(any());
+
+    Context other = Mockito.mock(Context.class);
+    when(other.queryParamMap()).thenReturn(new HashMap<>());
+    when(other.header(ETags.IF_NONE_MATCH_HEADER)).thenReturn(etag.getValue());
+    userController.getUsers(other);
+    verify(other).json(any());
+  }
+
+  /**
+   * Confirm that a controller with a cache answers a repeated query
+   * (even with its parameters in a different order) from the cache,
+   * with the same bytes as the first time.
+   *
+   * @throws IOException if a cached response can't be parsed
+   */
+  @Test
+  public void cachesResponsesByQuery() throws IOException {
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    UserController cachingController = new UserController(db, UserController.STREAMING_THRESHOLD, cache);
+    Map<String, List<String>> queryParams = new LinkedHashMap<>();
+    queryParams.put("age", Arrays.asList(new String[] {"25"}));
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    Map<String, List<String>> reordered = new LinkedHashMap<>();
+    reordered.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    reordered.put("age", Arrays.asList(new String[] {"25"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams, reordered);
+
+    cachingController.getUsers(ctx);
+    cachingController.getUsers(ctx);
+
+    ArgumentCaptor<byte[]> bodies = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodies.capture());
+    Assertions.assertSame(bodies.getAllValues().get(0), bodies.getAllValues().get(1));
+    verify(ctx).header(ResponseCache.CACHE_HEADER, "HIT");
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+    User[] cached = mapper.readValue(bodies.getValue(), User[].class);
+    User[] expected = db.listUsers(queryParams);
+    assertEquals(expected.length, cached.length);
+    for (int i = 0; i < cached.length; i++) {
+      assertEquals(expected[i]._id, cached[i]._id);
+    }
+  }
+
+  /**
+   * Confirm that the whole unfiltered list is built in the background,
+   * before anyone asks for it, and kept in the cache.
+   *
+   * @throws Exception if it takes too long to build
+   */
+  @Test
+  public void keepsTheWholeListReadyInTheCache() throws Exception {
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    UserController cachingController = new UserController(db, 0, cache);
+    cachingController.wholeListKept().get(10, TimeUnit.SECONDS);
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+
+    cachingController.getUsers(ctx);
+
+    ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(body.capture());
+    verify(ctx).header(ResponseCache.CACHE_HEADER, "HIT");
+    verify(ctx, Mockito.never()).outputStream();
+    assertEquals(0, cache.misses());
+    User[] users = db.listUsers(new HashMap<>());
+    assertEquals(new String(db.json().toBytes(db.rowsOf(users)), StandardCharsets.UTF_8),
+      new String(body.getValue(), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Confirm that a limit that isn't a non-negative integer is a
+   * 400 Bad Request.
+   */
+  @Test
+  public void respondsAppropriatelyToIllegalLimit() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"-3"}));
+    Assertions.assertThrows(BadRequestResponse.class, () -> db.listUsers(queryParams));
+    queryParams.put("limit", Arrays.asList(new String[] {"many"}));
+    Assertions.assertThrows(BadRequestResponse.class, () -> db.listUsers(queryParams));
+  }
+
+  /**
+   * Confirm that a batch request gets every user asked for, in the order
+   * they were asked for, with a marker for each one that doesn't exist.
+   *
+   * @throws IOException if the response can't be parsed
+   */
+  @Test
+  public void canGetUsersInBatches() throws IOException {
+    User[] users = db.listUsers(new HashMap<>());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(out);
+    when(ctx.body()).thenReturn("[\"" + users[3]._id + "\", \"nobody\", \"" + users[0]._id + "\", \""
+      + users[3]._id + "\"]");
+
+    userController.getUsersBatch(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).contentType("application/json");
+    List<Map<String, Object>> batch = mapper.readValue(out.toByteArray(),
+      new TypeReference<List<Map<String, Object>>>() { });
+    assertEquals(4, batch.size());
+    assertEquals(users[3].name, batch.get(0).get("name"));
+    assertEquals(Map.of("_id", "nobody", "missing", true), batch.get(1));
+    assertEquals(users[0].name, batch.get(2).get("name"));
+    assertEquals(users[3]._id, batch.get(3).get("_id"));
+  }
+
+  /**
+   * Confirm that a batch request whose body isn't a JSON array of IDs
+   * (or has too many of them) is a 400 Bad Request.
+   */
+  @Test
+  public void respondsAppropriatelyToBadBatches() {
+    String tooMany = "[" + "\"x\",".repeat(UserController.MAX_BATCH_IDS) + "\"x\"]";
+    for (String body : new String[] {"{\"ids\": []}", "[\"a\", null]", "[{}]", "ids", tooMany}) {
+      when(ctx.body()).thenReturn(body);
+      Assertions.assertThrows(BadRequestResponse.class, () -> userController.getUsersBatch(ctx));
+    }
+    verify(ctx, Mockito.never()).outputStream();
+  }
+
   /**
    * Confirm that we get a 404 Not Found response when
    * we request a user ID that doesn't exist.